@@ -36,14 +36,14 @@
 
 #include <stdio.h>
 #include <stdlib.h>
+#include <stdint.h>
+#include <math.h>
 #include "luajava.h"
 #include "lua.h"
 #include "lualib.h"
 #include "lauxlib.h"
 
 
-/* Constant that is used to index the JNI Environment */
-#define LUAJAVAJNIENVTAG      "__JNIEnv"
 /* Defines whether the metatable is of a java Object */
 #define LUAJAVAOBJECTIND      "__IsJavaObject"
 /* Defines the lua State Index Property Name */
@@ -56,11 +56,27 @@
 #define LUAGCMETAMETHODTAG    "__gc"
 /* Call metamethod name */
 #define LUACALLMETAMETHODTAG  "__call"
-/* Constant that defines where in the metatable should I place the function name */
-#define LUAJAVAOBJFUNCCALLED  "__FunctionCalled"
 
+/* Tags of org.keplerproject.luajava.TableEncoding */
+#define TABLE_ENCODING_NIL       0
+#define TABLE_ENCODING_BOOLEAN   1
+#define TABLE_ENCODING_NUMBER    2
+#define TABLE_ENCODING_STRING    3
+#define TABLE_ENCODING_BYTES     4
+#define TABLE_ENCODING_REF       5
+#define TABLE_ENCODING_FUNCTION  6
+#define TABLE_ENCODING_ARRAY     7
+#define TABLE_ENCODING_OBJECT    8
 
+/* Names kept by the cache of toJavaName, per state */
+#define JAVA_NAME_CACHE_SIZE     4096
 
+/* Elements copied at once by pushPrimitiveArray */
+#define PUSH_CHUNK_SIZE          256
+
+
+
+static JavaVM *  java_vm              = NULL;
 static jclass    throwable_class      = NULL;
 static jmethodID get_message_method   = NULL;
 static jclass    java_function_class  = NULL;
@@ -68,6 +84,33 @@ static jmethodID java_function_method = NULL;
 static jclass    luajava_api_class    = NULL;
 static jclass    java_lang_class      = NULL;
 
+static jmethodID class_for_name_method      = NULL;
+static jmethodID throwable_to_string_method = NULL;
+static jclass    exception_class            = NULL;
+static jclass    luajava_exception_class    = NULL;
+static jclass    cptr_class                 = NULL;
+static jfieldID  cptr_peer_field            = NULL;
+
+/* LuaJavaAPI callbacks */
+static jmethodID check_field_method         = NULL;
+static jmethodID object_index_method        = NULL;
+static jmethodID object_new_index_method    = NULL;
+static jmethodID class_index_method         = NULL;
+static jmethodID array_index_method         = NULL;
+static jmethodID array_new_index_method     = NULL;
+static jmethodID create_proxy_object_method = NULL;
+static jmethodID java_new_method            = NULL;
+static jmethodID java_new_instance_method   = NULL;
+static jmethodID java_load_lib_method       = NULL;
+
+/* Registry keys of the shared metatables, only their addresses are used */
+static char java_object_mt_key;
+static char java_class_mt_key;
+static char java_array_mt_key;
+static char java_function_mt_key;
+static char java_name_cache_key;
+static char java_name_mt_key;
+
 
 /***************************************************************************
 *
@@ -354,6 +397,27 @@ static jclass    java_lang_class      = NULL;
    static int pushJavaClass( lua_State * L , jobject javaObject );
 
 
+/***************************************************************************
+*
+* $FC pushJavaMetatable
+* 
+* $ED Description
+*    Pushes the metatable shared by all the java proxies of one kind.
+*    It is created on first use and kept in the registry.
+* 
+* $EP Function Parameters
+*    $P L - lua State
+*    $P key - registry key of the metatable
+*    $P indexFunc - __index metamethod, may be NULL
+*    $P newIndexFunc - __newindex metamethod, may be NULL
+*    $P callFunc - __call metamethod, may be NULL
+* 
+*$. **********************************************************************/
+
+   static void pushJavaMetatable( lua_State * L , void * key , lua_CFunction indexFunc ,
+                                  lua_CFunction newIndexFunc , lua_CFunction callFunc );
+
+
 /***************************************************************************
 *
 * $FC isJavaObject
@@ -375,59 +439,79 @@ static jclass    java_lang_class      = NULL;
 
 /***************************************************************************
 *
-* $FC getStateFromCPtr
+* $FC toJavaName
 * 
 * $ED Description
-*    Returns the lua_State from the CPtr Java Object
+*    Returns the Java string of a member name. Lua strings are interned, so
+*    each state keeps a cache from the Lua string to a global reference of
+*    its jstring and a name is transcoded only the first time it is used.
 * 
 * $EP Function Parameters
+*    $P env - JNI Environment
 *    $P L - lua State
-*    $P cptr - CPtr object
+*    $P idx - index of the name on the stack
 * 
 * $FV Returned Value
-*    int - Number of values to be returned by the function.
+*    jstring - local reference, to be deleted by the caller.
 * 
 *$. **********************************************************************/
 
-   static lua_State * getStateFromCPtr( JNIEnv * env , jobject cptr );
+   static jstring toJavaName( JNIEnv * env , lua_State * L , int idx );
 
 
 /***************************************************************************
 *
-* $FC luaJavaFunctionCall
+* $FC releaseJavaName
 * 
 * $ED Description
-*    function called by metamethod __call of instances of JavaFunctionWrapper
+*    __gc metamethod of the names cached by toJavaName
 * 
 * $EP Function Parameters
 *    $P L - lua State
-*    $P Stack - Parameters will be received by the stack
 * 
 * $FV Returned Value
 *    int - Number of values to be returned by the function.
 * 
 *$. **********************************************************************/
 
-   static int luaJavaFunctionCall( lua_State * L );
+   static int releaseJavaName( lua_State * L );
+
+
+/***************************************************************************
+*
+* $FC getStateFromPeer
+* 
+* $ED Description
+*    Returns the lua_State from the peer of a CPtr Java Object
+* 
+* $EP Function Parameters
+*    $P peer - lua_State pointer held by the Java side
+* 
+* $FV Returned Value
+*    lua_State * - the state.
+* 
+*$. **********************************************************************/
+
+   static lua_State * getStateFromPeer( jlong peer );
 
 
 /***************************************************************************
 *
-* $FC pushJNIEnv
+* $FC luaJavaFunctionCall
 * 
 * $ED Description
-*    function that pushes the jni environment into the lua state
+*    function called by metamethod __call of instances of JavaFunctionWrapper
 * 
 * $EP Function Parameters
-*    $P env - java environment
 *    $P L - lua State
+*    $P Stack - Parameters will be received by the stack
 * 
 * $FV Returned Value
-*    void
+*    int - Number of values to be returned by the function.
 * 
 *$. **********************************************************************/
 
-   static void pushJNIEnv( JNIEnv * env , lua_State * L );
+   static int luaJavaFunctionCall( lua_State * L );
 
 
    /***************************************************************************
@@ -435,7 +519,7 @@ static jclass    java_lang_class      = NULL;
 * $FC getEnvFromState
 * 
 * $ED Description
-*    auxiliary function to get the JNIEnv from the lua state
+*    auxiliary function to get the JNIEnv of the thread running the lua state
 * 
 * $EP Function Parameters
 *    $P L - lua State
@@ -544,10 +628,9 @@ int objectIndex( lua_State * L )
 
    obj = ( jobject * ) lua_touserdata( L , 1 );
 
-   method = ( *javaEnv )->GetStaticMethodID( javaEnv , luajava_api_class , "checkField" ,
-                                             "(ILjava/lang/Object;Ljava/lang/String;)I" );
+   method = check_field_method;
 
-   str = ( *javaEnv )->NewStringUTF( javaEnv , key );
+   str = toJavaName( javaEnv , L , -1 );
 
    checkField = ( *javaEnv )->CallStaticIntMethod( javaEnv , luajava_api_class , method ,
                                                    (jint)stateIndex , *obj , str );
@@ -569,7 +652,7 @@ int objectIndex( lua_State * L )
       {
          jmethodID methodId;
 
-         methodId = ( *javaEnv )->GetMethodID( javaEnv , throwable_class , "toString" , "()Ljava/lang/String;" );
+         methodId = throwable_to_string_method;
          jstr = ( *javaEnv )->CallObjectMethod( javaEnv , exp , methodId );
       }
 
@@ -592,21 +675,9 @@ int objectIndex( lua_State * L )
       return checkField;
    }
 
-   lua_getmetatable( L , 1 );
-
-   if ( !lua_istable( L , -1 ) )
-   {
-      lua_pushstring( L , "Invalid MetaTable." );
-      lua_error( L );
-   }
-
-   lua_pushstring( L , LUAJAVAOBJFUNCCALLED );
+   /* The metatable is shared, so the method name travels as an upvalue */
    lua_pushstring( L , key );
-   lua_rawset( L , -3 );
-
-   lua_pop( L , 1 );
-
-   lua_pushcfunction( L , &objectIndexReturn );
+   lua_pushcclosure( L , &objectIndexReturn , 1 );
 
    return 1;
 }
@@ -648,24 +719,13 @@ int objectIndexReturn( lua_State * L )
       lua_error( L );
    }
 
-   lua_getmetatable( L , 1 );
-   if ( lua_type( L , -1 ) == LUA_TNIL )
-   {
-      lua_pushstring( L , "Not a valid java Object." );
-      lua_error( L );
-   }
-
    /* Gets the method Name */
-   lua_pushstring( L , LUAJAVAOBJFUNCCALLED );
-   lua_rawget( L , -2 );
-   if ( lua_type( L , -1 ) == LUA_TNIL )
+   methodName = lua_tostring( L , lua_upvalueindex( 1 ) );
+   if ( methodName == NULL )
    {
       lua_pushstring( L , "Not a OO function call." );
       lua_error( L );
    }
-   methodName = lua_tostring( L , -1 );
-
-   lua_pop( L , 2 );
 
    /* Gets the object reference */
    pObject = ( jobject* ) lua_touserdata( L , 1 );
@@ -679,10 +739,9 @@ int objectIndexReturn( lua_State * L )
    }
 
    /* Gets method */
-   method = ( *javaEnv )->GetStaticMethodID( javaEnv , luajava_api_class , "objectIndex" ,
-                                             "(ILjava/lang/Object;Ljava/lang/String;)I" );
+   method = object_index_method;
 
-   str = ( *javaEnv )->NewStringUTF( javaEnv , methodName );
+   str = toJavaName( javaEnv , L , lua_upvalueindex( 1 ) );
 
    ret = ( *javaEnv )->CallStaticIntMethod( javaEnv , luajava_api_class , method , (jint)stateIndex , 
                                             *pObject , str );
@@ -704,7 +763,7 @@ int objectIndexReturn( lua_State * L )
       {
          jmethodID methodId;
 
-         methodId = ( *javaEnv )->GetMethodID( javaEnv , throwable_class , "toString" , "()Ljava/lang/String;" );
+         methodId = throwable_to_string_method;
          jstr = ( *javaEnv )->CallObjectMethod( javaEnv , exp , methodId );
       }
 
@@ -737,7 +796,6 @@ int objectNewIndex( lua_State * L  )
    lua_Number stateIndex;
    jobject * obj;
    jmethodID method;
-   const char * fieldName;
    jstring str;
    jint ret;
    jthrowable exp;
@@ -770,8 +828,6 @@ int objectNewIndex( lua_State * L  )
       lua_error( L );
    }
 
-   fieldName = lua_tostring( L , 2 );
-
    /* Gets the object reference */
    obj = ( jobject* ) lua_touserdata( L , 1 );
 
@@ -783,10 +839,9 @@ int objectNewIndex( lua_State * L  )
       lua_error( L );
    }
 
-   method = ( *javaEnv )->GetStaticMethodID( javaEnv , luajava_api_class , "objectNewIndex" ,
-                                             "(ILjava/lang/Object;Ljava/lang/String;)I" );
+   method = object_new_index_method;
 
-   str = ( *javaEnv )->NewStringUTF( javaEnv , fieldName );
+   str = toJavaName( javaEnv , L , 2 );
 
    ret = ( *javaEnv )->CallStaticIntMethod( javaEnv , luajava_api_class , method, (jint)stateIndex , 
                                             *obj , str );
@@ -808,7 +863,7 @@ int objectNewIndex( lua_State * L  )
       {
          jmethodID methodId;
 
-         methodId = ( *javaEnv )->GetMethodID( javaEnv , throwable_class , "toString" , "()Ljava/lang/String;" );
+         methodId = throwable_to_string_method;
          jstr = ( *javaEnv )->CallObjectMethod( javaEnv , exp , methodId );
       }
 
@@ -887,10 +942,9 @@ int classIndex( lua_State * L )
       lua_error( L );
    }
 
-   method = ( *javaEnv )->GetStaticMethodID( javaEnv , luajava_api_class , "classIndex" ,
-                                             "(ILjava/lang/Class;Ljava/lang/String;)I" );
+   method = class_index_method;
 
-   str = ( *javaEnv )->NewStringUTF( javaEnv , fieldName );
+   str = toJavaName( javaEnv , L , 2 );
 
    /* Return 1 for field, 2 for method or 0 for error */
    ret = ( *javaEnv )->CallStaticIntMethod( javaEnv , luajava_api_class , method, (jint)stateIndex , 
@@ -913,7 +967,7 @@ int classIndex( lua_State * L )
       {
          jmethodID methodId;
 
-         methodId = ( *javaEnv )->GetMethodID( javaEnv , throwable_class , "toString" , "()Ljava/lang/String;" );
+         methodId = throwable_to_string_method;
          jstr = ( *javaEnv )->CallObjectMethod( javaEnv , exp , methodId );
       }
 
@@ -939,14 +993,8 @@ int classIndex( lua_State * L )
 
    if ( ret == 2 )
    {
-      lua_getmetatable( L , 1 );
-      lua_pushstring( L , LUAJAVAOBJFUNCCALLED );
       lua_pushstring( L , fieldName );
-      lua_rawset( L , -3 );
-
-      lua_pop( L , 1 );
-
-      lua_pushcfunction( L , &objectIndexReturn );
+      lua_pushcclosure( L , &objectIndexReturn , 1 );
 
       return 1;
    }
@@ -1016,8 +1064,7 @@ int arrayIndex( lua_State * L )
 
    obj = ( jobject * ) lua_touserdata( L , 1 );
 
-   method = ( *javaEnv )->GetStaticMethodID( javaEnv , luajava_api_class , "arrayIndex" ,
-                                             "(ILjava/lang/Object;I)I" );
+   method = array_index_method;
 
    ret = ( *javaEnv )->CallStaticIntMethod( javaEnv , luajava_api_class , method ,
                                                    (jint)stateIndex , *obj , (jlong)key );
@@ -1037,7 +1084,7 @@ int arrayIndex( lua_State * L )
       {
          jmethodID methodId;
 
-         methodId = ( *javaEnv )->GetMethodID( javaEnv , throwable_class , "toString" , "()Ljava/lang/String;" );
+         methodId = throwable_to_string_method;
          jstr = ( *javaEnv )->CallObjectMethod( javaEnv , exp , methodId );
       }
 
@@ -1112,8 +1159,7 @@ int arrayNewIndex( lua_State * L )
       lua_error( L );
    }
 
-   method = ( *javaEnv )->GetStaticMethodID( javaEnv , luajava_api_class , "arrayNewIndex" ,
-                                             "(ILjava/lang/Object;I)I" );
+   method = array_new_index_method;
 
    ret = ( *javaEnv )->CallStaticIntMethod( javaEnv , luajava_api_class , method, (jint)stateIndex , 
                                             *obj , (jint)key );
@@ -1133,7 +1179,7 @@ int arrayNewIndex( lua_State * L )
       {
          jmethodID methodId;
 
-         methodId = ( *javaEnv )->GetMethodID( javaEnv , throwable_class , "toString" , "()Ljava/lang/String;" );
+         methodId = throwable_to_string_method;
          jstr = ( *javaEnv )->CallObjectMethod( javaEnv , exp , methodId );
       }
 
@@ -1223,8 +1269,7 @@ int javaBindClass( lua_State * L )
    }
    className = lua_tostring( L , 1 );
 
-   method = ( *javaEnv )->GetStaticMethodID( javaEnv , java_lang_class , "forName" , 
-                                             "(Ljava/lang/String;)Ljava/lang/Class;" );
+   method = class_for_name_method;
 
    javaClassName = ( *javaEnv )->NewStringUTF( javaEnv , className );
 
@@ -1248,7 +1293,7 @@ int javaBindClass( lua_State * L )
       {
          jmethodID methodId;
 
-         methodId = ( *javaEnv )->GetMethodID( javaEnv , throwable_class , "toString" , "()Ljava/lang/String;" );
+         methodId = throwable_to_string_method;
          jstr = ( *javaEnv )->CallObjectMethod( javaEnv , exp , methodId );
       }
 
@@ -1319,8 +1364,7 @@ int createProxy( lua_State * L )
       lua_error( L );
    }
 
-   method = ( *javaEnv )->GetStaticMethodID( javaEnv , luajava_api_class , "createProxyObject" ,
-                                             "(ILjava/lang/String;)I" );
+   method = create_proxy_object_method;
 
    impl = lua_tostring( L , 1 );
 
@@ -1345,7 +1389,7 @@ int createProxy( lua_State * L )
       {
          jmethodID methodId;
 
-         methodId = ( *javaEnv )->GetMethodID( javaEnv , throwable_class , "toString" , "()Ljava/lang/String;" );
+         methodId = throwable_to_string_method;
          jstr = ( *javaEnv )->CallObjectMethod( javaEnv , exp , methodId );
       }
 
@@ -1419,7 +1463,7 @@ int javaNew( lua_State * L )
       lua_error( L );
    }
 
-   clazz = ( *javaEnv )->FindClass( javaEnv , "java/lang/Class" );
+   clazz = java_lang_class;
 
    userData = ( jobject * ) lua_touserdata( L , 1 );
 
@@ -1431,8 +1475,7 @@ int javaNew( lua_State * L )
       lua_error( L );
    }
 
-   method = ( *javaEnv )->GetStaticMethodID( javaEnv , luajava_api_class , "javaNew" , 
-                                             "(ILjava/lang/Class;)I" );
+   method = java_new_method;
 
    if ( clazz == NULL || method == NULL )
    {
@@ -1440,7 +1483,7 @@ int javaNew( lua_State * L )
       lua_error( L );
    }
 
-   ret = ( *javaEnv )->CallStaticIntMethod( javaEnv , clazz , method , (jint)stateIndex , classInstance );
+   ret = ( *javaEnv )->CallStaticIntMethod( javaEnv , luajava_api_class , method , (jint)stateIndex , classInstance );
 
    exp = ( *javaEnv )->ExceptionOccurred( javaEnv );
 
@@ -1457,7 +1500,7 @@ int javaNew( lua_State * L )
       {
          jmethodID methodId;
 
-         methodId = ( *javaEnv )->GetMethodID( javaEnv , throwable_class , "toString" , "()Ljava/lang/String;" );
+         methodId = throwable_to_string_method;
          jstr = ( *javaEnv )->CallObjectMethod( javaEnv , exp , methodId );
       }
 
@@ -1521,8 +1564,7 @@ int javaNewInstance( lua_State * L )
       lua_error( L );
    }
 
-   method = ( *javaEnv )->GetStaticMethodID( javaEnv , luajava_api_class , "javaNewInstance" ,
-                                             "(ILjava/lang/String;)I" );
+   method = java_new_instance_method;
 
    javaClassName = ( *javaEnv )->NewStringUTF( javaEnv , className );
    
@@ -1546,7 +1588,7 @@ int javaNewInstance( lua_State * L )
       {
          jmethodID methodId;
 
-         methodId = ( *javaEnv )->GetMethodID( javaEnv , throwable_class , "toString" , "()Ljava/lang/String;" );
+         methodId = throwable_to_string_method;
          jstr = ( *javaEnv )->CallObjectMethod( javaEnv , exp , methodId );
       }
 
@@ -1623,8 +1665,7 @@ int javaLoadLib( lua_State * L )
       lua_error( L );
    }
 
-   method = ( *javaEnv )->GetStaticMethodID( javaEnv , luajava_api_class , "javaLoadLib" ,
-                                             "(ILjava/lang/String;Ljava/lang/String;)I" );
+   method = java_load_lib_method;
 
    javaClassName  = ( *javaEnv )->NewStringUTF( javaEnv , className );
    javaMethodName = ( *javaEnv )->NewStringUTF( javaEnv , methodName );
@@ -1650,7 +1691,7 @@ int javaLoadLib( lua_State * L )
       {
          jmethodID methodId;
 
-         methodId = ( *javaEnv )->GetMethodID( javaEnv , throwable_class , "toString" , "()Ljava/lang/String;" );
+         methodId = throwable_to_string_method;
          jstr = ( *javaEnv )->CallObjectMethod( javaEnv , exp , methodId );
       }
 
@@ -1695,28 +1736,8 @@ int pushJavaClass( lua_State * L , jobject javaObject )
    userData = ( jobject * ) lua_newuserdata( L , sizeof( jobject ) );
    *userData = globalRef;
 
-   /* Creates metatable */
-   lua_newtable( L );
-
-   /* pushes the __index metamethod */
-   lua_pushstring( L , LUAINDEXMETAMETHODTAG );
-   lua_pushcfunction( L , &classIndex );
-   lua_rawset( L , -3 );
-
-   /* pushes the __newindex metamethod */
-   lua_pushstring( L , LUANEWINDEXMETAMETHODTAG );
-   lua_pushcfunction( L , &objectNewIndex );
-   lua_rawset( L , -3 );
-
-   /* pushes the __gc metamethod */
-   lua_pushstring( L , LUAGCMETAMETHODTAG );
-   lua_pushcfunction( L , &gc );
-   lua_rawset( L , -3 );
-
-   /* Is Java Object boolean */
-   lua_pushstring( L , LUAJAVAOBJECTIND );
-   lua_pushboolean( L , 1 );
-   lua_rawset( L , -3 );
+   /* Sets the shared metatable */
+   pushJavaMetatable( L , &java_class_mt_key , &classIndex , &objectNewIndex , NULL );
 
    if ( lua_setmetatable( L , -2 ) == 0 )
    {
@@ -1751,28 +1772,8 @@ int pushJavaObject( lua_State * L , jobject javaObject )
    userData = ( jobject * ) lua_newuserdata( L , sizeof( jobject ) );
    *userData = globalRef;
 
-   /* Creates metatable */
-   lua_newtable( L );
-
-   /* pushes the __index metamethod */
-   lua_pushstring( L , LUAINDEXMETAMETHODTAG );
-   lua_pushcfunction( L , &objectIndex );
-   lua_rawset( L , -3 );
-
-   /* pushes the __newindex metamethod */
-   lua_pushstring( L , LUANEWINDEXMETAMETHODTAG );
-   lua_pushcfunction( L , &objectNewIndex );
-   lua_rawset( L , -3 );
-
-   /* pushes the __gc metamethod */
-   lua_pushstring( L , LUAGCMETAMETHODTAG );
-   lua_pushcfunction( L , &gc );
-   lua_rawset( L , -3 );
-
-   /* Is Java Object boolean */
-   lua_pushstring( L , LUAJAVAOBJECTIND );
-   lua_pushboolean( L , 1 );
-   lua_rawset( L , -3 );
+   /* Sets the shared metatable */
+   pushJavaMetatable( L , &java_object_mt_key , &objectIndex , &objectNewIndex , NULL );
 
    if ( lua_setmetatable( L , -2 ) == 0 )
    {
@@ -1807,28 +1808,8 @@ int pushJavaArray( lua_State * L , jobject javaObject )
    userData = ( jobject * ) lua_newuserdata( L , sizeof( jobject ) );
    *userData = globalRef;
 
-   /* Creates metatable */
-   lua_newtable( L );
-
-   /* pushes the __index metamethod */
-   lua_pushstring( L , LUAINDEXMETAMETHODTAG );
-   lua_pushcfunction( L , &arrayIndex );
-   lua_rawset( L , -3 );
-
-   /* pushes the __newindex metamethod */
-   lua_pushstring( L , LUANEWINDEXMETAMETHODTAG );
-   lua_pushcfunction( L , &arrayNewIndex );
-   lua_rawset( L , -3 );
-
-   /* pushes the __gc metamethod */
-   lua_pushstring( L , LUAGCMETAMETHODTAG );
-   lua_pushcfunction( L , &gc );
-   lua_rawset( L , -3 );
-
-   /* Is Java Object boolean */
-   lua_pushstring( L , LUAJAVAOBJECTIND );
-   lua_pushboolean( L , 1 );
-   lua_rawset( L , -3 );
+   /* Sets the shared metatable */
+   pushJavaMetatable( L , &java_array_mt_key , &arrayIndex , &arrayNewIndex , NULL );
 
    if ( lua_setmetatable( L , -2 ) == 0 )
    {
@@ -1841,6 +1822,112 @@ int pushJavaArray( lua_State * L , jobject javaObject )
 }
 
 
+/***************************************************************************
+*
+*  Function: toJavaName
+*  ****/
+
+jstring toJavaName( JNIEnv * env , lua_State * L , int idx )
+{
+   jstring str;
+   jobject * userData;
+   int count;
+
+   if ( idx < 0 && idx > LUA_REGISTRYINDEX )
+   {
+      idx = lua_gettop( L ) + idx + 1;
+   }
+
+   if ( lua_type( L , idx ) != LUA_TSTRING )
+   {
+      return ( *env )->NewStringUTF( env , lua_tostring( L , idx ) );
+   }
+
+   /* registry[&java_name_cache_key] = { [name] = userdata, [1] = count } */
+   lua_pushlightuserdata( L , &java_name_cache_key );
+   lua_rawget( L , LUA_REGISTRYINDEX );
+   if ( !lua_istable( L , -1 ) )
+   {
+      lua_pop( L , 1 );
+      lua_newtable( L );
+      lua_pushlightuserdata( L , &java_name_cache_key );
+      lua_pushvalue( L , -2 );
+      lua_rawset( L , LUA_REGISTRYINDEX );
+   }
+
+   lua_pushvalue( L , idx );
+   lua_rawget( L , -2 );
+   if ( lua_isuserdata( L , -1 ) )
+   {
+      str = ( *env )->NewLocalRef( env , *( jobject * ) lua_touserdata( L , -1 ) );
+      lua_pop( L , 2 );
+      return str;
+   }
+   lua_pop( L , 1 );
+
+   str = ( *env )->NewStringUTF( env , lua_tostring( L , idx ) );
+
+   lua_rawgeti( L , -1 , 1 );
+   count = ( int ) lua_tointeger( L , -1 );
+   lua_pop( L , 1 );
+
+   if ( str != NULL && count < JAVA_NAME_CACHE_SIZE )
+   {
+      lua_pushvalue( L , idx );
+      userData = ( jobject * ) lua_newuserdata( L , sizeof( jobject ) );
+      *userData = ( *env )->NewGlobalRef( env , str );
+
+      lua_pushlightuserdata( L , &java_name_mt_key );
+      lua_rawget( L , LUA_REGISTRYINDEX );
+      if ( !lua_istable( L , -1 ) )
+      {
+         lua_pop( L , 1 );
+         lua_newtable( L );
+         lua_pushstring( L , LUAGCMETAMETHODTAG );
+         lua_pushcfunction( L , &releaseJavaName );
+         lua_rawset( L , -3 );
+         lua_pushlightuserdata( L , &java_name_mt_key );
+         lua_pushvalue( L , -2 );
+         lua_rawset( L , LUA_REGISTRYINDEX );
+      }
+      lua_setmetatable( L , -2 );
+
+      lua_rawset( L , -3 );
+
+      lua_pushinteger( L , count + 1 );
+      lua_rawseti( L , -2 , 1 );
+   }
+
+   lua_pop( L , 1 );
+   return str;
+}
+
+
+/***************************************************************************
+*
+*  Function: releaseJavaName
+*  ****/
+
+int releaseJavaName( lua_State * L )
+{
+   jobject * pObj;
+   JNIEnv * javaEnv;
+
+   pObj = ( jobject * ) lua_touserdata( L , 1 );
+
+   javaEnv = getEnvFromState( L );
+   if ( javaEnv == NULL || pObj == NULL || *pObj == NULL )
+   {
+      return 0;
+   }
+
+   ( *javaEnv )->DeleteGlobalRef( javaEnv , *pObj );
+   *pObj = NULL;
+
+   return 0;
+}
+
+
 /***************************************************************************
 *
 *  Function: isJavaObject
@@ -1848,43 +1935,96 @@ int pushJavaArray( lua_State * L , jobject javaObject )
 
 int isJavaObject( lua_State * L , int idx )
 {
+   int ret;
+
    if ( !lua_isuserdata( L , idx ) )
       return 0;
 
    if ( lua_getmetatable( L , idx ) == 0 )
       return 0;
 
-   lua_pushstring( L , LUAJAVAOBJECTIND );
-   lua_rawget( L , -2 );
+   /* The shared metatables are registered as registry[metatable] = true */
+   lua_rawget( L , LUA_REGISTRYINDEX );
+   ret = lua_toboolean( L , -1 );
+   lua_pop( L , 1 );
 
-   if (lua_isnil( L, -1 ))
-   {
-      lua_pop( L , 2 );
-      return 0;
-   }
-   lua_pop( L , 2 );
-   return 1;
+   return ret;
 }
 
 
 /***************************************************************************
 *
-*  Function: getStateFromCPtr
+*  Function: pushJavaMetatable
 *  ****/
 
-lua_State * getStateFromCPtr( JNIEnv * env , jobject cptr )
+void pushJavaMetatable( lua_State * L , void * key , lua_CFunction indexFunc ,
+                        lua_CFunction newIndexFunc , lua_CFunction callFunc )
 {
-   lua_State * L;
+   lua_pushlightuserdata( L , key );
+   lua_rawget( L , LUA_REGISTRYINDEX );
+
+   if ( lua_istable( L , -1 ) )
+   {
+      return;
+   }
+
+   lua_pop( L , 1 );
+
+   /* Creates metatable */
+   lua_newtable( L );
+
+   /* pushes the __index metamethod */
+   if ( indexFunc != NULL )
+   {
+      lua_pushstring( L , LUAINDEXMETAMETHODTAG );
+      lua_pushcfunction( L , indexFunc );
+      lua_rawset( L , -3 );
+   }
+
+   /* pushes the __newindex metamethod */
+   if ( newIndexFunc != NULL )
+   {
+      lua_pushstring( L , LUANEWINDEXMETAMETHODTAG );
+      lua_pushcfunction( L , newIndexFunc );
+      lua_rawset( L , -3 );
+   }
+
+   /* pushes the __call metamethod */
+   if ( callFunc != NULL )
+   {
+      lua_pushstring( L , LUACALLMETAMETHODTAG );
+      lua_pushcfunction( L , callFunc );
+      lua_rawset( L , -3 );
+   }
+
+   /* pushes the __gc metamethod */
+   lua_pushstring( L , LUAGCMETAMETHODTAG );
+   lua_pushcfunction( L , &gc );
+   lua_rawset( L , -3 );
+
+   /* Is Java Object boolean */
+   lua_pushstring( L , LUAJAVAOBJECTIND );
+   lua_pushboolean( L , 1 );
+   lua_rawset( L , -3 );
+
+   lua_pushlightuserdata( L , key );
+   lua_pushvalue( L , -2 );
+   lua_rawset( L , LUA_REGISTRYINDEX );
 
-   jclass classPtr       = ( *env )->GetObjectClass( env , cptr );
-   jfieldID CPtr_peer_ID = ( *env )->GetFieldID( env , classPtr , "peer" , "J" );
-   jbyte * peer          = ( jbyte * ) ( *env )->GetLongField( env , cptr , CPtr_peer_ID );
+   lua_pushvalue( L , -1 );
+   lua_pushboolean( L , 1 );
+   lua_rawset( L , LUA_REGISTRYINDEX );
+}
 
-   L = ( lua_State * ) peer;
 
-   pushJNIEnv( env ,  L );
+/***************************************************************************
+*
+*  Function: getStateFromPeer
+*  ****/
 
-   return L;
+lua_State * getStateFromPeer( jlong peer )
+{
+   return ( lua_State * ) ( intptr_t ) peer;
 }
 
 
@@ -1941,7 +2081,7 @@ int luaJavaFunctionCall( lua_State * L )
       {
          jmethodID methodId;
 
-         methodId = ( *javaEnv )->GetMethodID( javaEnv , throwable_class , "toString" , "()Ljava/lang/String;" );
+         methodId = throwable_to_string_method;
          jstr = ( *javaEnv )->CallObjectMethod( javaEnv , exp , methodId );
       }
 
@@ -1967,88 +2107,239 @@ int luaJavaFunctionCall( lua_State * L )
 
 JNIEnv * getEnvFromState( lua_State * L )
 {
-   JNIEnv ** udEnv;
-
-   lua_pushstring( L , LUAJAVAJNIENVTAG );
-   lua_rawget( L , LUA_REGISTRYINDEX );
+   JNIEnv * env;
 
-   if ( !lua_isuserdata( L , -1 ) )
+   /* Lua only runs inside a native call, so the current thread is attached */
+   if ( ( *java_vm )->GetEnv( java_vm , ( void ** ) &env , JNI_VERSION_1_6 ) != JNI_OK )
    {
-      lua_pop( L , 1 );
       return NULL;
    }
 
-   udEnv = ( JNIEnv ** ) lua_touserdata( L , -1 );
-
-   lua_pop( L , 1 );
+   return env;
+}
 
-   return * udEnv;
+/*
+** Assumes the table is on top of the stack.
+*/
+static void set_info (lua_State *L) {
+	lua_pushliteral (L, "_COPYRIGHT");
+	lua_pushliteral (L, "Copyright (C) 2003-2007 Kepler Project");
+	lua_settable (L, -3);
+	lua_pushliteral (L, "_DESCRIPTION");
+	lua_pushliteral (L, "LuaJava is a script tool for Java");
+	lua_settable (L, -3);
+	lua_pushliteral (L, "_NAME");
+	lua_pushliteral (L, "LuaJava");
+	lua_settable (L, -3);
+	lua_pushliteral (L, "_VERSION");
+	lua_pushliteral (L, "1.1");
+	lua_settable (L, -3);
 }
 
+/************************************************************************
+*   Pushes a JavaFunction as a callable userdata
+************************************************************************/
 
-/***************************************************************************
-*
-*  Function: pushJNIEnv
-*  ****/
-
-void pushJNIEnv( JNIEnv * env , lua_State * L )
+static void pushJavaFunctionObject( JNIEnv * env , lua_State * L , jobject obj )
 {
-   JNIEnv ** udEnv;
+   jobject * userData , globalRef;
 
-   lua_pushstring( L , LUAJAVAJNIENVTAG );
-   lua_rawget( L , LUA_REGISTRYINDEX );
+   globalRef = ( *env )->NewGlobalRef( env , obj );
+
+   userData = ( jobject * ) lua_newuserdata( L , sizeof( jobject ) );
+   *userData = globalRef;
 
-   if ( !lua_isnil( L , -1 ) )
+   /* Sets the shared metatable */
+   pushJavaMetatable( L , &java_function_mt_key , NULL , NULL , &luaJavaFunctionCall );
+
+   if ( lua_setmetatable( L , -2 ) == 0 )
    {
-      udEnv = ( JNIEnv ** ) lua_touserdata( L , -1 );
-      *udEnv = env;
-      lua_pop( L , 1 );
+      ( *env )->ThrowNew( env , luajava_exception_class ,
+                          "Index is not a java object" );
    }
-   else
+}
+
+
+/************************************************************************
+*   Pushes one value encoded by org.keplerproject.luajava.TableEncoding
+************************************************************************/
+
+static void pushEncodedValue( JNIEnv * env , lua_State * L , jbyte tag , jdouble number ,
+                              jobjectArray objects , jint i )
+{
+   jobject obj;
+   const char * str;
+   jbyte * bytes;
+
+   switch ( tag )
    {
-      lua_pop( L , 1 );
-      udEnv = ( JNIEnv ** ) lua_newuserdata( L , sizeof( JNIEnv * ) );
-      *udEnv = env;
+      case TABLE_ENCODING_BOOLEAN:
+         lua_pushboolean( L , number != 0 );
+         return;
+      case TABLE_ENCODING_NUMBER:
+         lua_pushnumber( L , ( lua_Number ) number );
+         return;
+      case TABLE_ENCODING_REF:
+         lua_rawgeti( L , LUA_REGISTRYINDEX , ( int ) number );
+         return;
+      case TABLE_ENCODING_STRING:
+      case TABLE_ENCODING_BYTES:
+      case TABLE_ENCODING_FUNCTION:
+      case TABLE_ENCODING_ARRAY:
+      case TABLE_ENCODING_OBJECT:
+         break;
+      default:
+         lua_pushnil( L );
+         return;
+   }
 
-      lua_pushstring( L , LUAJAVAJNIENVTAG );
-      lua_insert( L , -2 );
-      lua_rawset( L , LUA_REGISTRYINDEX );
+   obj = ( *env )->GetObjectArrayElement( env , objects , i );
+   switch ( tag )
+   {
+      case TABLE_ENCODING_STRING:
+         str = ( *env )->GetStringUTFChars( env , ( jstring ) obj , NULL );
+         if ( str == NULL )
+         {
+            lua_pushnil( L );
+            break;
+         }
+         lua_pushstring( L , str );
+         ( *env )->ReleaseStringUTFChars( env , ( jstring ) obj , str );
+         break;
+      case TABLE_ENCODING_BYTES:
+         bytes = ( *env )->GetByteArrayElements( env , ( jbyteArray ) obj , NULL );
+         if ( bytes == NULL )
+         {
+            lua_pushnil( L );
+            break;
+         }
+         lua_pushlstring( L , ( const char * ) bytes ,
+                          ( *env )->GetArrayLength( env , ( jarray ) obj ) );
+         ( *env )->ReleaseByteArrayElements( env , ( jbyteArray ) obj , bytes , JNI_ABORT );
+         break;
+      case TABLE_ENCODING_FUNCTION:
+         pushJavaFunctionObject( env , L , obj );
+         break;
+      case TABLE_ENCODING_ARRAY:
+         pushJavaArray( L , obj );
+         break;
+      default:
+         pushJavaObject( L , obj );
+         break;
    }
+   ( *env )->DeleteLocalRef( env , obj );
 }
 
-/*
-** Assumes the table is on top of the stack.
-*/
-static void set_info (lua_State *L) {
-	lua_pushliteral (L, "_COPYRIGHT");
-	lua_pushliteral (L, "Copyright (C) 2003-2007 Kepler Project");
-	lua_settable (L, -3);
-	lua_pushliteral (L, "_DESCRIPTION");
-	lua_pushliteral (L, "LuaJava is a script tool for Java");
-	lua_settable (L, -3);
-	lua_pushliteral (L, "_NAME");
-	lua_pushliteral (L, "LuaJava");
-	lua_settable (L, -3);
-	lua_pushliteral (L, "_VERSION");
-	lua_pushliteral (L, "1.1");
-	lua_settable (L, -3);
-}
 
 /**************************** JNI FUNCTIONS ****************************/
 
+/************************************************************************
+*   Resolves a class and keeps a global reference to it
+************************************************************************/
+
+static jclass loadGlobalClass( JNIEnv * env , const char * name )
+{
+   jclass tempClass = ( *env )->FindClass( env , name );
+
+   if ( tempClass == NULL )
+   {
+      fprintf( stderr , "Could not find class %s\n" , name );
+      return NULL;
+   }
+
+   return ( jclass ) ( *env )->NewGlobalRef( env , tempClass );
+}
+
+
+/************************************************************************
+*   Called by the JVM when the library is loaded. Every class, method
+*   and field used by the bridge is resolved once here, so callbacks
+*   from lua never look up a symbol.
+************************************************************************/
+
+JNIEXPORT jint JNICALL JNI_OnLoad( JavaVM * vm , void * reserved )
+{
+  JNIEnv * env;
+
+  if ( ( *vm )->GetEnv( vm , ( void ** ) &env , JNI_VERSION_1_6 ) != JNI_OK )
+  {
+    return JNI_ERR;
+  }
+
+  java_vm = vm;
+
+  luajava_api_class       = loadGlobalClass( env , "org/keplerproject/luajava/LuaJavaAPI" );
+  java_function_class     = loadGlobalClass( env , "org/keplerproject/luajava/JavaFunction" );
+  throwable_class         = loadGlobalClass( env , "java/lang/Throwable" );
+  java_lang_class         = loadGlobalClass( env , "java/lang/Class" );
+  exception_class         = loadGlobalClass( env , "java/lang/Exception" );
+  luajava_exception_class = loadGlobalClass( env , "org/keplerproject/luajava/LuaException" );
+  cptr_class              = loadGlobalClass( env , "org/keplerproject/luajava/CPtr" );
+
+  if ( luajava_api_class == NULL || java_function_class == NULL || throwable_class == NULL ||
+       java_lang_class == NULL || exception_class == NULL || luajava_exception_class == NULL ||
+       cptr_class == NULL )
+  {
+    return JNI_ERR;
+  }
+
+  java_function_method = ( *env )->GetMethodID( env , java_function_class , "execute" , "()I" );
+  get_message_method = ( *env )->GetMethodID( env , throwable_class , "getMessage" ,
+                                              "()Ljava/lang/String;" );
+  throwable_to_string_method = ( *env )->GetMethodID( env , throwable_class , "toString" ,
+                                                      "()Ljava/lang/String;" );
+  class_for_name_method = ( *env )->GetStaticMethodID( env , java_lang_class , "forName" ,
+                                                       "(Ljava/lang/String;)Ljava/lang/Class;" );
+  cptr_peer_field = ( *env )->GetFieldID( env , cptr_class , "peer" , "J" );
+
+  check_field_method = ( *env )->GetStaticMethodID( env , luajava_api_class , "checkField" ,
+                                        "(ILjava/lang/Object;Ljava/lang/String;)I" );
+  object_index_method = ( *env )->GetStaticMethodID( env , luajava_api_class , "objectIndex" ,
+                                        "(ILjava/lang/Object;Ljava/lang/String;)I" );
+  object_new_index_method = ( *env )->GetStaticMethodID( env , luajava_api_class , "objectNewIndex" ,
+                                        "(ILjava/lang/Object;Ljava/lang/String;)I" );
+  class_index_method = ( *env )->GetStaticMethodID( env , luajava_api_class , "classIndex" ,
+                                        "(ILjava/lang/Class;Ljava/lang/String;)I" );
+  array_index_method = ( *env )->GetStaticMethodID( env , luajava_api_class , "arrayIndex" ,
+                                        "(ILjava/lang/Object;I)I" );
+  array_new_index_method = ( *env )->GetStaticMethodID( env , luajava_api_class , "arrayNewIndex" ,
+                                        "(ILjava/lang/Object;I)I" );
+  create_proxy_object_method = ( *env )->GetStaticMethodID( env , luajava_api_class , "createProxyObject" ,
+                                        "(ILjava/lang/String;)I" );
+  java_new_method = ( *env )->GetStaticMethodID( env , luajava_api_class , "javaNew" ,
+                                        "(ILjava/lang/Class;)I" );
+  java_new_instance_method = ( *env )->GetStaticMethodID( env , luajava_api_class , "javaNewInstance" ,
+                                        "(ILjava/lang/String;)I" );
+  java_load_lib_method = ( *env )->GetStaticMethodID( env , luajava_api_class , "javaLoadLib" ,
+                                        "(ILjava/lang/String;Ljava/lang/String;)I" );
+
+  if ( java_function_method == NULL || get_message_method == NULL ||
+       throwable_to_string_method == NULL || class_for_name_method == NULL ||
+       cptr_peer_field == NULL || check_field_method == NULL || object_index_method == NULL ||
+       object_new_index_method == NULL || class_index_method == NULL ||
+       array_index_method == NULL || array_new_index_method == NULL ||
+       create_proxy_object_method == NULL || java_new_method == NULL ||
+       java_new_instance_method == NULL || java_load_lib_method == NULL )
+  {
+    fprintf( stderr , "Could not bind to LuaJavaAPI\n" );
+    return JNI_ERR;
+  }
+
+  return JNI_VERSION_1_6;
+}
+
+
 /************************************************************************
 *   JNI Called function
 *      LuaJava API Function
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState_luajava_1open
-  ( JNIEnv * env , jobject jobj , jobject cptr , jint stateId )
+  ( JNIEnv * env , jobject jobj , jlong ptr , jint stateId )
 {
   lua_State* L;
 
-  jclass tempClass;
-
-  L = getStateFromCPtr( env , cptr );
+  L = getStateFromPeer( ptr );
 
   lua_pushstring( L , LUAJAVASTATEINDEX );
   lua_pushnumber( L , (lua_Number)stateId );
@@ -2084,102 +2375,6 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState_luajava_1open
   lua_settable( L , -3 );
 
   lua_pop( L , 1 );
-
-  if ( luajava_api_class == NULL )
-  {
-    tempClass = ( *env )->FindClass( env , "org/keplerproject/luajava/LuaJavaAPI" );
-
-    if ( tempClass == NULL )
-    {
-      fprintf( stderr , "Could not find LuaJavaAPI class\n" );
-      exit( 1 );
-    }
-
-    if ( ( luajava_api_class = ( *env )->NewGlobalRef( env , tempClass ) ) == NULL )
-    {
-      fprintf( stderr , "Could not bind to LuaJavaAPI class\n" );
-      exit( 1 );
-    }
-  }
-
-  if ( java_function_class == NULL )
-  {
-    tempClass = ( *env )->FindClass( env , "org/keplerproject/luajava/JavaFunction" );
-
-    if ( tempClass == NULL )
-    {
-      fprintf( stderr , "Could not find JavaFunction interface\n" );
-      exit( 1 );
-    }
-
-    if ( ( java_function_class = ( *env )->NewGlobalRef( env , tempClass ) ) == NULL )
-    {
-      fprintf( stderr , "Could not bind to JavaFunction interface\n" );
-      exit( 1 );
-    }
-  }
-
-  if ( java_function_method == NULL )
-  {
-    java_function_method = ( *env )->GetMethodID( env , java_function_class , "execute" , "()I");
-    if ( !java_function_method )
-    {
-      fprintf( stderr , "Could not find <execute> method in JavaFunction\n" );
-      exit( 1 );
-    }
-  }
-
-  if ( throwable_class == NULL )
-  {
-    tempClass = ( *env )->FindClass( env , "java/lang/Throwable" );
-
-    if ( tempClass == NULL )
-    {
-      fprintf( stderr , "Error. Couldn't bind java class java.lang.Throwable\n" );
-      exit( 1 );
-    }
-
-    throwable_class = ( *env )->NewGlobalRef( env , tempClass );
-
-    if ( throwable_class == NULL )
-    {
-      fprintf( stderr , "Error. Couldn't bind java class java.lang.Throwable\n" );
-      exit( 1 );
-    }
-  }
-
-  if ( get_message_method == NULL )
-  {
-    get_message_method = ( *env )->GetMethodID( env , throwable_class , "getMessage" ,
-                                                "()Ljava/lang/String;" );
-
-    if ( get_message_method == NULL )
-    {
-      fprintf(stderr, "Could not find <getMessage> method in java.lang.Throwable\n");
-      exit(1);
-    }
-  }
-
-  if ( java_lang_class == NULL )
-  {
-    tempClass = ( *env )->FindClass( env , "java/lang/Class" );
-
-    if ( tempClass == NULL )
-    {
-      fprintf( stderr , "Error. Coundn't bind java class java.lang.Class\n" );
-      exit( 1 );
-    }
-
-    java_lang_class = ( *env )->NewGlobalRef( env , tempClass );
-
-    if ( java_lang_class == NULL )
-    {
-      fprintf( stderr , "Error. Couldn't bind java class java.lang.Throwable\n" );
-      exit( 1 );
-    }
-  }
-
-  pushJNIEnv( env , L );
 }
 
 /************************************************************************
@@ -2188,15 +2383,15 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState_luajava_1open
 ************************************************************************/
 
 JNIEXPORT jobject JNICALL Java_org_keplerproject_luajava_LuaState__1getObjectFromUserdata
-  (JNIEnv * env , jobject jobj , jobject cptr , jint index )
+  (JNIEnv * env , jobject jobj , jlong ptr , jint index )
 {
    /* Get luastate */
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
    jobject *   obj;
 
    if ( !isJavaObject( L , index ) )
    {
-      ( *env )->ThrowNew( env , ( *env )->FindClass( env , "java/lang/Exception" ) ,
+      ( *env )->ThrowNew( env , exception_class ,
                           "Index is not a java object" );
       return NULL;
    }
@@ -2213,10 +2408,10 @@ JNIEXPORT jobject JNICALL Java_org_keplerproject_luajava_LuaState__1getObjectFro
 ************************************************************************/
 
 JNIEXPORT jboolean JNICALL Java_org_keplerproject_luajava_LuaState__1isObject
-  (JNIEnv * env , jobject jobj , jobject cptr , jint index )
+  (JNIEnv * env , jobject jobj , jlong ptr , jint index )
 {
    /* Get luastate */
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return (isJavaObject( L , index ) ? JNI_TRUE : JNI_FALSE );
 }
@@ -2228,10 +2423,10 @@ JNIEXPORT jboolean JNICALL Java_org_keplerproject_luajava_LuaState__1isObject
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushJavaObject
-  (JNIEnv * env , jobject jobj , jobject cptr , jobject obj )
+  (JNIEnv * env , jobject jobj , jlong ptr , jobject obj )
 {
    /* Get luastate */
-   lua_State* L = getStateFromCPtr( env , cptr );
+   lua_State* L = getStateFromPeer( ptr );
 
    pushJavaObject( L , obj );
 }
@@ -2243,10 +2438,10 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushJavaObject
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushJavaArray
-  (JNIEnv * env , jobject jobj , jobject cptr , jobject obj )
+  (JNIEnv * env , jobject jobj , jlong ptr , jobject obj )
 {
    /* Get luastate */
-   lua_State* L = getStateFromCPtr( env , cptr );
+   lua_State* L = getStateFromPeer( ptr );
 
 	pushJavaArray( L , obj );
 }
@@ -2258,40 +2453,12 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushJavaArray
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushJavaFunction
-  (JNIEnv * env , jobject jobj , jobject cptr , jobject obj )
+  (JNIEnv * env , jobject jobj , jlong ptr , jobject obj )
 {
    /* Get luastate */
-   lua_State* L = getStateFromCPtr( env , cptr );
+   lua_State* L = getStateFromPeer( ptr );
 
-   jobject * userData , globalRef;
-
-   globalRef = ( *env )->NewGlobalRef( env , obj );
-
-   userData = ( jobject * ) lua_newuserdata( L , sizeof( jobject ) );
-   *userData = globalRef;
-
-   /* Creates metatable */
-   lua_newtable( L );
-
-   /* pushes the __index metamethod */
-   lua_pushstring( L , LUACALLMETAMETHODTAG );
-   lua_pushcfunction( L , &luaJavaFunctionCall );
-   lua_rawset( L , -3 );
-
-   /* pusher the __gc metamethod */
-   lua_pushstring( L , LUAGCMETAMETHODTAG );
-   lua_pushcfunction( L , &gc );
-   lua_rawset( L , -3 );
-
-   lua_pushstring( L , LUAJAVAOBJECTIND );
-   lua_pushboolean( L , 1 );
-   lua_rawset( L , -3 );
-
-   if ( lua_setmetatable( L , -2 ) == 0 )
-   {
-      ( *env )->ThrowNew( env , ( *env )->FindClass( env , "org/keplerproject/luajava/LuaException" ) ,
-                          "Index is not a java object" );
-   }
+   pushJavaFunctionObject( env , L , obj );
 }
 
 
@@ -2301,10 +2468,10 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushJavaFunctio
 ************************************************************************/
 
 JNIEXPORT jboolean JNICALL Java_org_keplerproject_luajava_LuaState__1isJavaFunction
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
    /* Get luastate */
-   lua_State* L = getStateFromCPtr( env , cptr );
+   lua_State* L = getStateFromPeer( ptr );
    jobject * obj;
 
    if ( !isJavaObject( L , idx ) )
@@ -2332,14 +2499,11 @@ JNIEXPORT jobject JNICALL Java_org_keplerproject_luajava_LuaState__1open
    lua_State * L = lua_open();
 
    jobject obj;
-   jclass tempClass;
 
-   tempClass = ( *env )->FindClass( env , "org/keplerproject/luajava/CPtr" );
-    
-   obj = ( *env )->AllocObject( env , tempClass );
+   obj = ( *env )->AllocObject( env , cptr_class );
    if ( obj )
    {
-      ( *env )->SetLongField( env , obj , ( *env )->GetFieldID( env , tempClass , "peer", "J" ) , ( jlong ) L );
+      ( *env )->SetLongField( env , obj , cptr_peer_field , ( jlong ) L );
    }
    return obj;
 
@@ -2352,9 +2516,9 @@ JNIEXPORT jobject JNICALL Java_org_keplerproject_luajava_LuaState__1open
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1openBase
-  (JNIEnv * env , jobject jobj , jobject cptr)
+  (JNIEnv * env , jobject jobj , jlong ptr)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    //luaopen_base( L );
    lua_pushcfunction( L , luaopen_base );
@@ -2369,9 +2533,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1openBase
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1openTable
-  (JNIEnv * env , jobject jobj , jobject cptr)
+  (JNIEnv * env , jobject jobj , jlong ptr)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    //luaopen_table( L );
    lua_pushcfunction( L , luaopen_table );
@@ -2386,9 +2550,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1openTable
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1openIo
-  (JNIEnv * env , jobject jobj , jobject cptr)
+  (JNIEnv * env , jobject jobj , jlong ptr)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    //luaopen_io( L );
    lua_pushcfunction( L , luaopen_io );
@@ -2403,9 +2567,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1openIo
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1openOs
-  (JNIEnv * env , jobject jobj , jobject cptr)
+  (JNIEnv * env , jobject jobj , jlong ptr)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    //luaopen_os( L );
    lua_pushcfunction( L , luaopen_os );
@@ -2420,9 +2584,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1openOs
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1openString
-  (JNIEnv * env , jobject jobj , jobject cptr)
+  (JNIEnv * env , jobject jobj , jlong ptr)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    //luaopen_string( L );
    lua_pushcfunction( L , luaopen_string );
@@ -2437,9 +2601,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1openString
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1openMath
-  (JNIEnv * env , jobject jobj , jobject cptr)
+  (JNIEnv * env , jobject jobj , jlong ptr)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    //luaopen_math( L );
    lua_pushcfunction( L , luaopen_math );
@@ -2454,9 +2618,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1openMath
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1openDebug
-  (JNIEnv * env, jobject jobj , jobject cptr)
+  (JNIEnv * env, jobject jobj , jlong ptr)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    //luaopen_debug( L );
    lua_pushcfunction( L , luaopen_debug );
@@ -2471,9 +2635,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1openDebug
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1openPackage
-  (JNIEnv * env, jobject jobj , jobject cptr)
+  (JNIEnv * env, jobject jobj , jlong ptr)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    //luaopen_package( L );
    lua_pushcfunction( L , luaopen_package );
@@ -2488,9 +2652,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1openPackage
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1openLibs
-  (JNIEnv * env, jobject jobj , jobject cptr)
+  (JNIEnv * env, jobject jobj , jlong ptr)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    luaL_openlibs( L );
 }
@@ -2502,9 +2666,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1openLibs
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1close
-  (JNIEnv * env , jobject jobj , jobject cptr)
+  (JNIEnv * env , jobject jobj , jlong ptr)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    lua_close( L );
 }
@@ -2516,22 +2680,19 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1close
 ************************************************************************/
 
 JNIEXPORT jobject JNICALL Java_org_keplerproject_luajava_LuaState__1newthread
-  (JNIEnv * env , jobject jobj , jobject cptr)
+  (JNIEnv * env , jobject jobj , jlong ptr)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
    lua_State * newThread;
    
    jobject obj;
-   jclass tempClass;
     
    newThread = lua_newthread( L );
 
-   tempClass = ( *env )->FindClass( env , "org/keplerproject/luajava/CPtr" );
-   obj = ( *env )->AllocObject( env , tempClass );
+   obj = ( *env )->AllocObject( env , cptr_class );
    if ( obj )
    {
-      ( *env )->SetLongField( env , obj , ( *env )->GetFieldID( env , tempClass ,
-                                                        "peer" , "J" ), ( jlong ) L );
+      ( *env )->SetLongField( env , obj , cptr_peer_field , ( jlong ) L );
    }
 
    return obj;
@@ -2545,9 +2706,9 @@ JNIEXPORT jobject JNICALL Java_org_keplerproject_luajava_LuaState__1newthread
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1getTop
-  (JNIEnv * env , jobject jobj , jobject cptr)
+  (JNIEnv * env , jobject jobj , jlong ptr)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jint ) lua_gettop( L );
 }
@@ -2559,9 +2720,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1getTop
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1setTop
-  (JNIEnv * env , jobject jobj , jobject cptr , jint top)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint top)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    lua_settop( L , ( int ) top );
 }
@@ -2573,9 +2734,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1setTop
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushValue
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    lua_pushvalue( L , ( int ) idx );
 }
@@ -2587,9 +2748,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushValue
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1remove
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    lua_remove( L , ( int ) idx );
 }
@@ -2601,9 +2762,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1remove
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1insert
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    lua_insert( L , ( int ) idx );
 }
@@ -2615,9 +2776,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1insert
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1replace
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    lua_replace( L , ( int ) idx );
 }
@@ -2629,9 +2790,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1replace
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1checkStack
-  (JNIEnv * env , jobject jobj , jobject cptr , jint sz)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint sz)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jint ) lua_checkstack( L , ( int ) sz );
 }
@@ -2643,10 +2804,10 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1checkStack
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1xmove
-  (JNIEnv * env , jobject jobj , jobject from , jobject to , jint n)
+  (JNIEnv * env , jobject jobj , jlong from , jlong to , jint n)
 {
-   lua_State * fr = getStateFromCPtr( env , from );
-   lua_State * t  = getStateFromCPtr( env , to );
+   lua_State * fr = getStateFromPeer( from );
+   lua_State * t  = getStateFromPeer( to );
 
    lua_xmove( fr , t , ( int ) n );
 }
@@ -2658,9 +2819,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1xmove
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1isNumber
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jint ) lua_isnumber( L , ( int ) idx );
 }
@@ -2672,9 +2833,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1isNumber
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1isString
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jint ) lua_isstring( L , ( int ) idx );
 }
@@ -2686,9 +2847,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1isString
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1isFunction
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jint ) lua_isfunction( L , ( int ) idx );
 }
@@ -2700,9 +2861,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1isFunction
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1isCFunction
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jint ) lua_iscfunction( L , ( int ) idx );
 }
@@ -2714,9 +2875,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1isCFunction
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1isUserdata
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jint ) lua_isuserdata( L , ( int ) idx );
 }
@@ -2728,9 +2889,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1isUserdata
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1isTable
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jint ) lua_istable( L , ( int ) idx );
 }
@@ -2742,9 +2903,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1isTable
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1isBoolean
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jint ) lua_isboolean( L , ( int ) idx );
 }
@@ -2756,9 +2917,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1isBoolean
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1isNil
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jint ) lua_isnil( L , ( int ) idx );
 }
@@ -2770,9 +2931,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1isNil
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1isNone
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jint ) lua_isnone( L , ( int ) idx );
 }
@@ -2784,9 +2945,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1isNone
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1isNoneOrNil
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jint ) lua_isnoneornil( L , ( int ) idx );
 }
@@ -2798,9 +2959,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1isNoneOrNil
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1type
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jint ) lua_type( L , ( int ) idx );
 }
@@ -2812,9 +2973,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1type
 ************************************************************************/
 
 JNIEXPORT jstring JNICALL Java_org_keplerproject_luajava_LuaState__1typeName
-  (JNIEnv * env , jobject jobj , jobject cptr , jint tp)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint tp)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    const char * name = lua_typename( L , tp );
 
@@ -2828,9 +2989,9 @@ JNIEXPORT jstring JNICALL Java_org_keplerproject_luajava_LuaState__1typeName
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1equal
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx1 , jint idx2)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx1 , jint idx2)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jint ) lua_equal( L , idx1 , idx2 );
 }
@@ -2842,9 +3003,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1equal
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1rawequal
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx1 , jint idx2)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx1 , jint idx2)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jint ) lua_rawequal( L , idx1 , idx2 );
 }
@@ -2856,9 +3017,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1rawequal
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1lessthan
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx1 , jint idx2)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx1 , jint idx2)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jint ) lua_lessthan( L , idx1 ,idx2 );
 }
@@ -2870,9 +3031,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1lessthan
 ************************************************************************/
 
 JNIEXPORT jdouble JNICALL Java_org_keplerproject_luajava_LuaState__1toNumber
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jdouble ) lua_tonumber( L , idx );
 }
@@ -2884,9 +3045,9 @@ JNIEXPORT jdouble JNICALL Java_org_keplerproject_luajava_LuaState__1toNumber
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1toInteger
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jint ) lua_tointeger( L , idx );
 }
@@ -2898,9 +3059,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1toInteger
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1toBoolean
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jint ) lua_toboolean( L , idx );
 }
@@ -2912,9 +3073,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1toBoolean
 ************************************************************************/
 
 JNIEXPORT jstring JNICALL Java_org_keplerproject_luajava_LuaState__1toString
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    const char * str = lua_tostring( L , idx );
 
@@ -2928,9 +3089,9 @@ JNIEXPORT jstring JNICALL Java_org_keplerproject_luajava_LuaState__1toString
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1strlen
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jint ) lua_strlen( L , idx );
 }
@@ -2942,37 +3103,340 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1strlen
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1objlen
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jint ) lua_objlen( L , idx );
 }
 
 
+/************************************************************************
+*   JNI Called function
+*      Lua Exported Function
+************************************************************************/
+
+JNIEXPORT jboolean JNICALL Java_org_keplerproject_luajava_LuaState__1isArrayTable
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
+{
+   lua_State * L = getStateFromPeer( ptr );
+   int t = ( int ) idx;
+   size_t len;
+   size_t count = 0;
+   lua_Number key;
+
+   if ( t < 0 && t > LUA_REGISTRYINDEX )
+   {
+      t = lua_gettop( L ) + t + 1;
+   }
+
+   /* the keys must be exactly 1..len */
+   len = lua_objlen( L , t );
+   lua_pushnil( L );
+   while ( lua_next( L , t ) != 0 )
+   {
+      lua_pop( L , 1 );
+      if ( lua_type( L , -1 ) != LUA_TNUMBER )
+      {
+         lua_pop( L , 1 );
+         return JNI_FALSE;
+      }
+      key = lua_tonumber( L , -1 );
+      if ( key < 1 || key > ( lua_Number ) len || key != ( lua_Number ) ( size_t ) key )
+      {
+         lua_pop( L , 1 );
+         return JNI_FALSE;
+      }
+      count++;
+   }
+
+   return count == len ? JNI_TRUE : JNI_FALSE;
+}
+
+
+/************************************************************************
+*   Converts a lua number the way Java narrows a double: NaN becomes 0
+*   and values out of range saturate
+************************************************************************/
+
+static jint toJavaInt( lua_Number n )
+{
+   if ( n != n )
+      return 0;
+   if ( n >= 2147483647.0 )
+      return ( jint ) 0x7fffffff;
+   if ( n <= -2147483648.0 )
+      return ( jint ) ( -0x7fffffff - 1 );
+   return ( jint ) n;
+}
+
+static jlong toJavaLong( lua_Number n )
+{
+   if ( n != n )
+      return 0;
+   if ( n >= 9223372036854775807.0 )
+      return ( jlong ) 0x7fffffffffffffffLL;
+   if ( n <= -9223372036854775808.0 )
+      return ( jlong ) ( -0x7fffffffffffffffLL - 1 );
+   return ( jlong ) n;
+}
+
+
+/************************************************************************
+*   JNI Called function
+*      LuaJava API Function
+*
+*   Copies t[1] .. t[#array] into a primitive array while it is pinned.
+*   Returns 0 on success, the 1 based index of the first element that is
+*   not a number (a boolean for boolean arrays) or -1 if the array could
+*   not be pinned.
+************************************************************************/
+
+JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1toPrimitiveArray
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx , jarray array , jchar type)
+{
+   lua_State * L = getStateFromPeer( ptr );
+   int t = ( int ) idx;
+   jsize len;
+   jsize i;
+   jint failed = 0;
+   lua_Number n;
+   void * elements;
+
+   if ( t < 0 && t > LUA_REGISTRYINDEX )
+   {
+      t = lua_gettop( L ) + t + 1;
+   }
+
+   len = ( *env )->GetArrayLength( env , array );
+   elements = ( *env )->GetPrimitiveArrayCritical( env , array , NULL );
+   if ( elements == NULL )
+   {
+      return -1;
+   }
+
+   /* no JNI calls until the array is released */
+   for ( i = 0 ; i < len ; i++ )
+   {
+      lua_rawgeti( L , t , i + 1 );
+      if ( type == 'Z' )
+      {
+         if ( lua_type( L , -1 ) != LUA_TBOOLEAN )
+         {
+            failed = i + 1;
+         }
+         else
+         {
+            ( ( jboolean * ) elements )[ i ] = lua_toboolean( L , -1 ) ? JNI_TRUE : JNI_FALSE;
+         }
+      }
+      else if ( lua_type( L , -1 ) != LUA_TNUMBER )
+      {
+         failed = i + 1;
+      }
+      else
+      {
+         n = lua_tonumber( L , -1 );
+         switch ( type )
+         {
+            case 'D': ( ( jdouble * ) elements )[ i ] = ( jdouble ) n; break;
+            case 'F': ( ( jfloat * ) elements )[ i ] = ( jfloat ) n; break;
+            case 'J': ( ( jlong * ) elements )[ i ] = toJavaLong( n ); break;
+            case 'I': ( ( jint * ) elements )[ i ] = toJavaInt( n ); break;
+            case 'S': ( ( jshort * ) elements )[ i ] = ( jshort ) toJavaInt( n ); break;
+            case 'B': ( ( jbyte * ) elements )[ i ] = ( jbyte ) toJavaInt( n ); break;
+         }
+      }
+      lua_pop( L , 1 );
+      if ( failed != 0 )
+      {
+         break;
+      }
+   }
+
+   ( *env )->ReleasePrimitiveArrayCritical( env , array , elements , failed == 0 ? 0 : JNI_ABORT );
+   return failed;
+}
+
+
+/************************************************************************
+*   JNI Called function
+*      LuaJava API Function
+*
+*   Pushes a new table holding the elements of a primitive array. The
+*   array is copied in chunks so the table may allocate while filling.
+************************************************************************/
+
+JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushPrimitiveArray
+  (JNIEnv * env , jobject jobj , jlong ptr , jarray array , jchar type)
+{
+   lua_State * L = getStateFromPeer( ptr );
+   jsize len;
+   jsize i;
+   jsize j;
+   jsize n;
+   union
+   {
+      jdouble  d[ PUSH_CHUNK_SIZE ];
+      jfloat   f[ PUSH_CHUNK_SIZE ];
+      jlong    l[ PUSH_CHUNK_SIZE ];
+      jint     i[ PUSH_CHUNK_SIZE ];
+      jshort   s[ PUSH_CHUNK_SIZE ];
+      jbyte    b[ PUSH_CHUNK_SIZE ];
+      jboolean z[ PUSH_CHUNK_SIZE ];
+   } chunk;
+
+   len = ( *env )->GetArrayLength( env , array );
+   lua_createtable( L , ( int ) len , 0 );
+
+   for ( i = 0 ; i < len ; i += n )
+   {
+      n = len - i < PUSH_CHUNK_SIZE ? len - i : PUSH_CHUNK_SIZE;
+      switch ( type )
+      {
+         case 'D':
+            ( *env )->GetDoubleArrayRegion( env , ( jdoubleArray ) array , i , n , chunk.d );
+            for ( j = 0 ; j < n ; j++ )
+            {
+               lua_pushnumber( L , ( lua_Number ) chunk.d[ j ] );
+               lua_rawseti( L , -2 , i + j + 1 );
+            }
+            break;
+         case 'F':
+            ( *env )->GetFloatArrayRegion( env , ( jfloatArray ) array , i , n , chunk.f );
+            for ( j = 0 ; j < n ; j++ )
+            {
+               lua_pushnumber( L , ( lua_Number ) chunk.f[ j ] );
+               lua_rawseti( L , -2 , i + j + 1 );
+            }
+            break;
+         case 'J':
+            ( *env )->GetLongArrayRegion( env , ( jlongArray ) array , i , n , chunk.l );
+            for ( j = 0 ; j < n ; j++ )
+            {
+               lua_pushnumber( L , ( lua_Number ) chunk.l[ j ] );
+               lua_rawseti( L , -2 , i + j + 1 );
+            }
+            break;
+         case 'I':
+            ( *env )->GetIntArrayRegion( env , ( jintArray ) array , i , n , chunk.i );
+            for ( j = 0 ; j < n ; j++ )
+            {
+               lua_pushnumber( L , ( lua_Number ) chunk.i[ j ] );
+               lua_rawseti( L , -2 , i + j + 1 );
+            }
+            break;
+         case 'S':
+            ( *env )->GetShortArrayRegion( env , ( jshortArray ) array , i , n , chunk.s );
+            for ( j = 0 ; j < n ; j++ )
+            {
+               lua_pushnumber( L , ( lua_Number ) chunk.s[ j ] );
+               lua_rawseti( L , -2 , i + j + 1 );
+            }
+            break;
+         case 'B':
+            ( *env )->GetByteArrayRegion( env , ( jbyteArray ) array , i , n , chunk.b );
+            for ( j = 0 ; j < n ; j++ )
+            {
+               lua_pushnumber( L , ( lua_Number ) chunk.b[ j ] );
+               lua_rawseti( L , -2 , i + j + 1 );
+            }
+            break;
+         case 'Z':
+            ( *env )->GetBooleanArrayRegion( env , ( jbooleanArray ) array , i , n , chunk.z );
+            for ( j = 0 ; j < n ; j++ )
+            {
+               lua_pushboolean( L , chunk.z[ j ] != JNI_FALSE );
+               lua_rawseti( L , -2 , i + j + 1 );
+            }
+            break;
+      }
+   }
+}
+
+
+/************************************************************************
+*   JNI Called function
+*      LuaJava API Function
+*
+*   Pushes a new table built from values encoded by TableEncoding, either
+*   a sequence or key/value pairs. Pairs whose key is nil or NaN are
+*   skipped, Lua tables can not hold them.
+************************************************************************/
+
+JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushTable
+  (JNIEnv * env , jobject jobj , jlong ptr , jbyteArray tags , jdoubleArray numbers ,
+   jobjectArray objects , jint count , jboolean pairs)
+{
+   lua_State * L = getStateFromPeer( ptr );
+   jbyte * cTags;
+   jdouble * cNumbers;
+   jint i;
+
+   cTags = ( *env )->GetByteArrayElements( env , tags , NULL );
+   if ( cTags == NULL )
+   {
+      return;
+   }
+   cNumbers = ( *env )->GetDoubleArrayElements( env , numbers , NULL );
+   if ( cNumbers == NULL )
+   {
+      ( *env )->ReleaseByteArrayElements( env , tags , cTags , JNI_ABORT );
+      return;
+   }
+
+   if ( pairs )
+   {
+      lua_createtable( L , 0 , ( int ) ( count / 2 ) );
+      for ( i = 0 ; i + 1 < count ; i += 2 )
+      {
+         pushEncodedValue( env , L , cTags[ i ] , cNumbers[ i ] , objects , i );
+         /* nil and NaN keys would raise an unprotected error, skip them */
+         if ( lua_isnil( L , -1 ) ||
+              ( lua_type( L , -1 ) == LUA_TNUMBER && lua_tonumber( L , -1 ) != lua_tonumber( L , -1 ) ) )
+         {
+            lua_pop( L , 1 );
+            continue;
+         }
+         pushEncodedValue( env , L , cTags[ i + 1 ] , cNumbers[ i + 1 ] , objects , i + 1 );
+         lua_rawset( L , -3 );
+      }
+   }
+   else
+   {
+      lua_createtable( L , ( int ) count , 0 );
+      for ( i = 0 ; i < count ; i++ )
+      {
+         pushEncodedValue( env , L , cTags[ i ] , cNumbers[ i ] , objects , i );
+         lua_rawseti( L , -2 , i + 1 );
+      }
+   }
+
+   ( *env )->ReleaseDoubleArrayElements( env , numbers , cNumbers , JNI_ABORT );
+   ( *env )->ReleaseByteArrayElements( env , tags , cTags , JNI_ABORT );
+}
+
+
 /************************************************************************
 *   JNI Called function
 *      Lua Exported Function
 ************************************************************************/
 
 JNIEXPORT jobject JNICALL Java_org_keplerproject_luajava_LuaState__1toThread
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
    lua_State * L , * thr;
 
    jobject obj;
-   jclass tempClass;
 
-   L = getStateFromCPtr( env , cptr );
+   L = getStateFromPeer( ptr );
 
    thr = lua_tothread( L , ( int ) idx );
 
-   tempClass = ( *env )->FindClass( env , "org/keplerproject/luajava/CPtr" );
-    
-   obj = ( *env )->AllocObject( env , tempClass );
+   obj = ( *env )->AllocObject( env , cptr_class );
    if ( obj )
    {
-      ( *env )->SetLongField( env , obj , ( *env )->GetFieldID( env , tempClass , "peer", "J" ) , ( jlong ) thr );
+      ( *env )->SetLongField( env , obj , cptr_peer_field , ( jlong ) thr );
    }
    return obj;
 
@@ -2985,9 +3449,9 @@ JNIEXPORT jobject JNICALL Java_org_keplerproject_luajava_LuaState__1toThread
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushNil
-  (JNIEnv * env , jobject jobj , jobject cptr)
+  (JNIEnv * env , jobject jobj , jlong ptr)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    lua_pushnil( L );
 }
@@ -2999,9 +3463,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushNil
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushNumber
-  (JNIEnv * env , jobject jobj , jobject cptr , jdouble number)
+  (JNIEnv * env , jobject jobj , jlong ptr , jdouble number)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    lua_pushnumber( L , ( lua_Number ) number );
 }
@@ -3013,9 +3477,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushNumber
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushInteger
-  (JNIEnv * env , jobject jobj , jobject cptr , jint number)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint number)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    lua_pushinteger( L, ( lua_Integer ) number );
 }
@@ -3026,10 +3490,10 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushInteger
 *      Lua Exported Function
 ************************************************************************/
 
-JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushString__Lorg_keplerproject_luajava_CPtr_2Ljava_lang_String_2
-  (JNIEnv * env , jobject jobj , jobject cptr , jstring str)
+JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushString__JLjava_lang_String_2
+  (JNIEnv * env , jobject jobj , jlong ptr , jstring str)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
    const char * uniStr;
 
    uniStr =  ( *env )->GetStringUTFChars( env , str , NULL );
@@ -3048,17 +3512,68 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushString__Lor
 *      Lua Exported Function
 ************************************************************************/
 
-JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushString__Lorg_keplerproject_luajava_CPtr_2_3BI
-  (JNIEnv * env , jobject jobj , jobject cptr , jbyteArray bytes , jint n)
+JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushString__J_3BI
+  (JNIEnv * env , jobject jobj , jlong ptr , jbyteArray bytes , jint n)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
    char * cBytes;
    
    cBytes = ( char * ) ( *env )->GetByteArrayElements( env , bytes, NULL );
    
    lua_pushlstring( L , cBytes , n );
    
-   ( *env )->ReleaseByteArrayElements( env , bytes , cBytes , 0 );
+   /* read only, nothing to copy back */
+   ( *env )->ReleaseByteArrayElements( env , bytes , ( jbyte * ) cBytes , JNI_ABORT );
+}
+
+
+/************************************************************************
+*   JNI Called function
+*      LuaJava API Function
+*
+*   Pushes length bytes of a direct buffer, starting at offset, as a
+*   string. The bytes are copied once, into the Lua string.
+************************************************************************/
+
+JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushDirectBuffer
+  (JNIEnv * env , jobject jobj , jlong ptr , jobject buffer , jint offset , jint length)
+{
+   lua_State * L = getStateFromPeer( ptr );
+   const char * address;
+
+   address = ( const char * ) ( *env )->GetDirectBufferAddress( env , buffer );
+   if ( address == NULL )
+   {
+      ( *env )->ThrowNew( env , luajava_exception_class , "Buffer is not a direct buffer" );
+      return;
+   }
+
+   lua_pushlstring( L , address + offset , ( size_t ) length );
+}
+
+
+/************************************************************************
+*   JNI Called function
+*      LuaJava API Function
+*
+*   Returns a direct buffer over the bytes of the string at the given
+*   index, without copying them. NULL if the value is not a string.
+************************************************************************/
+
+JNIEXPORT jobject JNICALL Java_org_keplerproject_luajava_LuaState__1toStringView
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
+{
+   lua_State * L = getStateFromPeer( ptr );
+   const char * str;
+   size_t len;
+
+   if ( lua_type( L , idx ) != LUA_TSTRING )
+   {
+      return NULL;
+   }
+
+   str = lua_tolstring( L , idx , &len );
+   return ( *env )->NewDirectByteBuffer( env , ( void * ) str , ( jlong ) len );
 }
 
 
@@ -3068,9 +3583,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushString__Lor
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushBoolean
-  (JNIEnv * env , jobject jobj , jobject cptr , jint jbool)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint jbool)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    lua_pushboolean( L , ( int ) jbool );
 }
@@ -3082,9 +3597,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushBoolean
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1getTable
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    lua_gettable( L , ( int ) idx );
 }
@@ -3096,9 +3611,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1getTable
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1getField
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx , jstring k)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx , jstring k)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    const char * uniStr;
    uniStr =  ( *env )->GetStringUTFChars( env , k , NULL );
@@ -3108,15 +3623,38 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1getField
    ( *env )->ReleaseStringUTFChars( env , k , uniStr );
 }
 
+
+/************************************************************************
+*   JNI Called function
+*      LuaJava API Function
+*
+*   t[k] where k is the string referenced by ref in the registry
+************************************************************************/
+
+JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1getFieldKey
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx , jint ref)
+{
+   lua_State * L = getStateFromPeer( ptr );
+   int t = ( int ) idx;
+
+   if ( t < 0 && t > LUA_REGISTRYINDEX )
+   {
+      t = lua_gettop( L ) + t + 1;
+   }
+
+   lua_rawgeti( L , LUA_REGISTRYINDEX , ( int ) ref );
+   lua_gettable( L , t );
+}
+
 /************************************************************************
 *   JNI Called function
 *      Lua Exported Function
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1rawGet
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    lua_rawget( L , (int)idx );
 }
@@ -3128,9 +3666,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1rawGet
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1rawGetI
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx, jint n)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx, jint n)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    lua_rawgeti( L , idx , n );
 }
@@ -3142,9 +3680,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1rawGetI
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1createTable
-  (JNIEnv * env , jobject jobj , jobject cptr , jint narr , jint nrec)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint narr , jint nrec)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    lua_createtable( L , ( int ) narr , ( int ) nrec );
 }
@@ -3156,9 +3694,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1createTable
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1newTable
-  (JNIEnv * env , jobject jobj , jobject cptr)
+  (JNIEnv * env , jobject jobj , jlong ptr)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    lua_newtable( L );
 }
@@ -3170,9 +3708,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1newTable
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1getMetaTable
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return lua_getmetatable( L , idx );
 }
@@ -3184,9 +3722,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1getMetaTable
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1getFEnv
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    lua_getfenv( L , ( int ) idx );
 }
@@ -3198,9 +3736,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1getFEnv
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1setTable
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    lua_settable( L , ( int ) idx );
 }
@@ -3212,9 +3750,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1setTable
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1setField
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx , jstring k)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx , jstring k)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    const char * uniStr;
    uniStr =  ( *env )->GetStringUTFChars( env , k , NULL );
@@ -3225,15 +3763,40 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1setField
 }
 
 
+/************************************************************************
+*   JNI Called function
+*      LuaJava API Function
+*
+*   t[k] = v where k is the string referenced by ref in the registry and
+*   v the value at the top of the stack, which is popped
+************************************************************************/
+
+JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1setFieldKey
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx , jint ref)
+{
+   lua_State * L = getStateFromPeer( ptr );
+   int t = ( int ) idx;
+
+   if ( t < 0 && t > LUA_REGISTRYINDEX )
+   {
+      t = lua_gettop( L ) + t + 1;
+   }
+
+   lua_rawgeti( L , LUA_REGISTRYINDEX , ( int ) ref );
+   lua_insert( L , -2 );
+   lua_settable( L , t );
+}
+
+
 /************************************************************************
 *   JNI Called function
 *      Lua Exported Function
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1rawSet
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    lua_rawset( L , (int)idx );
 }
@@ -3245,9 +3808,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1rawSet
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1rawSetI
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx, jint n)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx, jint n)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    lua_rawseti( L , idx , n );
 }
@@ -3259,9 +3822,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1rawSetI
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1setMetaTable
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return lua_setmetatable( L , idx );
 }
@@ -3273,9 +3836,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1setMetaTable
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1setFEnv
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return lua_setfenv( L , idx );
 }
@@ -3287,9 +3850,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1setFEnv
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1call
-  (JNIEnv * env , jobject jobj , jobject cptr , jint nArgs , jint nResults)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint nArgs , jint nResults)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    lua_call( L , nArgs , nResults );
 }
@@ -3301,23 +3864,148 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1call
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1pcall
-  (JNIEnv * env , jobject jobj , jobject cptr , jint nArgs , jint nResults , jint errFunc)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint nArgs , jint nResults , jint errFunc)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jint ) lua_pcall( L , nArgs , nResults , errFunc );
 }
 
 
+/************************************************************************
+*   JNI Called function
+*      LuaJava API Function
+*
+*   Calls the function on top of the stack once per record. Record r
+*   takes in[0][r] .. in[n-1][r] as arguments, its results are stored
+*   into out[0][r] .. out[m-1][r]. The function is popped. Without a
+*   failed array the loop stops at the first failed record, pushes its
+*   error message and returns its index, -1 if no record failed. With a
+*   failed array the results of a failed record are set to NaN, its index
+*   is stored and the number of failed records is returned. Returns -2
+*   with an error message pushed if the call could not be set up.
+************************************************************************/
+
+JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1callMany
+  (JNIEnv * env , jobject jobj , jlong ptr , jobjectArray in , jobjectArray out , jint count , jintArray failed)
+{
+   lua_State * L = getStateFromPeer( ptr );
+   int func = lua_gettop( L );
+   jsize nargs = ( *env )->GetArrayLength( env , in );
+   jsize nres = ( *env )->GetArrayLength( env , out );
+   jsize maxFailed = failed == NULL ? 0 : ( *env )->GetArrayLength( env , failed );
+   jdoubleArray * columns;
+   jdouble ** values;
+   jint * failedIdx = NULL;
+   jint failures = 0;
+   jint ret = -1;
+   jint r;
+   jsize k;
+
+   if ( !lua_checkstack( L , nargs + nres + 1 ) )
+   {
+      lua_pop( L , 1 );
+      lua_pushstring( L , "Too many arguments or results." );
+      return -2;
+   }
+
+   columns = ( jdoubleArray * ) malloc( sizeof( jdoubleArray ) * ( nargs + nres + 1 ) );
+   values = ( jdouble ** ) malloc( sizeof( jdouble * ) * ( nargs + nres + 1 ) );
+   if ( columns == NULL || values == NULL )
+   {
+      free( columns );
+      free( values );
+      lua_pop( L , 1 );
+      lua_pushstring( L , "Out of memory." );
+      return -2;
+   }
+
+   for ( k = 0 ; k < nargs + nres ; k++ )
+   {
+      columns[ k ] = ( jdoubleArray ) ( *env )->GetObjectArrayElement( env , k < nargs ? in : out ,
+                                                                     k < nargs ? k : k - nargs );
+      values[ k ] = ( *env )->GetDoubleArrayElements( env , columns[ k ] , NULL );
+   }
+   if ( maxFailed > 0 )
+   {
+      failedIdx = ( *env )->GetIntArrayElements( env , failed , NULL );
+   }
+
+   for ( r = 0 ; r < count ; r++ )
+   {
+      int status;
+
+      lua_pushvalue( L , func );
+      for ( k = 0 ; k < nargs ; k++ )
+      {
+         lua_pushnumber( L , ( lua_Number ) values[ k ][ r ] );
+      }
+      status = lua_pcall( L , nargs , nres , 0 );
+      if ( status == 0 )
+      {
+         for ( k = 0 ; k < nres ; k++ )
+         {
+            if ( lua_type( L , func + 1 + k ) != LUA_TNUMBER )
+            {
+               lua_settop( L , func );
+               lua_pushfstring( L , "Result %d is not a number." , ( int ) k + 1 );
+               status = 1;
+               break;
+            }
+            values[ nargs + k ][ r ] = ( jdouble ) lua_tonumber( L , func + 1 + k );
+         }
+      }
+      if ( status == 0 )
+      {
+         lua_settop( L , func );
+         continue;
+      }
+
+      /* error message on top */
+      if ( failed == NULL )
+      {
+         ret = r;
+         break;
+      }
+      lua_settop( L , func );
+      for ( k = 0 ; k < nres ; k++ )
+      {
+         values[ nargs + k ][ r ] = ( jdouble ) NAN;
+      }
+      if ( failures < maxFailed )
+      {
+         failedIdx[ failures ] = r;
+      }
+      failures++;
+   }
+
+   if ( failedIdx != NULL )
+   {
+      ( *env )->ReleaseIntArrayElements( env , failed , failedIdx , 0 );
+   }
+   for ( k = 0 ; k < nargs + nres ; k++ )
+   {
+      ( *env )->ReleaseDoubleArrayElements( env , columns[ k ] , values[ k ] , k < nargs ? JNI_ABORT : 0 );
+      ( *env )->DeleteLocalRef( env , columns[ k ] );
+   }
+   free( columns );
+   free( values );
+
+   /* drop the function, keeping an error message */
+   lua_remove( L , func );
+   return failed == NULL ? ret : failures;
+}
+
+
 /************************************************************************
 *   JNI Called function
 *      Lua Exported Function
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1yield
-  (JNIEnv * env , jobject jobj , jobject cptr , jint nResults)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint nResults)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jint ) lua_yield( L , nResults );
 }
@@ -3329,9 +4017,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1yield
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1resume
-  (JNIEnv * env , jobject jobj , jobject cptr , jint nArgs)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint nArgs)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jint ) lua_resume( L , nArgs );
 }
@@ -3343,9 +4031,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1resume
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1status
-  (JNIEnv * env , jobject jobj , jobject cptr)
+  (JNIEnv * env , jobject jobj , jlong ptr)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jint ) lua_status( L );
 }
@@ -3357,9 +4045,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1status
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1gc
-  (JNIEnv * env , jobject jobj , jobject cptr , jint what , jint data)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint what , jint data)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jint ) lua_gc( L , what , data );
 }
@@ -3371,9 +4059,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1gc
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1getGcCount
-  (JNIEnv * env , jobject jobj , jobject cptr)
+  (JNIEnv * env , jobject jobj , jlong ptr)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jint ) lua_getgccount( L );
 }
@@ -3385,9 +4073,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1getGcCount
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1next
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jint ) lua_next( L , idx );
 }
@@ -3399,9 +4087,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1next
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1error
-  (JNIEnv * env , jobject jobj , jobject cptr)
+  (JNIEnv * env , jobject jobj , jlong ptr)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jint ) lua_error( L );
 }
@@ -3413,9 +4101,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1error
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1concat
-  (JNIEnv * env , jobject jobj , jobject cptr , jint n)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint n)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    lua_concat( L , n );
 }
@@ -3427,9 +4115,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1concat
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pop
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    lua_pop( L , ( int ) idx );
 }
@@ -3441,9 +4129,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pop
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1setGlobal
-  (JNIEnv * env , jobject jobj , jobject cptr , jstring name)
+  (JNIEnv * env , jobject jobj , jlong ptr , jstring name)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    const char * str = ( *env )->GetStringUTFChars( env , name, NULL );
 
@@ -3459,9 +4147,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1setGlobal
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1getGlobal
-  (JNIEnv * env , jobject jobj , jobject cptr , jstring name)
+  (JNIEnv * env , jobject jobj , jlong ptr , jstring name)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    const char * str = ( *env )->GetStringUTFChars( env , name, NULL );
 
@@ -3477,9 +4165,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1getGlobal
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1LdoFile
-  (JNIEnv * env , jobject jobj , jobject cptr , jstring fileName)
+  (JNIEnv * env , jobject jobj , jlong ptr , jstring fileName)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    const char * file = ( *env )->GetStringUTFChars( env , fileName, NULL );
 
@@ -3499,9 +4187,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1LdoFile
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1LdoString
-  (JNIEnv * env , jobject jobj , jobject cptr , jstring str)
+  (JNIEnv * env , jobject jobj , jlong ptr , jstring str)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    const char * utfStr = ( * env )->GetStringUTFChars( env , str , NULL );
 
@@ -3519,9 +4207,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1LdoString
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1LgetMetaField
-  (JNIEnv * env , jobject jobj , jobject cptr , jint obj , jstring e)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint obj , jstring e)
 {
-   lua_State * L    = getStateFromCPtr( env , cptr );
+   lua_State * L    = getStateFromPeer( ptr );
    const char * str = ( *env )->GetStringUTFChars( env , e , NULL );
    int ret;
 
@@ -3539,9 +4227,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1LgetMetaField
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1LcallMeta
-  (JNIEnv * env , jobject jobj , jobject cptr , jint obj , jstring e)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint obj , jstring e)
 {
-   lua_State * L    = getStateFromCPtr( env , cptr );
+   lua_State * L    = getStateFromPeer( ptr );
    const char * str = ( *env )->GetStringUTFChars( env , e , NULL );
    int ret;
 
@@ -3559,9 +4247,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1LcallMeta
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1Ltyperror
-  (JNIEnv * env , jobject jobj , jobject cptr , jint nArg , jstring tName)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint nArg , jstring tName)
 {
-   lua_State * L     = getStateFromCPtr( env , cptr );
+   lua_State * L     = getStateFromPeer( ptr );
    const char * name = ( *env )->GetStringUTFChars( env , tName , NULL );
    int ret;
 
@@ -3579,9 +4267,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1Ltyperror
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1LargError
-  (JNIEnv * env , jobject jobj , jobject cptr , jint numArg , jstring extraMsg)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint numArg , jstring extraMsg)
 {
-   lua_State * L    = getStateFromCPtr( env , cptr );
+   lua_State * L    = getStateFromPeer( ptr );
    const char * msg = ( *env )->GetStringUTFChars( env , extraMsg , NULL );
    int ret;
 
@@ -3599,9 +4287,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1LargError
 ************************************************************************/
 
 JNIEXPORT jstring JNICALL Java_org_keplerproject_luajava_LuaState__1LcheckString
-  (JNIEnv * env , jobject jobj , jobject cptr , jint numArg)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint numArg)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
    const char * res;
 
    res = luaL_checkstring( L , ( int ) numArg );
@@ -3616,9 +4304,9 @@ JNIEXPORT jstring JNICALL Java_org_keplerproject_luajava_LuaState__1LcheckString
 ************************************************************************/
 
 JNIEXPORT jstring JNICALL Java_org_keplerproject_luajava_LuaState__1LoptString
-  (JNIEnv * env , jobject jobj , jobject cptr , jint numArg , jstring def)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint numArg , jstring def)
 {
-   lua_State * L  = getStateFromCPtr( env , cptr );
+   lua_State * L  = getStateFromPeer( ptr );
    const char * d = ( *env )->GetStringUTFChars( env , def , NULL );
    const char * res;
    jstring ret;
@@ -3639,9 +4327,9 @@ JNIEXPORT jstring JNICALL Java_org_keplerproject_luajava_LuaState__1LoptString
 ************************************************************************/
 
 JNIEXPORT jdouble JNICALL Java_org_keplerproject_luajava_LuaState__1LcheckNumber
-  (JNIEnv * env , jobject jobj , jobject cptr , jint numArg)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint numArg)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jdouble ) luaL_checknumber( L , ( int ) numArg );
 }
@@ -3653,9 +4341,9 @@ JNIEXPORT jdouble JNICALL Java_org_keplerproject_luajava_LuaState__1LcheckNumber
 ************************************************************************/
 
 JNIEXPORT jdouble JNICALL Java_org_keplerproject_luajava_LuaState__1LoptNumber
-  (JNIEnv * env , jobject jobj , jobject cptr , jint numArg , jdouble def)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint numArg , jdouble def)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jdouble ) luaL_optnumber( L , ( int ) numArg , ( lua_Number ) def );
 }
@@ -3667,9 +4355,9 @@ JNIEXPORT jdouble JNICALL Java_org_keplerproject_luajava_LuaState__1LoptNumber
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1LcheckInteger
-  (JNIEnv * env , jobject jobj , jobject cptr , jint numArg)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint numArg)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jint ) luaL_checkinteger( L , ( int ) numArg );
 }
@@ -3681,9 +4369,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1LcheckInteger
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1LoptInteger
-  (JNIEnv * env , jobject jobj , jobject cptr , jint numArg , jint def)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint numArg , jint def)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jint ) luaL_optinteger( L , ( int ) numArg , ( lua_Integer ) def );
 }
@@ -3695,9 +4383,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1LoptInteger
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1LcheckStack
-  (JNIEnv * env , jobject jobj , jobject cptr , jint sz , jstring msg)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint sz , jstring msg)
 {
-   lua_State * L  = getStateFromCPtr( env , cptr );
+   lua_State * L  = getStateFromPeer( ptr );
    const char * m = ( *env )->GetStringUTFChars( env , msg , NULL );
 
    luaL_checkstack( L , ( int ) sz , m );
@@ -3712,9 +4400,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1LcheckStack
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1LcheckType
-  (JNIEnv * env , jobject jobj , jobject cptr , jint nArg , jint t)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint nArg , jint t)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    luaL_checktype( L , ( int ) nArg , ( int ) t );
 }
@@ -3726,9 +4414,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1LcheckType
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1LcheckAny
-  (JNIEnv * env , jobject jobj , jobject cptr , jint nArg)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint nArg)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    luaL_checkany( L , ( int ) nArg );
 }
@@ -3740,9 +4428,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1LcheckAny
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1LnewMetatable
-  (JNIEnv * env , jobject jobj , jobject cptr , jstring tName)
+  (JNIEnv * env , jobject jobj , jlong ptr , jstring tName)
 {
-   lua_State * L     = getStateFromCPtr( env , cptr );
+   lua_State * L     = getStateFromPeer( ptr );
    const char * name = ( *env )->GetStringUTFChars( env , tName , NULL );
    int ret;
 
@@ -3760,9 +4448,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1LnewMetatable
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1LgetMetatable
-  (JNIEnv * env , jobject jobj , jobject cptr , jstring tName)
+  (JNIEnv * env , jobject jobj , jlong ptr , jstring tName)
 {
-   lua_State * L     = getStateFromCPtr( env , cptr );
+   lua_State * L     = getStateFromPeer( ptr );
    const char * name = ( *env )->GetStringUTFChars( env , tName , NULL );
 
    luaL_getmetatable( L , name );
@@ -3777,9 +4465,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1LgetMetatable
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1Lwhere
-  (JNIEnv * env , jobject jobj , jobject cptr , jint lvl)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint lvl)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    luaL_where( L , ( int ) lvl );
 }
@@ -3791,9 +4479,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1Lwhere
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1Lref
-  (JNIEnv * env , jobject jobj , jobject cptr , jint t)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint t)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    return ( jint ) luaL_ref( L , ( int ) t );
 }
@@ -3805,14 +4493,41 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1Lref
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1LunRef
-  (JNIEnv * env , jobject jobj , jobject cptr , jint t , jint ref)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint t , jint ref)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
 
    luaL_unref( L , ( int ) t , ( int ) ref );
 }
 
 
+/************************************************************************
+*   JNI Called function
+*      Lua Exported Function
+************************************************************************/
+
+JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1LunRefs
+  (JNIEnv * env , jobject jobj , jlong ptr , jint t , jintArray refs , jint count)
+{
+   lua_State * L = getStateFromPeer( ptr );
+   jint * elements;
+   jint i;
+
+   elements = ( *env )->GetIntArrayElements( env , refs , NULL );
+   if ( elements == NULL )
+   {
+      return;
+   }
+
+   for ( i = 0 ; i < count ; i++ )
+   {
+      luaL_unref( L , ( int ) t , ( int ) elements[ i ] );
+   }
+
+   ( *env )->ReleaseIntArrayElements( env , refs , elements , JNI_ABORT );
+}
+
+
 /************************************************************************
 *   JNI Called function
 *      Lua Exported Function
@@ -3820,9 +4535,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1LunRef
 
 // luaL_getn 方法在 LuaJIT 2.1.1748459687 中不存在
 //JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1LgetN
-//  (JNIEnv * env , jobject jobj , jobject cptr , jint t)
+//  (JNIEnv * env , jobject jobj , jlong ptr , jint t)
 //{
-//   lua_State * L = getStateFromCPtr( env , cptr );
+//   lua_State * L = getStateFromPeer( ptr );
 //
 //   return ( jint ) luaL_getn( L , ( int ) t );
 //}
@@ -3835,9 +4550,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1LunRef
 
 // luaL_setn 方法在 LuaJIT 2.1.1748459687 中不存在
 //JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1LsetN
-//  (JNIEnv * env , jobject jobj , jobject cptr , jint t , jint n)
+//  (JNIEnv * env , jobject jobj , jlong ptr , jint t , jint n)
 //{
-//   lua_State * L = getStateFromCPtr( env , cptr );
+//   lua_State * L = getStateFromPeer( ptr );
 //
 //   luaL_setn( L , ( int ) t , ( int ) n );
 //}
@@ -3849,9 +4564,9 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1LunRef
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1LloadFile
-  (JNIEnv * env , jobject jobj , jobject cptr , jstring fileName)
+  (JNIEnv * env , jobject jobj , jlong ptr , jstring fileName)
 {
-   lua_State * L   = getStateFromCPtr( env , cptr );
+   lua_State * L   = getStateFromPeer( ptr );
    const char * fn = ( *env )->GetStringUTFChars( env , fileName , NULL );
    int ret;
 
@@ -3869,9 +4584,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1LloadFile
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1LloadBuffer
-  (JNIEnv * env , jobject jobj , jobject cptr , jbyteArray buff , jlong sz , jstring n)
+  (JNIEnv * env , jobject jobj , jlong ptr , jbyteArray buff , jlong sz , jstring n)
 {
-   lua_State * L = getStateFromCPtr( env , cptr );
+   lua_State * L = getStateFromPeer( ptr );
    jbyte * cBuff = ( *env )->GetByteArrayElements( env , buff, NULL );
    const char * name = ( * env )->GetStringUTFChars( env , n , NULL );
    int ret;
@@ -3892,9 +4607,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1LloadBuffer
 ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1LloadString
-  (JNIEnv * env , jobject jobj , jobject cptr , jstring str)
+  (JNIEnv * env , jobject jobj , jlong ptr , jstring str)
 {
-   lua_State * L   = getStateFromCPtr( env , cptr );
+   lua_State * L   = getStateFromPeer( ptr );
    const char * fn = ( *env )->GetStringUTFChars( env , str , NULL );
    int ret;
 
@@ -3912,9 +4627,9 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1LloadString
 ************************************************************************/
 
 JNIEXPORT jstring JNICALL Java_org_keplerproject_luajava_LuaState__1Lgsub
-  (JNIEnv * env , jobject jobj , jobject cptr , jstring s , jstring p , jstring r)
+  (JNIEnv * env , jobject jobj , jlong ptr , jstring s , jstring p , jstring r)
 {
-   lua_State * L   = getStateFromCPtr( env , cptr );
+   lua_State * L   = getStateFromPeer( ptr );
    const char * utS = ( *env )->GetStringUTFChars( env , s , NULL );
    const char * utP = ( *env )->GetStringUTFChars( env , p , NULL );
    const char * utR = ( *env )->GetStringUTFChars( env , r , NULL );
@@ -3935,9 +4650,9 @@ JNIEXPORT jstring JNICALL Java_org_keplerproject_luajava_LuaState__1Lgsub
 ************************************************************************/
 
 JNIEXPORT jstring JNICALL Java_org_keplerproject_luajava_LuaState__1LfindTable
-  (JNIEnv * env , jobject jobj , jobject cptr , jint idx , jstring fname , jint szhint)
+  (JNIEnv * env , jobject jobj , jlong ptr , jint idx , jstring fname , jint szhint)
 {
-   lua_State * L   = getStateFromCPtr( env , cptr );
+   lua_State * L   = getStateFromPeer( ptr );
    const char * name = ( *env )->GetStringUTFChars( env , fname , NULL );
 
    const char * sub = luaL_findtable( L , ( int ) idx , name , ( int ) szhint );
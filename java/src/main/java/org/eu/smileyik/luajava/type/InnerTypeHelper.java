@@ -3,6 +3,7 @@ package org.eu.smileyik.luajava.type;
 import org.keplerproject.luajava.LuaObject;
 import org.keplerproject.luajava.LuaState;
 
+import java.nio.ByteBuffer;
 import java.util.Optional;
 
 public class InnerTypeHelper {
@@ -21,12 +22,21 @@ public class InnerTypeHelper {
             case LuaType.TABLE:
                 return Optional.of(LuaTable.create(l, idx));
             case LuaType.BOOLEAN:
-                return Optional.of(new LuaBoolean(l, idx));
+                return Optional.of(l.isSnapshotScalars() ?
+                        new LuaBoolean(l, l.toBoolean(idx)) : new LuaBoolean(l, idx));
             case LuaType.NUMBER:
-                return Optional.of(new LuaNumber(l, idx));
+                return Optional.of(l.isSnapshotScalars() ?
+                        new LuaNumber(l, l.toNumber(idx)) : new LuaNumber(l, idx));
             case LuaType.USERDATA:
                 return Optional.of(new LuaUserdata(l, idx));
             case LuaType.STRING:
+                if (l.isSnapshotScalars()) {
+                    // copy the raw bytes, strings may hold NULs or be binary
+                    ByteBuffer view = l.toStringView(idx);
+                    byte[] bytes = new byte[view.remaining()];
+                    view.get(bytes);
+                    return Optional.of(new LuaString(l, bytes));
+                }
                 return Optional.of(new LuaString(l, idx));
         }
         return Optional.empty();
@@ -1,5 +1,6 @@
 package org.eu.smileyik.luajava.type;
 
+import org.keplerproject.luajava.LuaException;
 import org.keplerproject.luajava.LuaState;
 
 import java.lang.reflect.Array;
@@ -7,6 +8,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.IntFunction;
 
 public class LuaArray extends LuaTable {
 
@@ -24,8 +26,9 @@ public class LuaArray extends LuaTable {
         return true;
     }
 
+    @SuppressWarnings("try")
     public int length() {
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             push();
             int i = L.objLen(-1);
             L.pop(1);
@@ -33,69 +36,63 @@ public class LuaArray extends LuaTable {
         }
     }
 
-    public byte[] toByteArray() throws Throwable {
-        List<Number> list = asList(Number.class);
-        int len = list.size();
-        byte[] bytes = new byte[len];
-        for (int i = 0; i < len; i++) {
-            Number number = list.get(i);
-            bytes[i] = number.byteValue();
-        }
-        return bytes;
+    /**
+     * Copies the elements into a new <code>byte[]</code> in a single native call.
+     * Numbers are narrowed like a Java cast from double.
+     *
+     * @throws LuaException if an element is not a number
+     */
+    public byte[] toByteArray() throws LuaException {
+        return copyTo(byte[]::new);
     }
 
-    public short[] toShortArray() throws Throwable {
-        List<Number> list = asList(Number.class);
-        int len = list.size();
-        short[] shorts = new short[len];
-        for (int i = 0; i < len; i++) {
-            Number number = list.get(i);
-            shorts[i] = number.shortValue();
-        }
-        return shorts;
+    /**
+     * Copies the elements into a new <code>short[]</code> in a single native call.
+     * Numbers are narrowed like a Java cast from double.
+     *
+     * @throws LuaException if an element is not a number
+     */
+    public short[] toShortArray() throws LuaException {
+        return copyTo(short[]::new);
     }
 
-    public int[] toIntArray() throws Throwable {
-        List<Number> list = asList(Number.class);
-        int len = list.size();
-        int[] nums = new int[len];
-        for (int i = 0; i < len; i++) {
-            Number number = list.get(i);
-            nums[i] = number.intValue();
-        }
-        return nums;
+    /**
+     * Copies the elements into a new <code>int[]</code> in a single native call.
+     * Numbers are narrowed like a Java cast from double.
+     *
+     * @throws LuaException if an element is not a number
+     */
+    public int[] toIntArray() throws LuaException {
+        return copyTo(int[]::new);
     }
 
-    public long[] toLongArray() throws Throwable {
-        List<Number> list = asList(Number.class);
-        int len = list.size();
-        long[] longs = new long[len];
-        for (int i = 0; i < len; i++) {
-            Number number = list.get(i);
-            longs[i] = number.longValue();
-        }
-        return longs;
+    /**
+     * Copies the elements into a new <code>long[]</code> in a single native call.
+     * Numbers are narrowed like a Java cast from double.
+     *
+     * @throws LuaException if an element is not a number
+     */
+    public long[] toLongArray() throws LuaException {
+        return copyTo(long[]::new);
     }
 
-    public float[] toFloatArray() throws Throwable {
-        List<Number> list = asList(Number.class);
-        int len = list.size();
-        float[] floats = new float[len];
-        for (int i = 0; i < len; i++) {
-            Number number = list.get(i);
-            floats[i] = number.floatValue();
-        }
-        return floats;
+    /**
+     * Copies the elements into a new <code>float[]</code> in a single native call.
+     * Numbers are narrowed like a Java cast from double.
+     *
+     * @throws LuaException if an element is not a number
+     */
+    public float[] toFloatArray() throws LuaException {
+        return copyTo(float[]::new);
     }
 
-    public boolean[] toBooleanArray() throws Throwable {
-        List<Boolean> list = asList(Boolean.class);
-        int len = list.size();
-        boolean[] bool = new boolean[len];
-        for (int i = 0; i < len; i++) {
-            bool[i] = list.get(i);;
-        }
-        return bool;
+    /**
+     * Copies the elements into a new <code>boolean[]</code> in a single native call.
+     *
+     * @throws LuaException if an element is not a boolean
+     */
+    public boolean[] toBooleanArray() throws LuaException {
+        return copyTo(boolean[]::new);
     }
 
     public char[] toCharArray() throws Throwable {
@@ -108,15 +105,40 @@ public class LuaArray extends LuaTable {
         return chars;
     }
 
-    public double[] toDoubleArray() throws Throwable {
-        List<Number> list = asList(Number.class);
-        int len = list.size();
-        double[] doubles = new double[len];
-        for (int i = 0; i < len; i++) {
-            Number number = list.get(i);
-            doubles[i] = number.doubleValue();
+    /**
+     * Copies the elements into a new <code>double[]</code> in a single native call.
+     *
+     * @throws LuaException if an element is not a number
+     */
+    public double[] toDoubleArray() throws LuaException {
+        return copyTo(double[]::new);
+    }
+
+    /**
+     * Creates a primitive array of the array length and fills it.
+     */
+    @SuppressWarnings("try")
+    private <A> A copyTo(IntFunction<A> factory) throws LuaException {
+        try (LuaState.Session ignored = L.session()) {
+            push();
+            A array;
+            int failed;
+            try {
+                array = factory.apply(L.objLen(-1));
+                failed = L.toPrimitiveArray(-1, array);
+            } finally {
+                L.pop(1);
+            }
+            if (failed < 0) {
+                throw new LuaException("Out of memory, could not pin an array of " +
+                        Array.getLength(array) + " elements");
+            }
+            if (failed != 0) {
+                String expected = array instanceof boolean[] ? "boolean" : "number";
+                throw new LuaException("Element " + failed + " of the array is not a " + expected);
+            }
+            return array;
         }
-        return doubles;
     }
 
     public List<Object> asList() throws Throwable {
@@ -150,8 +172,9 @@ public class LuaArray extends LuaTable {
      * @param <T>      element type, Cannot be primitive type
      * @throws Throwable any exception
      */
+    @SuppressWarnings("try")
     public <T> void forEachValue(Class<T> tClass, Consumer<T> consumer) throws Throwable {
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             push();
             int len = L.objLen(-1);
             for (int i = 1; i <= len; i++) {
@@ -179,9 +202,10 @@ public class LuaArray extends LuaTable {
      * @param <V> Value type, Cannot be primitive type
      * @throws Throwable any exception.
      */
+    @SuppressWarnings("try")
     @Override
     public <K, V> void forEach(Class<K> kClass, Class<V> vClass, BiConsumer<K, V> consumer) throws Throwable {
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             push();
             int len = L.objLen(-1);
             for (int i = 1; i <= len; i++) {
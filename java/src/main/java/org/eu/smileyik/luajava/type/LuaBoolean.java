@@ -6,6 +6,11 @@ import org.keplerproject.luajava.LuaState;
 import java.util.Objects;
 
 public class LuaBoolean extends LuaObject implements GettableType<Boolean> {
+    /**
+     * Snapshot of the boolean, <code>null</code> if it is referenced
+     */
+    private final Boolean value;
+
     /**
      * Creates a reference to an object in the given index of the stack
      * <strong>SHOULD NOT USE CONSTRUCTOR DIRECTLY</strong>
@@ -16,6 +21,32 @@ public class LuaBoolean extends LuaObject implements GettableType<Boolean> {
      */
     protected LuaBoolean(LuaState L, int index) {
         super(L, index);
+        this.value = null;
+    }
+
+    /**
+     * Creates a snapshot of a boolean, see {@link LuaState#setSnapshotScalars(boolean)}
+     *
+     * @param L
+     * @param value value of the boolean
+     */
+    protected LuaBoolean(LuaState L, boolean value) {
+        super(L);
+        this.value = value;
+    }
+
+    @Override
+    public void push() {
+        if (value != null) {
+            L.pushBoolean(value);
+        } else {
+            super.push();
+        }
+    }
+
+    @Override
+    public boolean getBoolean() {
+        return value != null ? value : super.getBoolean();
     }
 
     @Override
@@ -4,6 +4,20 @@ import org.keplerproject.luajava.LuaException;
 import org.keplerproject.luajava.LuaObject;
 import org.keplerproject.luajava.LuaState;
 
+import java.util.Arrays;
+
+/**
+ * Lua function. Besides {@link #call(Object[], int)} it has typed calls that
+ * push primitives directly and read a typed result, so calling a numeric
+ * function allocates nothing:
+ * <pre>
+ * LuaFunction f = (LuaFunction) L.getLuaObject("f");
+ * double y = f.callDouble(x);
+ *
+ * LuaFunction.CallFrame frame = f.newFrame();
+ * boolean ok = frame.arg(1).arg(2.5).arg("name").callBoolean();
+ * </pre>
+ */
 public class LuaFunction extends LuaObject {
     public static final String TYPE_NAME = LuaType.typeName(LuaType.FUNCTION);
 
@@ -50,4 +64,579 @@ public class LuaFunction extends LuaObject {
     public boolean isUserdata() {
         return false;
     }
+
+    /**
+     * Implements an interface with this function, e.g. a
+     * <code>Comparator</code> or <code>DoubleUnaryOperator</code>. Every
+     * abstract method calls the function, see {@link LuaTable#asInterface(Class)}.
+     *
+     * @param type interface to implement
+     * @return instance of type backed by this function
+     * @throws IllegalArgumentException if type is not an interface or can not be implemented
+     */
+    public <T> T asInterface(Class<T> type) {
+        return implement(type, true);
+    }
+
+    /**
+     * Calls the function and returns its first result as a number
+     *
+     * @throws LuaException if the call failed or the result is not a number
+     */
+    @SuppressWarnings("try")
+    public double callDouble() throws LuaException {
+        try (LuaState.Session ignored = L.session()) {
+            int top = L.getTop();
+            push();
+            return doubleResult(top, L.pcall(0, 1, 0));
+        }
+    }
+
+    /**
+     * Calls the function and returns its first result as a number
+     *
+     * @throws LuaException if the call failed or the result is not a number
+     */
+    @SuppressWarnings("try")
+    public double callDouble(double a) throws LuaException {
+        try (LuaState.Session ignored = L.session()) {
+            int top = L.getTop();
+            push();
+            L.pushNumber(a);
+            return doubleResult(top, L.pcall(1, 1, 0));
+        }
+    }
+
+    /**
+     * Calls the function and returns its first result as a number
+     *
+     * @throws LuaException if the call failed or the result is not a number
+     */
+    @SuppressWarnings("try")
+    public double callDouble(double a, double b) throws LuaException {
+        try (LuaState.Session ignored = L.session()) {
+            int top = L.getTop();
+            push();
+            L.pushNumber(a);
+            L.pushNumber(b);
+            return doubleResult(top, L.pcall(2, 1, 0));
+        }
+    }
+
+    /**
+     * Calls the function and returns its first result as a number
+     *
+     * @throws LuaException if the call failed or the result is not a number
+     */
+    @SuppressWarnings("try")
+    public double callDouble(double a, double b, double c) throws LuaException {
+        try (LuaState.Session ignored = L.session()) {
+            int top = L.getTop();
+            push();
+            L.pushNumber(a);
+            L.pushNumber(b);
+            L.pushNumber(c);
+            return doubleResult(top, L.pcall(3, 1, 0));
+        }
+    }
+
+    /**
+     * Calls the function and returns its first result as a number. The
+     * fixed arity overloads avoid allocating the argument array.
+     *
+     * @throws LuaException if the call failed or the result is not a number
+     */
+    @SuppressWarnings("try")
+    public double callDouble(double... args) throws LuaException {
+        try (LuaState.Session ignored = L.session()) {
+            int top = L.getTop();
+            push();
+            for (double arg : args) {
+                L.pushNumber(arg);
+            }
+            return doubleResult(top, L.pcall(args.length, 1, 0));
+        }
+    }
+
+    /**
+     * Calls the function and returns its first result as a long
+     *
+     * @throws LuaException if the call failed or the result is not a number
+     */
+    public long callLong() throws LuaException {
+        return (long) callDouble();
+    }
+
+    /**
+     * Calls the function and returns its first result as a long. Arguments
+     * are converted to Lua numbers, which are doubles.
+     *
+     * @throws LuaException if the call failed or the result is not a number
+     */
+    public long callLong(long a) throws LuaException {
+        return (long) callDouble(a);
+    }
+
+    /**
+     * Calls the function and returns its first result as a long. Arguments
+     * are converted to Lua numbers, which are doubles.
+     *
+     * @throws LuaException if the call failed or the result is not a number
+     */
+    public long callLong(long a, long b) throws LuaException {
+        return (long) callDouble(a, b);
+    }
+
+    /**
+     * Calls the function and returns its first result as a long. Arguments
+     * are converted to Lua numbers, which are doubles.
+     *
+     * @throws LuaException if the call failed or the result is not a number
+     */
+    public long callLong(long a, long b, long c) throws LuaException {
+        return (long) callDouble(a, b, c);
+    }
+
+    /**
+     * Calls the function and returns its first result as a long. Arguments
+     * are converted to Lua numbers, which are doubles.
+     *
+     * @throws LuaException if the call failed or the result is not a number
+     */
+    @SuppressWarnings("try")
+    public long callLong(long... args) throws LuaException {
+        try (LuaState.Session ignored = L.session()) {
+            int top = L.getTop();
+            push();
+            for (long arg : args) {
+                L.pushNumber(arg);
+            }
+            return (long) doubleResult(top, L.pcall(args.length, 1, 0));
+        }
+    }
+
+    /**
+     * Calls the function and discards its results
+     *
+     * @throws LuaException if the call failed
+     */
+    @SuppressWarnings("try")
+    public void callVoid() throws LuaException {
+        try (LuaState.Session ignored = L.session()) {
+            int top = L.getTop();
+            push();
+            noResult(top, L.pcall(0, 0, 0));
+        }
+    }
+
+    /**
+     * Calls the function and discards its results
+     *
+     * @throws LuaException if the call failed
+     */
+    @SuppressWarnings("try")
+    public void callVoid(double a) throws LuaException {
+        try (LuaState.Session ignored = L.session()) {
+            int top = L.getTop();
+            push();
+            L.pushNumber(a);
+            noResult(top, L.pcall(1, 0, 0));
+        }
+    }
+
+    /**
+     * Calls the function and discards its results
+     *
+     * @throws LuaException if the call failed
+     */
+    @SuppressWarnings("try")
+    public void callVoid(double a, double b) throws LuaException {
+        try (LuaState.Session ignored = L.session()) {
+            int top = L.getTop();
+            push();
+            L.pushNumber(a);
+            L.pushNumber(b);
+            noResult(top, L.pcall(2, 0, 0));
+        }
+    }
+
+    /**
+     * Calls the function and discards its results
+     *
+     * @throws LuaException if the call failed
+     */
+    @SuppressWarnings("try")
+    public void callVoid(double... args) throws LuaException {
+        try (LuaState.Session ignored = L.session()) {
+            int top = L.getTop();
+            push();
+            for (double arg : args) {
+                L.pushNumber(arg);
+            }
+            noResult(top, L.pcall(args.length, 0, 0));
+        }
+    }
+
+    /**
+     * Calls the function once per element, <code>out[i] = f(in[i])</code>,
+     * looping in a single native call.
+     *
+     * @throws LuaException if a call failed or did not return a number,
+     *                      the results before that element are stored
+     */
+    public void callMany(double[] in, double[] out) throws LuaException {
+        callMany(new double[][]{in}, new double[][]{out});
+    }
+
+    /**
+     * Calls the function once per record, looping in a single native call.
+     * Record <code>i</code> passes <code>in[0][i] .. in[n-1][i]</code> and
+     * stores its results into <code>out[0][i] .. out[m-1][i]</code>.
+     *
+     * @param in  argument columns of the same length
+     * @param out result columns, at least as long as the argument columns
+     * @throws LuaException if a call failed or a result is not a number,
+     *                      the results of the records before are stored
+     */
+    public void callMany(double[][] in, double[][] out) throws LuaException {
+        callMany(in, out, null);
+    }
+
+    /**
+     * Calls the function once per record like {@link #callMany(double[][], double[][])},
+     * but goes on after a failed record. The results of failed records are NaN.
+     *
+     * @param failed receives the indexes of the failed records, as far as it is long.
+     *               If <code>null</code> the first failure is thrown
+     * @return number of failed records
+     * @throws LuaException if <code>failed</code> is <code>null</code> and a record failed
+     */
+    @SuppressWarnings("try")
+    public int callMany(double[][] in, double[][] out, int[] failed) throws LuaException {
+        int count = recordCount(in, out);
+        try (LuaState.Session ignored = L.session()) {
+            int top = L.getTop();
+            push();
+            int ret = L.callMany(in, out, count, failed);
+            try {
+                if (ret == -2 || (failed == null && ret >= 0)) {
+                    String msg = L.toString(-1);
+                    throw new LuaException(ret == -2 ? msg : "Record " + ret + " failed: " + msg);
+                }
+                return failed == null ? 0 : ret;
+            } finally {
+                L.setTop(top);
+            }
+        }
+    }
+
+    private static int recordCount(double[][] in, double[][] out) {
+        if (in.length == 0 && out.length == 0) {
+            throw new IllegalArgumentException("No argument or result columns");
+        }
+        int count = in.length > 0 ? in[0].length : out[0].length;
+        for (double[] column : in) {
+            if (column.length != count) {
+                throw new IllegalArgumentException("Argument columns differ in length");
+            }
+        }
+        for (double[] column : out) {
+            if (column.length < count) {
+                throw new IllegalArgumentException("Result column shorter than the argument columns");
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Creates a reusable frame to call the function with arguments of mixed
+     * types. Once its buffers have grown, calls through the frame only
+     * allocate for strings and Java objects.
+     *
+     * @return CallFrame, not thread safe
+     */
+    public CallFrame newFrame() {
+        return new CallFrame();
+    }
+
+    private double doubleResult(int top, int err) throws LuaException {
+        if (err != 0) {
+            LuaException e = callError(err);
+            L.setTop(top);
+            throw e;
+        }
+        try {
+            if (!L.isNumber(-1)) {
+                throw new LuaException("Function did not return a number, but " + L.typeName(L.type(-1)));
+            }
+            return L.toNumber(-1);
+        } finally {
+            L.setTop(top);
+        }
+    }
+
+    private void noResult(int top, int err) throws LuaException {
+        if (err != 0) {
+            LuaException e = callError(err);
+            L.setTop(top);
+            throw e;
+        }
+    }
+
+    /**
+     * Arguments and results of calls to the enclosing function, kept in
+     * primitive arrays that are reused from one call to the next. The
+     * arguments are cleared after every call, the results stay readable
+     * until the next call.
+     */
+    public final class CallFrame {
+        private static final byte NIL = 0;
+        private static final byte NUMBER = 1;
+        private static final byte BOOLEAN = 2;
+        private static final byte OBJECT = 3;
+
+        private byte[] argTypes = new byte[4];
+        private double[] argNumbers = new double[4];
+        private Object[] argObjects = new Object[4];
+        private int argc;
+
+        private byte[] resultTypes = new byte[1];
+        private double[] resultNumbers = new double[1];
+        private Object[] resultObjects = new Object[1];
+        private int resultCount;
+
+        private CallFrame() {
+        }
+
+        public CallFrame arg(double value) {
+            int i = nextArg();
+            argTypes[i] = NUMBER;
+            argNumbers[i] = value;
+            return this;
+        }
+
+        public CallFrame arg(long value) {
+            return arg((double) value);
+        }
+
+        public CallFrame arg(boolean value) {
+            int i = nextArg();
+            argTypes[i] = BOOLEAN;
+            argNumbers[i] = value ? 1 : 0;
+            return this;
+        }
+
+        /**
+         * Adds an argument converted like {@link LuaState#pushObjectValue(Object)} does
+         */
+        public CallFrame arg(Object value) {
+            int i = nextArg();
+            argTypes[i] = value == null ? NIL : OBJECT;
+            argObjects[i] = value;
+            return this;
+        }
+
+        /**
+         * Drops the arguments added so far
+         */
+        public CallFrame clear() {
+            Arrays.fill(argObjects, 0, argc, null);
+            argc = 0;
+            return this;
+        }
+
+        /**
+         * Calls the function and returns its first result as a number
+         *
+         * @throws LuaException if the call failed or the result is not a number
+         */
+        public double callDouble() throws LuaException {
+            call(1);
+            return getDouble(0);
+        }
+
+        /**
+         * Calls the function and returns its first result as a long
+         *
+         * @throws LuaException if the call failed or the result is not a number
+         */
+        public long callLong() throws LuaException {
+            call(1);
+            return getLong(0);
+        }
+
+        /**
+         * Calls the function and returns its first result as a boolean,
+         * following the truth rules of Lua
+         *
+         * @throws LuaException if the call failed
+         */
+        public boolean callBoolean() throws LuaException {
+            call(1);
+            return getBoolean(0);
+        }
+
+        /**
+         * Calls the function and discards its results
+         *
+         * @throws LuaException if the call failed
+         */
+        public void callVoid() throws LuaException {
+            call(0);
+        }
+
+        /**
+         * Calls the function and keeps its results in the frame
+         *
+         * @param nres number of results, or {@link LuaState#LUA_MULTRET}
+         * @return number of results kept
+         * @throws LuaException if the call failed
+         */
+        @SuppressWarnings("try")
+        public int call(int nres) throws LuaException {
+            try (LuaState.Session ignored = L.session()) {
+                int top = L.getTop();
+                try {
+                    push();
+                    for (int i = 0; i < argc; i++) {
+                        switch (argTypes[i]) {
+                            case NUMBER:
+                                L.pushNumber(argNumbers[i]);
+                                break;
+                            case BOOLEAN:
+                                L.pushBoolean(argNumbers[i] != 0);
+                                break;
+                            case OBJECT:
+                                L.pushObjectValue(argObjects[i]);
+                                break;
+                            default:
+                                L.pushNil();
+                                break;
+                        }
+                    }
+                    int nargs = argc;
+                    clear();
+                    Arrays.fill(resultObjects, 0, resultCount, null);
+                    resultCount = 0;
+
+                    int err = L.pcall(nargs, nres, 0);
+                    if (err != 0) {
+                        throw callError(err);
+                    }
+                    int count = L.getTop() - top;
+                    ensureResults(count);
+                    for (int i = 0; i < count; i++) {
+                        readResult(i, top + 1 + i);
+                    }
+                    resultCount = count;
+                    return count;
+                } finally {
+                    L.setTop(top);
+                }
+            } finally {
+                clear();
+            }
+        }
+
+        /**
+         * Returns the number of results of the last call
+         */
+        public int resultCount() {
+            return resultCount;
+        }
+
+        /**
+         * @param i index of the result, from 0
+         * @throws LuaException if the result is not a number
+         */
+        public double getDouble(int i) throws LuaException {
+            checkResult(i);
+            if (resultTypes[i] != NUMBER) {
+                throw new LuaException("Result " + i + " is not a number");
+            }
+            return resultNumbers[i];
+        }
+
+        /**
+         * @param i index of the result, from 0
+         * @throws LuaException if the result is not a number
+         */
+        public long getLong(int i) throws LuaException {
+            return (long) getDouble(i);
+        }
+
+        /**
+         * Returns the truth value of a result: <code>false</code> for nil
+         * and false, <code>true</code> for anything else.
+         *
+         * @param i index of the result, from 0
+         */
+        public boolean getBoolean(int i) throws LuaException {
+            checkResult(i);
+            switch (resultTypes[i]) {
+                case NIL:
+                    return false;
+                case BOOLEAN:
+                    return resultNumbers[i] != 0;
+                default:
+                    return true;
+            }
+        }
+
+        /**
+         * @param i index of the result, from 0
+         * @return the result converted like {@link LuaState#toJavaObject(int)} does
+         */
+        public Object getObject(int i) throws LuaException {
+            checkResult(i);
+            switch (resultTypes[i]) {
+                case NUMBER:
+                    return resultNumbers[i];
+                case BOOLEAN:
+                    return resultNumbers[i] != 0;
+                default:
+                    return resultObjects[i];
+            }
+        }
+
+        private int nextArg() {
+            if (argc == argTypes.length) {
+                int length = argc << 1;
+                argTypes = Arrays.copyOf(argTypes, length);
+                argNumbers = Arrays.copyOf(argNumbers, length);
+                argObjects = Arrays.copyOf(argObjects, length);
+            }
+            return argc++;
+        }
+
+        private void ensureResults(int count) {
+            if (count > resultTypes.length) {
+                resultTypes = new byte[count];
+                resultNumbers = new double[count];
+                resultObjects = new Object[count];
+            }
+        }
+
+        private void readResult(int i, int idx) throws LuaException {
+            int type = L.type(idx);
+            if (type == LuaState.LUA_TNUMBER) {
+                resultTypes[i] = NUMBER;
+                resultNumbers[i] = L.toNumber(idx);
+            } else if (type == LuaState.LUA_TBOOLEAN) {
+                resultTypes[i] = BOOLEAN;
+                resultNumbers[i] = L.toBoolean(idx) ? 1 : 0;
+            } else if (type == LuaState.LUA_TNIL || type == LuaState.LUA_TNONE) {
+                resultTypes[i] = NIL;
+            } else {
+                resultTypes[i] = OBJECT;
+                resultObjects[i] = L.toJavaObject(idx);
+            }
+        }
+
+        private void checkResult(int i) {
+            if (i < 0 || i >= resultCount) {
+                throw new IndexOutOfBoundsException("Result " + i + " of " + resultCount);
+            }
+        }
+    }
 }
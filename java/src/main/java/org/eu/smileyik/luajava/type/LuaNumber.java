@@ -4,6 +4,9 @@ import org.keplerproject.luajava.LuaObject;
 import org.keplerproject.luajava.LuaState;
 
 public class LuaNumber extends LuaObject {
+    private final boolean snapshot;
+    private final double value;
+
     /**
      * Creates a reference to an object in the given index of the stack
      * <strong>SHOULD NOT USE CONSTRUCTOR DIRECTLY</strong>
@@ -14,6 +17,34 @@ public class LuaNumber extends LuaObject {
      */
     protected LuaNumber(LuaState L, int index) {
         super(L, index);
+        this.snapshot = false;
+        this.value = 0;
+    }
+
+    /**
+     * Creates a snapshot of a number, see {@link LuaState#setSnapshotScalars(boolean)}
+     *
+     * @param L
+     * @param value value of the number
+     */
+    protected LuaNumber(LuaState L, double value) {
+        super(L);
+        this.snapshot = true;
+        this.value = value;
+    }
+
+    @Override
+    public void push() {
+        if (snapshot) {
+            L.pushNumber(value);
+        } else {
+            super.push();
+        }
+    }
+
+    @Override
+    public double getNumber() {
+        return snapshot ? value : super.getNumber();
     }
 
     @Override
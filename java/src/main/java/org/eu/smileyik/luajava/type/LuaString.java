@@ -3,7 +3,20 @@ package org.eu.smileyik.luajava.type;
 import org.keplerproject.luajava.LuaObject;
 import org.keplerproject.luajava.LuaState;
 
+import java.nio.charset.StandardCharsets;
+
 public class LuaString extends LuaObject implements GettableType<String> {
+    /**
+     * Raw bytes of a snapshot, <code>null</code> if the string is referenced.
+     * Strings may hold any bytes, pushing them back must not transcode.
+     */
+    private final byte[] bytes;
+
+    /**
+     * Snapshot decoded on first use
+     */
+    private String value;
+
     /**
      * Creates a reference to an object in the given index of the stack
      * <strong>SHOULD NOT USE CONSTRUCTOR DIRECTLY</strong>
@@ -14,6 +27,44 @@ public class LuaString extends LuaObject implements GettableType<String> {
      */
     protected LuaString(LuaState L, int index) {
         super(L, index);
+        this.bytes = null;
+    }
+
+    /**
+     * Creates a snapshot of a string, see {@link LuaState#setSnapshotScalars(boolean)}
+     *
+     * @param L
+     * @param bytes bytes of the string, not copied
+     */
+    protected LuaString(LuaState L, byte[] bytes) {
+        super(L);
+        this.bytes = bytes;
+    }
+
+    @Override
+    public void push() {
+        if (bytes != null) {
+            L.pushString(bytes);
+        } else {
+            super.push();
+        }
+    }
+
+    @Override
+    protected byte[] getSnapshotBytes() {
+        return bytes;
+    }
+
+    @Override
+    public String getString() {
+        if (bytes == null) {
+            return super.getString();
+        }
+        String str = value;
+        if (str == null) {
+            value = str = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return str;
     }
 
     @Override
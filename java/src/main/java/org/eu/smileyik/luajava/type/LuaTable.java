@@ -62,6 +62,22 @@ public class LuaTable extends LuaObject {
         return false;
     }
 
+    /**
+     * Implements an interface with the functions of this table. Each method
+     * calls the field named like it, without self. The implementation is a
+     * hidden class generated once per interface, primitive arguments and
+     * results are passed without boxing and the functions are looked up
+     * only once. Interfaces the generated class can not reach are
+     * implemented with a proxy as in {@link #createProxy(String)}.
+     *
+     * @param type interface to implement
+     * @return instance of type backed by this table
+     * @throws IllegalArgumentException if type is not an interface
+     */
+    public <T> T asInterface(Class<T> type) {
+        return implement(type, false);
+    }
+
     public Map<String, Object> asDeepStringMap() throws Throwable {
         return asDeepMap(String.class, Object.class);
     }
@@ -142,8 +158,9 @@ public class LuaTable extends LuaObject {
      * @param <V> Value Type, Cannot be primitive type
      * @throws Throwable any exception
      */
+    @SuppressWarnings("try")
     public <K, V> void forEach(Class<K> kClass, Class<V> vClass, BiConsumer<K, V> consumer) throws Throwable {
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             push();
             L.pushNil();
             while (L.next(-2) != 0) {
@@ -172,37 +189,13 @@ public class LuaTable extends LuaObject {
     }
 
     /**
-     * Check the table is Array or not. Will traverse the table.
+     * Check the table is Array or not. Will traverse the table in native code.
      * @param L     lua state
      * @param index index
      * @return if the table is empty ({})
      *         or the table only a series of consecutive numbers starting with 1 as key.
      */
     protected static boolean isArrayTable(LuaState L, int index) {
-        synchronized (L) {
-            int len = L.objLen(index);
-            index -= 1;
-            int i = 0;
-            L.pushNil();
-            while (L.next(index) != 0) {
-                if (L.type(-2) != LuaType.NUMBER) {
-                    L.pop(2);
-                    return false;
-                }
-                double number = L.toNumber(-2);
-                if (number != (int) number || number < 1) {
-                    L.pop(2);
-                    return false;
-                }
-                int idx = (int) number;
-                if (idx - i != 1) {
-                    L.pop(2);
-                    return false;
-                }
-                i = idx;
-                L.pop(1);
-            }
-            return len == i;
-        }
+        return L.isArrayTable(index);
     }
 }
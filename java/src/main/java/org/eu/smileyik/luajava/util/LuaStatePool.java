@@ -0,0 +1,599 @@
+package org.eu.smileyik.luajava.util;
+
+import org.keplerproject.luajava.LuaException;
+import org.keplerproject.luajava.LuaState;
+import org.keplerproject.luajava.LuaStateFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Pool of LuaStates that were already opened and warmed up, e.g. with
+ * <code>openLibs()</code> and the bootstrap scripts, so a request thread
+ * gets a ready state without paying for its initialization.
+ * <pre>
+ * LuaStatePool pool = LuaStatePool.builder()
+ *         .minIdle(4)
+ *         .maxTotal(32)
+ *         .warmUp(L -&gt; {
+ *             L.openLibs();
+ *             L.LdoFile("bootstrap.lua");
+ *         })
+ *         .build();
+ *
+ * LuaState L = pool.borrow();
+ * try {
+ *     ...
+ * } finally {
+ *     pool.release(L);
+ * }
+ * </pre>
+ * Idle states are handed out most recently used first. States idle for
+ * longer than the idle timeout are closed, as long as the pool keeps at
+ * least <code>minIdle</code> states.
+ */
+public class LuaStatePool implements AutoCloseable {
+
+    /**
+     * Initializes a new state before it enters the pool
+     */
+    @FunctionalInterface
+    public interface WarmUp {
+        void accept(LuaState L) throws LuaException;
+    }
+
+    private final int minIdle;
+    private final int maxTotal;
+    private final WarmUp warmUp;
+    private final Predicate<LuaState> validator;
+    private final boolean resetStack;
+    private final boolean collectGarbage;
+    private final long idleTimeoutNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final Deque<Idle> idle = new ArrayDeque<>();
+    private final Set<LuaState> borrowed = Collections.newSetFromMap(new IdentityHashMap<>());
+    /**
+     * Idle, borrowed and being created
+     */
+    private int total;
+    private int waiting;
+    private boolean closed;
+
+    private final ScheduledExecutorService evictor;
+
+    private final LongAdder created = new LongAdder();
+    private final LongAdder destroyed = new LongAdder();
+    private final LongAdder borrowCount = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    private LuaStatePool(Builder builder) throws LuaException {
+        this.minIdle = builder.minIdle;
+        this.maxTotal = builder.maxTotal;
+        this.warmUp = builder.warmUp;
+        this.validator = builder.validator;
+        this.resetStack = builder.resetStack;
+        this.collectGarbage = builder.collectGarbage;
+        this.idleTimeoutNanos = builder.idleTimeoutNanos;
+
+        try {
+            for (int i = 0; i < minIdle; i++) {
+                LuaState L = create();
+                idle.addFirst(new Idle(L, System.nanoTime()));
+                total++;
+            }
+        } catch (LuaException | RuntimeException e) {
+            // the pool is never handed out, close what it created so far
+            for (Idle i : idle) {
+                try {
+                    i.state.close();
+                } catch (RuntimeException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+            }
+            idle.clear();
+            throw e;
+        }
+
+        if (idleTimeoutNanos > 0) {
+            evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "LuaStatePool-evictor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long period = Math.max(TimeUnit.MILLISECONDS.toNanos(10), idleTimeoutNanos / 2);
+            evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.NANOSECONDS);
+        } else {
+            evictor = null;
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Borrows a state, waiting as long as needed when all of them are in use.
+     *
+     * @return LuaState, must be given back with {@link #release(LuaState)}
+     * @throws LuaException         if a new state could not be warmed up
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public LuaState borrow() throws LuaException, InterruptedException {
+        try {
+            return borrow(-1);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Borrows a state, waiting at most the given time when all of them are in use.
+     *
+     * @param timeout maximum time to wait
+     * @param unit    unit of timeout
+     * @return LuaState, must be given back with {@link #release(LuaState)}
+     * @throws LuaException         if a new state could not be warmed up
+     * @throws InterruptedException if interrupted while waiting
+     * @throws TimeoutException     if no state became available in time
+     */
+    public LuaState borrow(long timeout, TimeUnit unit)
+            throws LuaException, InterruptedException, TimeoutException {
+        return borrow(unit.toNanos(timeout));
+    }
+
+    private LuaState borrow(long timeoutNanos) throws LuaException, InterruptedException, TimeoutException {
+        long begin = System.nanoTime();
+        long remaining = timeoutNanos;
+        while (true) {
+            LuaState L;
+            boolean create = false;
+            lock.lock();
+            try {
+                while (true) {
+                    if (closed) {
+                        throw new IllegalStateException("LuaStatePool is closed");
+                    }
+                    Idle first = idle.pollFirst();
+                    if (first != null) {
+                        L = first.state;
+                        break;
+                    }
+                    if (total < maxTotal) {
+                        total++;
+                        L = null;
+                        create = true;
+                        break;
+                    }
+                    if (timeoutNanos >= 0 && remaining <= 0) {
+                        throw new TimeoutException("No LuaState available");
+                    }
+                    waiting++;
+                    try {
+                        if (timeoutNanos < 0) {
+                            available.await();
+                        } else {
+                            remaining = available.awaitNanos(remaining);
+                        }
+                    } finally {
+                        waiting--;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            if (create) {
+                try {
+                    L = create();
+                } catch (LuaException | RuntimeException e) {
+                    discarded();
+                    throw e;
+                }
+            } else {
+                boolean valid = false;
+                try {
+                    valid = isValid(L);
+                } catch (RuntimeException ignored) {
+                    // a throwing validator rejects the state, as in release
+                } finally {
+                    if (!valid) {
+                        destroy(L);
+                    }
+                }
+                if (!valid) {
+                    continue;
+                }
+            }
+
+            lock.lock();
+            try {
+                borrowed.add(L);
+            } finally {
+                lock.unlock();
+            }
+            recordWait(System.nanoTime() - begin);
+            return L;
+        }
+    }
+
+    /**
+     * Gives a borrowed state back. The stack is cleared and a garbage
+     * collection cycle is run if the pool was built to do so. States that
+     * were closed, fail the validator or still have values on their stack
+     * are closed instead of being pooled again.
+     *
+     * @param L state returned by {@link #borrow()}
+     * @throws IllegalArgumentException if the state was not borrowed from this pool
+     */
+    public void release(LuaState L) {
+        lock.lock();
+        try {
+            if (!borrowed.remove(L)) {
+                throw new IllegalArgumentException("LuaState was not borrowed from this pool");
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        boolean reusable;
+        try {
+            reusable = reset(L) && isValid(L);
+        } catch (RuntimeException e) {
+            reusable = false;
+        }
+
+        lock.lock();
+        try {
+            if (reusable && !closed) {
+                idle.addFirst(new Idle(L, System.nanoTime()));
+                available.signal();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        destroy(L);
+    }
+
+    /**
+     * Closes the states that were idle for longer than the idle timeout,
+     * keeping at least <code>minIdle</code> of them. Called periodically
+     * when an idle timeout is configured.
+     */
+    public void evictIdle() {
+        List<LuaState> evicted = new ArrayList<>();
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            Idle oldest;
+            while (idle.size() > minIdle && (oldest = idle.peekLast()) != null
+                    && now - oldest.since > idleTimeoutNanos) {
+                idle.pollLast();
+                evicted.add(oldest.state);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (LuaState L : evicted) {
+            destroy(L);
+        }
+    }
+
+    /**
+     * Returns a snapshot of the pool counters
+     *
+     * @return Metrics
+     */
+    public Metrics getMetrics() {
+        lock.lock();
+        try {
+            return new Metrics(idle.size(), borrowed.size(), waiting, total,
+                    created.sum(), destroyed.sum(), borrowCount.sum(), waitNanos.sum(), maxWaitNanos.get());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the idle states. Borrowed states are closed when they are released.
+     */
+    @Override
+    public void close() {
+        List<Idle> states;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            states = new ArrayList<>(idle);
+            idle.clear();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (evictor != null) {
+            evictor.shutdownNow();
+        }
+        for (Idle i : states) {
+            destroy(i.state);
+        }
+    }
+
+    private LuaState create() throws LuaException {
+        LuaState L = LuaStateFactory.newLuaState();
+        if (warmUp != null) {
+            try {
+                warmUp.accept(L);
+            } catch (LuaException | RuntimeException e) {
+                L.close();
+                throw e;
+            }
+        }
+        if (resetStack) {
+            L.setTop(0);
+        }
+        created.increment();
+        return L;
+    }
+
+    @SuppressWarnings("try")
+    private boolean reset(LuaState L) {
+        if (L.isClosed()) {
+            return false;
+        }
+        try (LuaState.Session ignored = L.session()) {
+            if (resetStack) {
+                L.setTop(0);
+            } else if (L.getTop() != 0) {
+                return false;
+            }
+            if (collectGarbage) {
+                L.gc(LuaState.LUA_GCCOLLECT, 0);
+            }
+        }
+        return true;
+    }
+
+    private boolean isValid(LuaState L) {
+        return !L.isClosed() && (validator == null || validator.test(L));
+    }
+
+    private void destroy(LuaState L) {
+        try {
+            if (!L.isClosed()) {
+                L.close();
+            }
+        } finally {
+            discarded();
+        }
+    }
+
+    private void discarded() {
+        destroyed.increment();
+        lock.lock();
+        try {
+            total--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void recordWait(long nanos) {
+        borrowCount.increment();
+        waitNanos.add(nanos);
+        long max;
+        while (nanos > (max = maxWaitNanos.get())) {
+            if (maxWaitNanos.compareAndSet(max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    private static final class Idle {
+        private final LuaState state;
+        private final long since;
+
+        private Idle(LuaState state, long since) {
+            this.state = state;
+            this.since = since;
+        }
+    }
+
+    /**
+     * Snapshot of the pool counters
+     */
+    public static final class Metrics {
+        private final int idle;
+        private final int active;
+        private final int waiting;
+        private final int total;
+        private final long created;
+        private final long destroyed;
+        private final long borrowCount;
+        private final long totalWaitNanos;
+        private final long maxWaitNanos;
+
+        private Metrics(int idle, int active, int waiting, int total, long created, long destroyed,
+                        long borrowCount, long totalWaitNanos, long maxWaitNanos) {
+            this.idle = idle;
+            this.active = active;
+            this.waiting = waiting;
+            this.total = total;
+            this.created = created;
+            this.destroyed = destroyed;
+            this.borrowCount = borrowCount;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+        }
+
+        /**
+         * States ready to be borrowed
+         */
+        public int getIdle() {
+            return idle;
+        }
+
+        /**
+         * States currently borrowed
+         */
+        public int getActive() {
+            return active;
+        }
+
+        /**
+         * Threads waiting for a state
+         */
+        public int getWaiting() {
+            return waiting;
+        }
+
+        /**
+         * States owned by the pool, including those being created
+         */
+        public int getTotal() {
+            return total;
+        }
+
+        public long getCreated() {
+            return created;
+        }
+
+        public long getDestroyed() {
+            return destroyed;
+        }
+
+        public long getBorrowCount() {
+            return borrowCount;
+        }
+
+        public long getTotalWaitNanos() {
+            return totalWaitNanos;
+        }
+
+        public long getMaxWaitNanos() {
+            return maxWaitNanos;
+        }
+
+        public double getAverageWaitNanos() {
+            return borrowCount == 0 ? 0 : (double) totalWaitNanos / borrowCount;
+        }
+
+        @Override
+        public String toString() {
+            return "Metrics{" +
+                    "idle=" + idle +
+                    ", active=" + active +
+                    ", waiting=" + waiting +
+                    ", total=" + total +
+                    ", created=" + created +
+                    ", destroyed=" + destroyed +
+                    ", borrowCount=" + borrowCount +
+                    ", averageWaitNanos=" + getAverageWaitNanos() +
+                    ", maxWaitNanos=" + maxWaitNanos +
+                    '}';
+        }
+    }
+
+    public static final class Builder {
+        private int minIdle = 0;
+        private int maxTotal = Runtime.getRuntime().availableProcessors();
+        private WarmUp warmUp;
+        private Predicate<LuaState> validator;
+        private boolean resetStack = true;
+        private boolean collectGarbage = false;
+        private long idleTimeoutNanos = 0;
+
+        private Builder() {
+        }
+
+        /**
+         * Number of states created up front and kept through idle eviction
+         */
+        public Builder minIdle(int minIdle) {
+            this.minIdle = minIdle;
+            return this;
+        }
+
+        /**
+         * Maximum number of states, borrowed and idle
+         */
+        public Builder maxTotal(int maxTotal) {
+            this.maxTotal = maxTotal;
+            return this;
+        }
+
+        /**
+         * Called once for every new state, e.g. to open libraries and run bootstrap scripts
+         */
+        public Builder warmUp(WarmUp warmUp) {
+            this.warmUp = warmUp;
+            return this;
+        }
+
+        /**
+         * Extra check on borrow and release, invalid states are closed
+         */
+        public Builder validator(Predicate<LuaState> validator) {
+            this.validator = validator;
+            return this;
+        }
+
+        /**
+         * Clear the stack on release. Enabled by default, when disabled
+         * states given back with values on their stack are discarded.
+         */
+        public Builder resetStack(boolean resetStack) {
+            this.resetStack = resetStack;
+            return this;
+        }
+
+        /**
+         * Run a full garbage collection cycle on release
+         */
+        public Builder collectGarbage(boolean collectGarbage) {
+            this.collectGarbage = collectGarbage;
+            return this;
+        }
+
+        /**
+         * Close states idle for longer than this, 0 keeps them forever
+         */
+        public Builder idleTimeout(long timeout, TimeUnit unit) {
+            this.idleTimeoutNanos = unit.toNanos(timeout);
+            return this;
+        }
+
+        /**
+         * Creates the pool and its <code>minIdle</code> states
+         *
+         * @return LuaStatePool
+         * @throws LuaException if a state could not be warmed up
+         */
+        public LuaStatePool build() throws LuaException {
+            if (maxTotal <= 0 || minIdle < 0 || minIdle > maxTotal) {
+                throw new IllegalArgumentException("Invalid pool size: minIdle=" + minIdle +
+                        ", maxTotal=" + maxTotal);
+            }
+            return new LuaStatePool(this);
+        }
+    }
+}
@@ -1,76 +1,47 @@
 package org.eu.smileyik.luajava.util;
 
 import java.io.Closeable;
-import java.lang.ref.PhantomReference;
-import java.lang.ref.ReferenceQueue;
-import java.util.LinkedList;
+import java.lang.ref.Cleaner;
 
-public class ResourceCleaner implements Runnable, Closeable {
-    private final ReferenceQueue<Object> referenceQueue = new ReferenceQueue<>();
-    private final LinkedList<Ref> refs = new LinkedList<>();
-
-    private final Thread cleanerThread;
+/**
+ * Runs a cleanup action once an object became phantom reachable.
+ * Backed by {@link Cleaner}, registering and cleaning are O(1) and safe
+ * to use from any thread. Actions run on a single daemon thread and
+ * should only hand the work over, e.g. queue a reference to release.
+ */
+public class ResourceCleaner implements Closeable {
+    private volatile Cleaner cleaner;
 
     public ResourceCleaner() {
-        cleanerThread = new Thread(this);
-        cleanerThread.setDaemon(true);
-        cleanerThread.setName("ResourceCleaner");
-        cleanerThread.start();
-    }
-
-    @Override
-    public void run() {
-        monitorTask();
+        cleaner = Cleaner.create(r -> {
+            Thread thread = new Thread(r, "ResourceCleaner");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
-    public Ref register(Object o, Runnable finalizer) {
-        Ref ref = new Ref(o, referenceQueue, finalizer);
-        refs.add(ref);
-        return ref;
+    /**
+     * Registers an action to run when the object is no longer reachable.
+     *
+     * @param o         object to monitor
+     * @param finalizer action to run, must not refer to <code>o</code>
+     * @return Cleanable, its <code>clean()</code> runs the action at most once
+     * @throws IllegalStateException if the cleaner was closed
+     */
+    public Cleaner.Cleanable register(Object o, Runnable finalizer) {
+        Cleaner c = cleaner;
+        if (c == null) {
+            throw new IllegalStateException("ResourceCleaner is closed");
+        }
+        return c.register(o, finalizer);
     }
 
+    /**
+     * Stops accepting new objects. Actions already registered still run,
+     * the cleaner thread ends once all of them did.
+     */
     @Override
     public void close() {
-        cleanerThread.interrupt();
-    }
-
-    private void monitorTask() {
-        while (!Thread.currentThread().isInterrupted()) {
-            try {
-                Ref removed = (Ref) referenceQueue.remove();
-                removed.clean();
-                refs.remove(removed);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                break;
-            }
-        }
-    }
-
-    public static final class Ref extends PhantomReference<Object> {
-
-        private final Runnable finalizer;
-
-        /**
-         * Creates a new phantom reference that refers to the given object and
-         * is registered with the given queue.
-         *
-         * <p> It is possible to create a phantom reference with a <tt>null</tt>
-         * queue, but such a reference is completely useless: Its <tt>get</tt>
-         * method will always return {@code null} and, since it does not have a queue,
-         * it will never be enqueued.
-         *
-         * @param referent the object the new phantom reference will refer to
-         * @param q        the queue with which the reference is to be registered,
-         *                 or <tt>null</tt> if registration is not required
-         */
-        public Ref(Object referent, ReferenceQueue<? super Object> q, Runnable finalizer) {
-            super(referent, q);
-            this.finalizer = finalizer;
-        }
-
-        public void clean() {
-            finalizer.run();
-        }
+        cleaner = null;
     }
 }
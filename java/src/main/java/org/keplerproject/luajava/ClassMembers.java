@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2003-2007 Kepler Project.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.keplerproject.luajava;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Executable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Reflection data of a class as seen by {@link LuaJavaAPI}.
+ * Candidates are resolved once per (class, name, arity) and kept
+ * in the order the matching loop has to try them, so a call from
+ * Lua never copies the <code>getMethods()</code> or
+ * <code>getDeclaredMethods()</code> arrays again. The {@link Invoker}s
+ * of the members that were actually called are kept here as well.
+ * Only names of existing members are cached, a script probing arbitrary
+ * names does not grow the caches.
+ */
+final class ClassMembers {
+    private static final Method[] NO_METHODS = new Method[0];
+    private static final Constructor<?>[] NO_CONSTRUCTORS = new Constructor<?>[0];
+
+    private static final ClassValue<ClassMembers> CACHE = new ClassValue<ClassMembers>() {
+        @Override
+        protected ClassMembers computeValue(Class<?> type) {
+            return new ClassMembers(type);
+        }
+    };
+
+    /**
+     * What a name resolves to when a Lua script indexes a Java object or class
+     */
+    enum Kind {
+        FIELD, METHOD, NONE
+    }
+
+    private final Class<?> clazz;
+
+    /**
+     * Public fields by name, misses are not cached
+     */
+    private final ConcurrentMap<String, Field> fields = new ConcurrentHashMap<>();
+
+    /**
+     * Kinds of the names that resolved to a field or method
+     */
+    private final ConcurrentMap<String, Kind> kinds = new ConcurrentHashMap<>();
+
+    /**
+     * Method name to candidates indexed by parameter count
+     */
+    private final ConcurrentMap<String, Method[][]> methods = new ConcurrentHashMap<>();
+
+    private volatile Set<String> publicMethodNames;
+    private volatile Set<String> publicFieldNames;
+
+    private volatile Constructor<?>[][] constructors;
+
+    private final ConcurrentMap<Member, Invoker> invokers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Field, Invoker> getters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Field, Invoker> setters = new ConcurrentHashMap<>();
+
+    private ClassMembers(Class<?> clazz) {
+        this.clazz = clazz;
+    }
+
+    /**
+     * Returns the cached members of the given class
+     *
+     * @param clazz class to be inspected
+     * @return ClassMembers
+     */
+    static ClassMembers of(Class<?> clazz) {
+        return CACHE.get(clazz);
+    }
+
+    /**
+     * Methods declared by the class or one of its superclasses with the
+     * given name and number of parameters. Methods of the most derived
+     * class come first and overridden signatures are listed only once.
+     *
+     * @param name  method name
+     * @param arity number of parameters
+     * @return candidates, never <code>null</code>. Must not be modified.
+     */
+    Method[] methods(String name, int arity) {
+        Method[][] byArity = methods.get(name);
+        if (byArity == null) {
+            byArity = collectMethods(name);
+            if (byArity.length > 0) {
+                Method[][] known = methods.putIfAbsent(name, byArity);
+                if (known != null) {
+                    byArity = known;
+                }
+            }
+        }
+        return arity < byArity.length ? byArity[arity] : NO_METHODS;
+    }
+
+    /**
+     * Checks if there is a public method, declared or inherited, with the given name.
+     *
+     * @param name method name
+     * @return boolean
+     */
+    boolean hasPublicMethod(String name) {
+        Set<String> names = publicMethodNames;
+        if (names == null) {
+            names = new HashSet<>();
+            for (Method method : clazz.getMethods()) {
+                names.add(method.getName());
+            }
+            publicMethodNames = names;
+        }
+        return names.contains(name);
+    }
+
+    /**
+     * Public field, declared or inherited, with the given name.
+     * Unlike <code>Class.getField</code> a missing field does not throw.
+     *
+     * @param name field name
+     * @return the field or <code>null</code> if there is none
+     */
+    Field field(String name) {
+        Field field = fields.get(name);
+        if (field == null && hasPublicField(name)) {
+            field = fields.computeIfAbsent(name, this::findField);
+        }
+        return field;
+    }
+
+    private boolean hasPublicField(String name) {
+        Set<String> names = publicFieldNames;
+        if (names == null) {
+            names = new HashSet<>();
+            for (Field field : clazz.getFields()) {
+                names.add(field.getName());
+            }
+            publicFieldNames = names;
+        }
+        return names.contains(name);
+    }
+
+    /**
+     * Tells whether the name is a public field, a public method or
+     * none of them. Fields win over methods with the same name.
+     *
+     * @param name member name
+     * @return Kind
+     */
+    Kind kind(String name) {
+        Kind kind = kinds.get(name);
+        if (kind == null) {
+            if (field(name) != null) {
+                kind = Kind.FIELD;
+            } else if (hasPublicMethod(name)) {
+                kind = Kind.METHOD;
+            } else {
+                return Kind.NONE;
+            }
+            kinds.put(name, kind);
+        }
+        return kind;
+    }
+
+    /**
+     * Public constructors with the given number of parameters.
+     *
+     * @param arity number of parameters
+     * @return candidates, never <code>null</code>. Must not be modified.
+     */
+    Constructor<?>[] constructors(int arity) {
+        Constructor<?>[][] byArity = constructors;
+        if (byArity == null) {
+            byArity = groupByArity(Arrays.asList(clazz.getConstructors()), NO_CONSTRUCTORS);
+            constructors = byArity;
+        }
+        return arity < byArity.length ? byArity[arity] : NO_CONSTRUCTORS;
+    }
+
+    /**
+     * Invoker of a method found by {@link #methods(String, int)}.
+     *
+     * @param method method to be called
+     * @return Invoker
+     */
+    Invoker invoker(Method method) {
+        return invokers.computeIfAbsent(method, m -> Invoker.forMethod((Method) m));
+    }
+
+    /**
+     * Invoker of a constructor found by {@link #constructors(int)}.
+     *
+     * @param constructor constructor to be called
+     * @return Invoker
+     */
+    Invoker invoker(Constructor<?> constructor) {
+        return invokers.computeIfAbsent(constructor, c -> Invoker.forConstructor((Constructor<?>) c));
+    }
+
+    /**
+     * Invoker that reads the given field.
+     *
+     * @param field field to be read
+     * @return Invoker
+     */
+    Invoker getter(Field field) {
+        return getters.computeIfAbsent(field, Invoker::forGetter);
+    }
+
+    /**
+     * Invoker that writes the given field.
+     *
+     * @param field field to be written
+     * @return Invoker
+     */
+    Invoker setter(Field field) {
+        return setters.computeIfAbsent(field, Invoker::forSetter);
+    }
+
+    private Field findField(String name) {
+        try {
+            return clazz.getField(name);
+        } catch (NoSuchFieldException e) {
+            return null;
+        }
+    }
+
+    private Method[][] collectMethods(String name) {
+        List<Method> found = new ArrayList<>();
+        for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+            for (Method method : c.getDeclaredMethods()) {
+                if (method.getName().equals(name) && !isOverridden(found, method)) {
+                    found.add(method);
+                }
+            }
+        }
+        return groupByArity(found, NO_METHODS);
+    }
+
+    private static boolean isOverridden(List<Method> found, Method method) {
+        for (Method m : found) {
+            if (m.getDeclaringClass() != method.getDeclaringClass()
+                    && Arrays.equals(m.getParameterTypes(), method.getParameterTypes())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Executable> T[][] groupByArity(List<? extends T> members, T[] empty) {
+        int max = -1;
+        for (T member : members) {
+            max = Math.max(max, member.getParameterCount());
+        }
+
+        T[][] byArity = (T[][]) Array.newInstance(empty.getClass(), max + 1);
+        for (int arity = 0; arity <= max; arity++) {
+            List<T> same = new ArrayList<>();
+            for (T member : members) {
+                if (member.getParameterCount() == arity) {
+                    same.add(member);
+                }
+            }
+            byArity[arity] = same.isEmpty() ? empty : same.toArray(empty);
+        }
+        return byArity;
+    }
+}
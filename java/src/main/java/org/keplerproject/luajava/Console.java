@@ -41,6 +41,7 @@ public class Console {
      *
      * @param args names of the lua files to be executed
      */
+    @SuppressWarnings("try")
     public static void main(String[] args) {
         try {
             LuaState L = LuaStateFactory.newLuaState();
@@ -70,7 +71,7 @@ public class Console {
             while ((line = inp.readLine()) != null && !line.equals("exit")) {
                 int ret = L.LloadBuffer(line.getBytes(), "from console");
                 if (ret == 0) {
-                    synchronized (L) {
+                    try (LuaState.Session ignored = L.session()) {
                         ret = L.pcall(0, 0, 0);
                     }
                 }
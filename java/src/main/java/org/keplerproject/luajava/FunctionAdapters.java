@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2003-2007 Kepler Project.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.keplerproject.luajava;
+
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleBiFunction;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * JavaFunctions wrapping the functional interfaces accepted by the
+ * <code>register*</code> methods of {@link LuaState}. They read their
+ * arguments with the <code>arg*</code> methods of JavaFunction and push a
+ * typed result, without wrapping the arguments into LuaObjects.
+ */
+final class FunctionAdapters {
+    private FunctionAdapters() {
+    }
+
+    static final class DoubleUnary extends JavaFunction {
+        private final DoubleUnaryOperator f;
+
+        DoubleUnary(LuaState L, DoubleUnaryOperator f) {
+            super(L);
+            this.f = f;
+        }
+
+        @Override
+        public int execute() throws LuaException {
+            return retDouble(f.applyAsDouble(argDouble(1)));
+        }
+    }
+
+    static final class DoubleBinary extends JavaFunction {
+        private final DoubleBinaryOperator f;
+
+        DoubleBinary(LuaState L, DoubleBinaryOperator f) {
+            super(L);
+            this.f = f;
+        }
+
+        @Override
+        public int execute() throws LuaException {
+            return retDouble(f.applyAsDouble(argDouble(1), argDouble(2)));
+        }
+    }
+
+    static final class ToDouble extends JavaFunction {
+        private final ToDoubleFunction<Object> f;
+
+        ToDouble(LuaState L, ToDoubleFunction<Object> f) {
+            super(L);
+            this.f = f;
+        }
+
+        @Override
+        public int execute() throws LuaException {
+            return retDouble(f.applyAsDouble(argObject(1)));
+        }
+    }
+
+    static final class ToDoubleBi extends JavaFunction {
+        private final ToDoubleBiFunction<Object, Object> f;
+
+        ToDoubleBi(LuaState L, ToDoubleBiFunction<Object, Object> f) {
+            super(L);
+            this.f = f;
+        }
+
+        @Override
+        public int execute() throws LuaException {
+            return retDouble(f.applyAsDouble(argObject(1), argObject(2)));
+        }
+    }
+
+    static final class Unary extends JavaFunction {
+        private final Function<Object, ?> f;
+
+        Unary(LuaState L, Function<Object, ?> f) {
+            super(L);
+            this.f = f;
+        }
+
+        @Override
+        public int execute() throws LuaException {
+            return retObject(f.apply(argObject(1)));
+        }
+    }
+
+    static final class Binary extends JavaFunction {
+        private final BiFunction<Object, Object, ?> f;
+
+        Binary(LuaState L, BiFunction<Object, Object, ?> f) {
+            super(L);
+            this.f = f;
+        }
+
+        @Override
+        public int execute() throws LuaException {
+            return retObject(f.apply(argObject(1), argObject(2)));
+        }
+    }
+
+    static final class Supply extends JavaFunction {
+        private final Supplier<?> f;
+
+        Supply(LuaState L, Supplier<?> f) {
+            super(L);
+            this.f = f;
+        }
+
+        @Override
+        public int execute() throws LuaException {
+            return retObject(f.get());
+        }
+    }
+
+    static final class Consume extends JavaFunction {
+        private final Consumer<Object> f;
+
+        Consume(LuaState L, Consumer<Object> f) {
+            super(L);
+            this.f = f;
+        }
+
+        @Override
+        public int execute() throws LuaException {
+            f.accept(argObject(1));
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,453 @@
+/*
+ * Copyright (C) 2003-2007 Kepler Project.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.keplerproject.luajava;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes the class file of an interface implementation backed by a
+ * {@link LuaInterface}. Method <code>i</code> of the generated class does
+ * <pre>
+ * int top = target.begin(i);
+ * target.pushNumber(a); target.pushObject(b); ...
+ * return target.callDouble(i, top);
+ * </pre>
+ * with primitives passed as they are. The code has no branches, the only
+ * exception handler covers the pushes and hands the state back through
+ * <code>target.abort(t, top)</code>.
+ */
+final class InterfaceGenerator {
+    private static final String SUPPORT = "org/keplerproject/luajava/LuaInterface";
+    private static final String SUPPORT_DESC = "L" + SUPPORT + ";";
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_PRIVATE = 0x0002;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int ILOAD = 0x15;
+    private static final int LLOAD = 0x16;
+    private static final int FLOAD = 0x17;
+    private static final int DLOAD = 0x18;
+    private static final int ALOAD = 0x19;
+    private static final int ISTORE = 0x36;
+    private static final int SIPUSH = 0x11;
+    private static final int I2D = 0x87;
+    private static final int L2D = 0x8a;
+    private static final int F2D = 0x8d;
+    private static final int D2I = 0x8e;
+    private static final int D2F = 0x90;
+    private static final int I2B = 0x91;
+    private static final int I2S = 0x93;
+    private static final int SWAP = 0x5f;
+    private static final int IRETURN = 0xac;
+    private static final int LRETURN = 0xad;
+    private static final int FRETURN = 0xae;
+    private static final int DRETURN = 0xaf;
+    private static final int ARETURN = 0xb0;
+    private static final int RETURN = 0xb1;
+    private static final int GETFIELD = 0xb4;
+    private static final int PUTFIELD = 0xb5;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int ATHROW = 0xbf;
+    private static final int CHECKCAST = 0xc0;
+
+    private final ConstantPool pool = new ConstantPool();
+    private final String className;
+
+    private InterfaceGenerator(String className) {
+        this.className = className;
+    }
+
+    /**
+     * Generates the implementation of an interface.
+     *
+     * @param type    interface to implement
+     * @param methods methods to implement, in the order of the indexes
+     *                passed to the LuaInterface
+     * @return class file of a class with a public constructor taking the LuaInterface
+     */
+    static byte[] generate(Class<?> type, Method[] methods) {
+        return new InterfaceGenerator(SUPPORT + "$" + type.getSimpleName()).write(type, methods);
+    }
+
+    private byte[] write(Class<?> type, Method[] methods) {
+        int thisClass = pool.classRef(className);
+        int superClass = pool.classRef("java/lang/Object");
+        int iface = pool.classRef(internalName(type));
+        int targetName = pool.utf8("target");
+        int targetDesc = pool.utf8(SUPPORT_DESC);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(body)) {
+            // fields
+            out.writeShort(1);
+            out.writeShort(ACC_PRIVATE | ACC_FINAL);
+            out.writeShort(targetName);
+            out.writeShort(targetDesc);
+            out.writeShort(0);
+
+            // methods
+            out.writeShort(methods.length + 1);
+            writeConstructor(out);
+            for (int i = 0; i < methods.length; i++) {
+                writeMethod(out, i, methods[i]);
+            }
+
+            // attributes
+            out.writeShort(0);
+
+            ByteArrayOutputStream classFile = new ByteArrayOutputStream();
+            try (DataOutputStream cf = new DataOutputStream(classFile)) {
+                cf.writeInt(0xCAFEBABE);
+                cf.writeShort(0);
+                cf.writeShort(52);
+                pool.writeTo(cf);
+                cf.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+                cf.writeShort(thisClass);
+                cf.writeShort(superClass);
+                cf.writeShort(1);
+                cf.writeShort(iface);
+                body.writeTo(cf);
+            }
+            return classFile.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeConstructor(DataOutputStream out) throws IOException {
+        Code code = new Code();
+        code.op(ALOAD_0);
+        code.op(INVOKESPECIAL).u2(pool.methodRef("java/lang/Object", "<init>", "()V"));
+        code.op(ALOAD_0);
+        code.op(ALOAD_1);
+        code.op(PUTFIELD).u2(pool.fieldRef(className, "target", SUPPORT_DESC));
+        code.op(RETURN);
+
+        out.writeShort(ACC_PUBLIC);
+        out.writeShort(pool.utf8("<init>"));
+        out.writeShort(pool.utf8("(" + SUPPORT_DESC + ")V"));
+        writeCode(out, code, 2, 2, null);
+    }
+
+    private void writeMethod(DataOutputStream out, int index, Method method) throws IOException {
+        int target = pool.fieldRef(className, "target", SUPPORT_DESC);
+        Class<?>[] params = method.getParameterTypes();
+        Class<?> ret = method.getReturnType();
+
+        int slots = 1;
+        for (Class<?> param : params) {
+            slots += slotSize(param);
+        }
+        int topLocal = slots;
+
+        Code code = new Code();
+        // int top = target.begin(index)
+        code.op(ALOAD_0).op(GETFIELD).u2(target);
+        code.op(SIPUSH).u2(index);
+        code.op(INVOKEVIRTUAL).u2(pool.methodRef(SUPPORT, "begin", "(I)I"));
+        code.op(ISTORE).u1(topLocal);
+
+        // target.pushXxx(arg)
+        int start = code.size();
+        int slot = 1;
+        for (Class<?> param : params) {
+            code.op(ALOAD_0).op(GETFIELD).u2(target);
+            String push;
+            if (param == double.class) {
+                code.op(DLOAD).u1(slot);
+                push = "pushNumber(D)V";
+            } else if (param == float.class) {
+                code.op(FLOAD).u1(slot).op(F2D);
+                push = "pushNumber(D)V";
+            } else if (param == long.class) {
+                code.op(LLOAD).u1(slot).op(L2D);
+                push = "pushNumber(D)V";
+            } else if (param == int.class || param == short.class || param == byte.class) {
+                code.op(ILOAD).u1(slot).op(I2D);
+                push = "pushNumber(D)V";
+            } else if (param == boolean.class) {
+                code.op(ILOAD).u1(slot);
+                push = "pushBoolean(Z)V";
+            } else if (param == char.class) {
+                code.op(ILOAD).u1(slot);
+                push = "pushChar(C)V";
+            } else {
+                code.op(ALOAD).u1(slot);
+                push = "pushObject(Ljava/lang/Object;)V";
+            }
+            int paren = push.indexOf('(');
+            code.op(INVOKEVIRTUAL).u2(pool.methodRef(SUPPORT, push.substring(0, paren), push.substring(paren)));
+            slot += slotSize(param);
+        }
+        int end = code.size();
+
+        // return target.callXxx(index, top)
+        code.op(ALOAD_0).op(GETFIELD).u2(target);
+        code.op(SIPUSH).u2(index);
+        code.op(ILOAD).u1(topLocal);
+        if (ret == void.class) {
+            code.op(INVOKEVIRTUAL).u2(pool.methodRef(SUPPORT, "callVoid", "(II)V"));
+            code.op(RETURN);
+        } else if (ret == double.class) {
+            code.op(INVOKEVIRTUAL).u2(pool.methodRef(SUPPORT, "callDouble", "(II)D"));
+            code.op(DRETURN);
+        } else if (ret == float.class) {
+            code.op(INVOKEVIRTUAL).u2(pool.methodRef(SUPPORT, "callDouble", "(II)D"));
+            code.op(D2F).op(FRETURN);
+        } else if (ret == long.class) {
+            code.op(INVOKEVIRTUAL).u2(pool.methodRef(SUPPORT, "callLong", "(II)J"));
+            code.op(LRETURN);
+        } else if (ret == int.class) {
+            code.op(INVOKEVIRTUAL).u2(pool.methodRef(SUPPORT, "callDouble", "(II)D"));
+            code.op(D2I).op(IRETURN);
+        } else if (ret == short.class) {
+            code.op(INVOKEVIRTUAL).u2(pool.methodRef(SUPPORT, "callDouble", "(II)D"));
+            code.op(D2I).op(I2S).op(IRETURN);
+        } else if (ret == byte.class) {
+            code.op(INVOKEVIRTUAL).u2(pool.methodRef(SUPPORT, "callDouble", "(II)D"));
+            code.op(D2I).op(I2B).op(IRETURN);
+        } else if (ret == boolean.class) {
+            code.op(INVOKEVIRTUAL).u2(pool.methodRef(SUPPORT, "callBoolean", "(II)Z"));
+            code.op(IRETURN);
+        } else if (ret == char.class) {
+            code.op(INVOKEVIRTUAL).u2(pool.methodRef(SUPPORT, "callChar", "(II)C"));
+            code.op(IRETURN);
+        } else {
+            code.op(INVOKEVIRTUAL).u2(pool.methodRef(SUPPORT, "callObject", "(II)Ljava/lang/Object;"));
+            if (ret != Object.class) {
+                code.op(CHECKCAST).u2(pool.classRef(internalName(ret)));
+            }
+            code.op(ARETURN);
+        }
+
+        // catch (Throwable t) { throw target.abort(t, top); }
+        Handler handler = null;
+        if (end > start) {
+            handler = new Handler(start, end, code.size(), params);
+            code.op(ALOAD_0).op(GETFIELD).u2(target);
+            code.op(SWAP);
+            code.op(ILOAD).u1(topLocal);
+            code.op(INVOKEVIRTUAL).u2(pool.methodRef(SUPPORT, "abort",
+                    "(Ljava/lang/Throwable;I)Ljava/lang/Throwable;"));
+            code.op(ATHROW);
+        }
+
+        out.writeShort(ACC_PUBLIC | ACC_FINAL);
+        out.writeShort(pool.utf8(method.getName()));
+        out.writeShort(pool.utf8(MethodType.methodType(ret, params).toMethodDescriptorString()));
+        writeCode(out, code, 4, topLocal + 1, handler);
+    }
+
+    private void writeCode(DataOutputStream out, Code code, int maxStack, int maxLocals,
+                           Handler handler) throws IOException {
+        byte[] frame = handler == null ? null : stackMapTable(handler);
+        int length = 2 + 2 + 4 + code.size() + 2 + (handler == null ? 0 : 8) + 2
+                + (frame == null ? 0 : 6 + frame.length);
+
+        out.writeShort(1);
+        out.writeShort(pool.utf8("Code"));
+        out.writeInt(length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.size());
+        code.bytes.writeTo(out);
+        if (handler == null) {
+            out.writeShort(0);
+            out.writeShort(0);
+        } else {
+            out.writeShort(1);
+            out.writeShort(handler.start);
+            out.writeShort(handler.end);
+            out.writeShort(handler.pc);
+            out.writeShort(0);
+            out.writeShort(1);
+            out.writeShort(pool.utf8("StackMapTable"));
+            out.writeInt(frame.length);
+            out.write(frame);
+        }
+    }
+
+    /**
+     * A single full frame at the handler: locals are this, the parameters
+     * and top, the stack holds the Throwable.
+     */
+    private byte[] stackMapTable(Handler handler) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeShort(1);
+            out.writeByte(255);
+            out.writeShort(handler.pc);
+            out.writeShort(handler.params.length + 2);
+            out.writeByte(7);
+            out.writeShort(pool.classRef(className));
+            for (Class<?> param : handler.params) {
+                if (param == double.class) {
+                    out.writeByte(3);
+                } else if (param == long.class) {
+                    out.writeByte(4);
+                } else if (param == float.class) {
+                    out.writeByte(2);
+                } else if (param.isPrimitive()) {
+                    out.writeByte(1);
+                } else {
+                    out.writeByte(7);
+                    out.writeShort(pool.classRef("java/lang/Object"));
+                }
+            }
+            out.writeByte(1);
+            out.writeShort(1);
+            out.writeByte(7);
+            out.writeShort(pool.classRef("java/lang/Throwable"));
+        }
+        return bytes.toByteArray();
+    }
+
+    private static int slotSize(Class<?> type) {
+        return type == long.class || type == double.class ? 2 : 1;
+    }
+
+    private static String internalName(Class<?> type) {
+        return type.getName().replace('.', '/');
+    }
+
+    private static final class Handler {
+        private final int start;
+        private final int end;
+        private final int pc;
+        private final Class<?>[] params;
+
+        private Handler(int start, int end, int pc, Class<?>[] params) {
+            this.start = start;
+            this.end = end;
+            this.pc = pc;
+            this.params = params;
+        }
+    }
+
+    private static final class Code {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        Code op(int opcode) {
+            bytes.write(opcode);
+            return this;
+        }
+
+        Code u1(int value) {
+            bytes.write(value);
+            return this;
+        }
+
+        Code u2(int value) {
+            bytes.write(value >>> 8);
+            bytes.write(value);
+            return this;
+        }
+
+        int size() {
+            return bytes.size();
+        }
+    }
+
+    private static final class ConstantPool {
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private int count = 1;
+
+        int utf8(String value) {
+            return entry("U" + value, () -> {
+                out.writeByte(1);
+                out.writeUTF(value);
+            });
+        }
+
+        int classRef(String name) {
+            int nameIndex = utf8(name);
+            return entry("C" + name, () -> {
+                out.writeByte(7);
+                out.writeShort(nameIndex);
+            });
+        }
+
+        int fieldRef(String owner, String name, String desc) {
+            return memberRef(9, owner, name, desc);
+        }
+
+        int methodRef(String owner, String name, String desc) {
+            return memberRef(10, owner, name, desc);
+        }
+
+        private int memberRef(int tag, String owner, String name, String desc) {
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int descIndex = utf8(desc);
+            int nameAndType = entry("N" + name + " " + desc, () -> {
+                out.writeByte(12);
+                out.writeShort(nameIndex);
+                out.writeShort(descIndex);
+            });
+            return entry(tag + owner + "." + name + " " + desc, () -> {
+                out.writeByte(tag);
+                out.writeShort(ownerIndex);
+                out.writeShort(nameAndType);
+            });
+        }
+
+        private int entry(String key, Entry entry) {
+            Integer index = indexes.get(key);
+            if (index != null) {
+                return index;
+            }
+            try {
+                entry.write();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            indexes.put(key, count);
+            return count++;
+        }
+
+        void writeTo(DataOutputStream cf) throws IOException {
+            cf.writeShort(count);
+            out.flush();
+            bytes.writeTo(cf);
+        }
+
+        private interface Entry {
+            void write() throws IOException;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2003-2007 Kepler Project.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.keplerproject.luajava;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * A resolved member turned into a {@link MethodHandle} with an erased,
+ * uniform signature. Invokers are created once per member and cached by
+ * {@link ClassMembers}, so access checks and <code>setAccessible</code>
+ * happen only when the member is first used.
+ * <p>
+ * Members that can not be unreflected keep going through core reflection,
+ * which reports the same errors the bridge always did.
+ */
+final class Invoker {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    /**
+     * <code>(Object target, Object[] args)Object</code>
+     */
+    private static final MethodType INVOKE_TYPE =
+            MethodType.methodType(Object.class, Object.class, Object[].class);
+    /**
+     * <code>(Object target)Object</code>
+     */
+    private static final MethodType GET_TYPE =
+            MethodType.methodType(Object.class, Object.class);
+    /**
+     * <code>(Object target, Object value)void</code>
+     */
+    private static final MethodType SET_TYPE =
+            MethodType.methodType(void.class, Object.class, Object.class);
+
+    private final MethodHandle handle;
+
+    private Invoker(MethodHandle handle) {
+        this.handle = handle;
+    }
+
+    /**
+     * Invokes a method or constructor. The target is ignored for static
+     * methods and constructors.
+     *
+     * @param target receiver of the call
+     * @param args   arguments, already converted to the parameter types
+     * @return the returned value, <code>null</code> for void methods
+     * @throws InvocationTargetException wrapping anything thrown by the call
+     */
+    Object invoke(Object target, Object[] args) throws InvocationTargetException {
+        try {
+            return (Object) handle.invokeExact(target, args);
+        } catch (InvocationTargetException e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new InvocationTargetException(e);
+        }
+    }
+
+    /**
+     * Reads a field. The target is ignored for static fields.
+     *
+     * @param target object that holds the field
+     * @return the field value
+     * @throws InvocationTargetException wrapping anything thrown by the access
+     */
+    Object get(Object target) throws InvocationTargetException {
+        try {
+            return (Object) handle.invokeExact(target);
+        } catch (Throwable e) {
+            throw new InvocationTargetException(e);
+        }
+    }
+
+    /**
+     * Writes a field. The target is ignored for static fields.
+     *
+     * @param target object that holds the field
+     * @param value  new value
+     * @throws IllegalArgumentException if the value does not fit the field
+     * @throws IllegalAccessException   if the field can not be written
+     */
+    void set(Object target, Object value) throws IllegalAccessException {
+        try {
+            handle.invokeExact(target, value);
+        } catch (ClassCastException | NullPointerException e) {
+            throw new IllegalArgumentException(e);
+        } catch (IllegalAccessException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    static Invoker forMethod(Method method) {
+        if (Modifier.isPublic(method.getModifiers())) {
+            makeAccessible(method);
+        }
+
+        MethodHandle mh;
+        try {
+            mh = LOOKUP.unreflect(method).asFixedArity();
+            if (Modifier.isStatic(method.getModifiers())) {
+                mh = MethodHandles.dropArguments(mh, 0, Object.class);
+            }
+            mh = mh.asSpreader(Object[].class, method.getParameterCount());
+        } catch (IllegalAccessException e) {
+            mh = reflective("invoke", Method.class, method,
+                    MethodType.methodType(Object.class, Object.class, Object[].class));
+        }
+        return new Invoker(mh.asType(INVOKE_TYPE));
+    }
+
+    static Invoker forConstructor(Constructor<?> constructor) {
+        MethodHandle mh;
+        try {
+            mh = LOOKUP.unreflectConstructor(constructor).asFixedArity()
+                    .asSpreader(Object[].class, constructor.getParameterCount());
+        } catch (IllegalAccessException e) {
+            mh = reflective("newInstance", Constructor.class, constructor,
+                    MethodType.methodType(Object.class, Object[].class));
+        }
+        mh = MethodHandles.dropArguments(mh, 0, Object.class);
+        return new Invoker(mh.asType(INVOKE_TYPE));
+    }
+
+    static Invoker forGetter(Field field) {
+        makeAccessible(field);
+
+        MethodHandle mh;
+        try {
+            mh = LOOKUP.unreflectGetter(field);
+            if (Modifier.isStatic(field.getModifiers())) {
+                mh = MethodHandles.dropArguments(mh, 0, Object.class);
+            }
+        } catch (IllegalAccessException e) {
+            mh = reflective("get", Field.class, field,
+                    MethodType.methodType(Object.class, Object.class));
+        }
+        return new Invoker(mh.asType(GET_TYPE));
+    }
+
+    static Invoker forSetter(Field field) {
+        if (Modifier.isFinal(field.getModifiers())) {
+            // the field may already be accessible through its getter, refuse explicitly
+            MethodHandle mh;
+            try {
+                mh = LOOKUP.findStatic(Invoker.class, "setFinal",
+                        MethodType.methodType(void.class, Field.class, Object.class, Object.class));
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+            return new Invoker(mh.bindTo(field));
+        }
+        makeAccessible(field);
+
+        MethodHandle mh;
+        try {
+            mh = LOOKUP.unreflectSetter(field);
+            if (Modifier.isStatic(field.getModifiers())) {
+                mh = MethodHandles.dropArguments(mh, 0, Object.class);
+            }
+        } catch (IllegalAccessException e) {
+            mh = reflective("set", Field.class, field,
+                    MethodType.methodType(void.class, Object.class, Object.class));
+        }
+        return new Invoker(mh.asType(SET_TYPE));
+    }
+
+    private static void setFinal(Field field, Object target, Object value) throws IllegalAccessException {
+        throw new IllegalAccessException("Can not set final field " + field);
+    }
+
+    private static void makeAccessible(AccessibleObject member) {
+        try {
+            member.setAccessible(true);
+        } catch (RuntimeException ignored) {
+            // not opened to us, the lookup decides what is reachable
+        }
+    }
+
+    /**
+     * Handle to a core reflection call bound to the given member.
+     */
+    private static MethodHandle reflective(String name, Class<?> type, Object member, MethodType methodType) {
+        try {
+            return LOOKUP.findVirtual(type, name, methodType).bindTo(member);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -24,12 +24,24 @@
 
 package org.keplerproject.luajava;
 
+import java.nio.ByteBuffer;
+
 /**
  * JavaFunction is a class that can be used to implement a Lua function in Java.
  * JavaFunction is an abstract class, so in order to use it you must extend this
  * class and implement the <code>execute</code> method. This <code>execute</code>
  * method is the method that will be called when you call the function from Lua.
  * To register the JavaFunction in Lua use the method <code>register(String name)</code>.
+ * <p>
+ * Arguments can be read without creating LuaObjects through the
+ * <code>arg*</code> methods, which number the arguments from 1 leaving
+ * the function itself out, and results pushed with the <code>ret*</code>
+ * methods:
+ * <pre>
+ * public int execute() throws LuaException {
+ *     return retDouble(argDouble(1) * argCount());
+ * }
+ * </pre>
  */
 public abstract class JavaFunction {
 
@@ -70,14 +82,194 @@ public abstract class JavaFunction {
         return L.getLuaObject(idx);
     }
 
+    /**
+     * Returns the number of arguments, without the function itself.
+     *
+     * @return int
+     */
+    public int argCount() {
+        return L.getTop() - 1;
+    }
+
+    /**
+     * Returns the type of an argument, {@link LuaState#LUA_TNONE} past the last one.
+     *
+     * @param arg index of the argument, from 1
+     * @return one of the <code>LuaState.LUA_T*</code> constants
+     */
+    public int argType(int arg) {
+        return L.type(arg + 1);
+    }
+
+    /**
+     * Reads a number argument.
+     *
+     * @param arg index of the argument, from 1
+     * @throws LuaException if the argument is not a number
+     */
+    public double argDouble(int arg) throws LuaException {
+        return LuaBindings.toNumber(L, arg + 1);
+    }
+
+    /**
+     * Reads a number argument, cast to long.
+     *
+     * @param arg index of the argument, from 1
+     * @throws LuaException if the argument is not a number
+     */
+    public long argLong(int arg) throws LuaException {
+        return (long) LuaBindings.toNumber(L, arg + 1);
+    }
+
+    /**
+     * Reads a number argument, cast to int.
+     *
+     * @param arg index of the argument, from 1
+     * @throws LuaException if the argument is not a number
+     */
+    public int argInt(int arg) throws LuaException {
+        return (int) LuaBindings.toNumber(L, arg + 1);
+    }
+
+    /**
+     * Reads an argument as a Lua condition: false for nil and false,
+     * true for anything else.
+     *
+     * @param arg index of the argument, from 1
+     */
+    public boolean argBoolean(int arg) {
+        return L.toBoolean(arg + 1);
+    }
+
+    /**
+     * Reads a string argument. Numbers are converted to strings.
+     *
+     * @param arg index of the argument, from 1
+     * @return String, or null if the argument is nil or missing
+     * @throws LuaException if the argument is neither a string, a number nor nil
+     */
+    public String argString(int arg) throws LuaException {
+        int type = L.type(arg + 1);
+        if (type == LuaState.LUA_TNIL || type == LuaState.LUA_TNONE) {
+            return null;
+        }
+        if (type == LuaState.LUA_TNUMBER) {
+            // convert a copy, lua_tostring would turn the argument itself into a string
+            L.pushValue(arg + 1);
+            String value = L.toString(-1);
+            L.pop(1);
+            return value;
+        }
+        if (type != LuaState.LUA_TSTRING) {
+            throw new LuaException("Invalid function call. Argument " + arg + " must be a string.");
+        }
+        return L.toString(arg + 1);
+    }
+
+    /**
+     * Copies the bytes of a string argument into the buffer, see
+     * {@link LuaState#toString(int, ByteBuffer)}.
+     *
+     * @param arg    index of the argument, from 1
+     * @param buffer destination, its position is advanced
+     * @return the length of the string in bytes, or -1 if the argument is not a string
+     */
+    public int argBytes(int arg, ByteBuffer buffer) {
+        return L.toString(arg + 1, buffer);
+    }
+
+    /**
+     * Reads an argument converted like {@link LuaState#toJavaObject(int)} does.
+     *
+     * @param arg index of the argument, from 1
+     */
+    public Object argObject(int arg) throws LuaException {
+        return L.toJavaObject(arg + 1);
+    }
+
+    /**
+     * Pushes a number result.
+     *
+     * @return 1, the number of results to return from <code>execute</code>
+     */
+    protected int retDouble(double value) {
+        L.pushNumber(value);
+        return 1;
+    }
+
+    /**
+     * Pushes a number result.
+     *
+     * @return 1, the number of results to return from <code>execute</code>
+     */
+    protected int retLong(long value) {
+        L.pushNumber(value);
+        return 1;
+    }
+
+    /**
+     * Pushes a boolean result.
+     *
+     * @return 1, the number of results to return from <code>execute</code>
+     */
+    protected int retBoolean(boolean value) {
+        L.pushBoolean(value);
+        return 1;
+    }
+
+    /**
+     * Pushes a string result, nil for null.
+     *
+     * @return 1, the number of results to return from <code>execute</code>
+     */
+    protected int retString(String value) {
+        if (value == null) {
+            L.pushNil();
+        } else {
+            L.pushString(value);
+        }
+        return 1;
+    }
+
+    /**
+     * Pushes the remaining bytes of the buffer as a string result, nil for null.
+     *
+     * @return 1, the number of results to return from <code>execute</code>
+     */
+    protected int retBytes(ByteBuffer value) {
+        L.pushString(value);
+        return 1;
+    }
+
+    /**
+     * Pushes nil.
+     *
+     * @return 1, the number of results to return from <code>execute</code>
+     */
+    protected int retNil() {
+        L.pushNil();
+        return 1;
+    }
+
+    /**
+     * Pushes a result converted like {@link LuaState#pushObjectValue(Object)} does.
+     *
+     * @return 1, the number of results to return from <code>execute</code>
+     */
+    protected int retObject(Object value) throws LuaException {
+        L.pushObjectValue(value);
+        return 1;
+    }
+
     /**
      * Register a JavaFunction with a given name. This method registers in a
      * global variable the JavaFunction specified.
      *
      * @param name name of the function.
      */
+    @SuppressWarnings("try")
     public void register(String name) throws LuaException {
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             L.pushJavaFunction(this);
             L.setGlobal(name);
         }
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2003-2007 Kepler Project.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.keplerproject.luajava;
+
+import java.util.Arrays;
+
+/**
+ * Scope for the LuaObjects created by one thread. Objects created while
+ * the arena is open skip the cleaner, their registry references are all
+ * released in a single native call when the arena is closed:
+ * <pre>
+ * try (LuaArena arena = L.openArena()) {
+ *     LuaObject f = L.getLuaObject("f");
+ *     for (...) {
+ *         f.call(...);
+ *     }
+ * }
+ * </pre>
+ * The arena holds the state like a {@link LuaState.Session} does. Arenas
+ * may be nested and must be closed in reverse order, by the thread that
+ * opened them. LuaObjects of an arena must not be used after it is closed.
+ */
+public final class LuaArena implements AutoCloseable {
+    private final LuaState L;
+    private final LuaState.Session session;
+    private final LuaArena parent;
+
+    private int[] refs = new int[32];
+    private int size;
+    private boolean closed;
+
+    LuaArena(LuaState L) {
+        this.session = L.session();
+        this.L = L;
+        this.parent = L.getArena();
+        L.setArena(this);
+    }
+
+    void add(int ref) {
+        if (size == refs.length) {
+            refs = Arrays.copyOf(refs, size << 1);
+        }
+        refs[size++] = ref;
+    }
+
+    /**
+     * Returns the state of the arena
+     *
+     * @return LuaState
+     */
+    public LuaState getLuaState() {
+        return L;
+    }
+
+    /**
+     * Returns the number of references held by the arena
+     *
+     * @return int
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Releases every reference of the arena and the state.
+     *
+     * @throws IllegalStateException if a nested arena is still open
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        if (L.getArena() != this) {
+            throw new IllegalStateException("A nested LuaArena is still open");
+        }
+        closed = true;
+        try {
+            L.setArena(parent);
+            if (size > 0 && L.isOpen()) {
+                L.unrefAll(refs, size);
+            }
+            size = 0;
+        } finally {
+            session.close();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2003-2007 Kepler Project.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.keplerproject.luajava;
+
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of reflection-free method bindings. When Lua calls a method of
+ * a Java object or class, {@link LuaJavaAPI#objectIndex(int, Object, String)}
+ * looks for a binding of the exact class first and only falls back to the
+ * reflective search if there is none.
+ * <p>
+ * Bindings are usually generated from {@link LuaExport} by the annotation
+ * processor and registered with {@link #loadProviders(ClassLoader)}, they may
+ * also be written by hand:
+ * <pre>
+ * LuaBindings.register(Point.class, "length", (L, self) -&gt; {
+ *     L.pushNumber(((Point) self).length());
+ *     return 1;
+ * });
+ * </pre>
+ */
+public final class LuaBindings {
+    private static final ConcurrentMap<Class<?>, Map<String, Binding>> BINDINGS = new ConcurrentHashMap<>();
+
+    private LuaBindings() {
+    }
+
+    /**
+     * A bound method. The arguments are on the stack from index 2 on,
+     * index 1 holds the object or class the method was called on.
+     */
+    @FunctionalInterface
+    public interface Binding {
+        /**
+         * @param L    state holding the arguments
+         * @param self object the method is called on, the Class for static methods
+         * @return number of values pushed
+         */
+        int call(LuaState L, Object self) throws LuaException;
+    }
+
+    /**
+     * Registers the bindings of one class, found through {@link ServiceLoader}
+     */
+    public interface Provider {
+        void register();
+    }
+
+    /**
+     * Binds a method name of a class. Replaces an earlier binding of the name.
+     *
+     * @param type    class the method is called on
+     * @param name    method name
+     * @param binding code to run instead of the reflective call
+     */
+    public static void register(Class<?> type, String name, Binding binding) {
+        BINDINGS.computeIfAbsent(type, k -> new ConcurrentHashMap<>()).put(name, binding);
+    }
+
+    /**
+     * Drops every binding of a class, its methods are called through reflection again.
+     *
+     * @param type class
+     */
+    public static void unregister(Class<?> type) {
+        BINDINGS.remove(type);
+    }
+
+    /**
+     * Registers the bindings of every {@link Provider} listed as service.
+     *
+     * @param loader class loader to search
+     * @return number of providers
+     */
+    public static int loadProviders(ClassLoader loader) {
+        int count = 0;
+        for (Provider provider : ServiceLoader.load(Provider.class, loader)) {
+            provider.register();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Finds the binding of a method name, of the exact class only.
+     *
+     * @return Binding, or null
+     */
+    static Binding find(Class<?> type, String name) {
+        if (BINDINGS.isEmpty()) {
+            return null;
+        }
+        Map<String, Binding> bindings = BINDINGS.get(type);
+        return bindings == null ? null : bindings.get(name);
+    }
+
+    /**
+     * Checks the number of arguments of a bound call.
+     *
+     * @throws LuaException if it does not match
+     */
+    public static void checkArgs(LuaState L, String method, int count) throws LuaException {
+        if (L.getTop() - 1 != count) {
+            throw new LuaException("Invalid method call. " + method + " takes " + count + " arguments.");
+        }
+    }
+
+    /**
+     * Reads a number argument.
+     *
+     * @throws LuaException if the argument is not a number
+     */
+    public static double toNumber(LuaState L, int idx) throws LuaException {
+        if (L.type(idx) != LuaState.LUA_TNUMBER) {
+            throw new LuaException("Invalid method call. Argument " + (idx - 1) + " must be a number.");
+        }
+        return L.toNumber(idx);
+    }
+
+    /**
+     * Reads a boolean argument.
+     *
+     * @throws LuaException if the argument is not a boolean
+     */
+    public static boolean toBoolean(LuaState L, int idx) throws LuaException {
+        if (L.type(idx) != LuaState.LUA_TBOOLEAN) {
+            throw new LuaException("Invalid method call. Argument " + (idx - 1) + " must be a boolean.");
+        }
+        return L.toBoolean(idx);
+    }
+
+    /**
+     * Reads a string argument, nil gives null.
+     *
+     * @throws LuaException if the argument is neither a string nor nil
+     */
+    public static String toString(LuaState L, int idx) throws LuaException {
+        int type = L.type(idx);
+        if (type == LuaState.LUA_TNIL) {
+            return null;
+        }
+        if (type != LuaState.LUA_TSTRING) {
+            throw new LuaException("Invalid method call. Argument " + (idx - 1) + " must be a string.");
+        }
+        return L.toString(idx);
+    }
+
+    /**
+     * Reads an object argument, nil gives null.
+     *
+     * @throws LuaException if the argument is not an instance of type
+     */
+    public static <T> T toObject(LuaState L, int idx, Class<T> type) throws LuaException {
+        Object value = L.toJavaObject(idx);
+        if (value != null && !type.isInstance(value)) {
+            throw new LuaException("Invalid method call. Argument " + (idx - 1) + " must be a " + type.getName() + ".");
+        }
+        return type.cast(value);
+    }
+
+    /**
+     * Turns what a bound method threw into the exception of the call,
+     * errors are rethrown as they are.
+     *
+     * @return LuaException to throw
+     */
+    public static LuaException wrap(Throwable e) {
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        if (e instanceof LuaException) {
+            return (LuaException) e;
+        }
+        if (e instanceof Exception) {
+            return new LuaException((Exception) e);
+        }
+        LuaException wrapped = new LuaException(e.toString());
+        wrapped.initCause(e);
+        return wrapped;
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2003-2007 Kepler Project.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.keplerproject.luajava;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Lua object seen through a Java interface. The implementation of each
+ * interface is generated once by {@link InterfaceGenerator} and defined as
+ * a hidden class, its methods push primitive arguments directly and call
+ * the function of the method through this class.
+ * <p>
+ * The functions are looked up on the first call of each method and kept
+ * with their registry references. For a table the function of a method is
+ * the field named like the method, it is called without self as with
+ * {@link LuaObject#createProxy(String)}. A function implements every
+ * abstract method. Methods without a function return null, 0 or false.
+ * <p>
+ * Lua errors are thrown as LuaException if the method declares it,
+ * otherwise wrapped into an {@link UndeclaredThrowableException}.
+ */
+final class LuaInterface {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class, LuaInterface.class);
+
+    private static final ClassValue<Implementation> IMPLEMENTATIONS = new ClassValue<Implementation>() {
+        @Override
+        protected Implementation computeValue(Class<?> type) {
+            return Implementation.of(type);
+        }
+    };
+
+    private final LuaObject obj;
+    private final LuaState L;
+    private final boolean functional;
+    private final Implementation implementation;
+    private final LuaObject[] functions;
+    private final boolean[] resolved;
+    private LuaState.Session session;
+    /**
+     * First error raised while pushing the arguments, thrown by the call
+     */
+    private LuaException error;
+
+    private LuaInterface(LuaObject obj, boolean functional, Implementation implementation) {
+        this.obj = obj;
+        this.L = obj.L;
+        this.functional = functional;
+        this.implementation = implementation;
+        this.functions = new LuaObject[implementation.methods.length];
+        this.resolved = new boolean[implementation.methods.length];
+    }
+
+    /**
+     * Implements an interface with the functions of a Lua object.
+     *
+     * @param obj        table holding the functions, or a function
+     * @param type       interface to implement
+     * @param functional if true obj is a function implementing every abstract method
+     * @return instance of type
+     * @throws IllegalArgumentException if type is not an interface, or it can not
+     *                                  be generated and obj is a function
+     */
+    static <T> T implement(LuaObject obj, Class<T> type, boolean functional) {
+        if (!type.isInterface()) {
+            throw new IllegalArgumentException(type.getName() + " is not an interface");
+        }
+        Implementation implementation = IMPLEMENTATIONS.get(type);
+        if (implementation.constructor == null) {
+            if (functional) {
+                throw new IllegalArgumentException("Can not implement " + type.getName());
+            }
+            // not reachable from this package, fall back to a proxy
+            Object proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                    new LuaInvocationHandler(obj));
+            return type.cast(proxy);
+        }
+        try {
+            return type.cast((Object) implementation.constructor.invokeExact(
+                    new LuaInterface(obj, functional, implementation)));
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Holds the state and pushes the function of a method.
+     *
+     * @return top of the stack before the function
+     */
+    int begin(int method) {
+        LuaState.Session s = L.session();
+        session = s;
+        int top = L.getTop();
+        try {
+            LuaObject function = function(method);
+            if (function == null) {
+                L.pushNil();
+            } else {
+                function.push();
+            }
+        } catch (LuaException e) {
+            error = e;
+            L.pushNil();
+        } catch (RuntimeException | Error e) {
+            L.setTop(top);
+            s.close();
+            throw e;
+        }
+        return top;
+    }
+
+    void pushNumber(double value) {
+        L.pushNumber(value);
+    }
+
+    void pushBoolean(boolean value) {
+        L.pushBoolean(value);
+    }
+
+    void pushChar(char value) {
+        pushObject(value);
+    }
+
+    void pushObject(Object value) {
+        try {
+            L.pushObjectValue(value);
+        } catch (LuaException e) {
+            if (error == null) {
+                error = e;
+            }
+            L.pushNil();
+        }
+    }
+
+    /**
+     * Releases the state after pushing an argument failed.
+     */
+    Throwable abort(Throwable t, int top) {
+        error = null;
+        try {
+            L.setTop(top);
+        } finally {
+            session.close();
+        }
+        return t;
+    }
+
+    void callVoid(int method, int top) throws LuaException {
+        try {
+            call(method, top, 0);
+        } catch (LuaException e) {
+            throw rethrow(method, e);
+        } finally {
+            end(top);
+        }
+    }
+
+    double callDouble(int method, int top) throws LuaException {
+        try {
+            if (!call(method, top, 1)) {
+                return 0;
+            }
+            if (L.type(-1) != LuaState.LUA_TNUMBER) {
+                throw notReturned(method, "a number");
+            }
+            return L.toNumber(-1);
+        } catch (LuaException e) {
+            throw rethrow(method, e);
+        } finally {
+            end(top);
+        }
+    }
+
+    long callLong(int method, int top) throws LuaException {
+        return (long) callDouble(method, top);
+    }
+
+    boolean callBoolean(int method, int top) throws LuaException {
+        try {
+            return call(method, top, 1) && L.toBoolean(-1);
+        } catch (LuaException e) {
+            throw rethrow(method, e);
+        } finally {
+            end(top);
+        }
+    }
+
+    char callChar(int method, int top) throws LuaException {
+        try {
+            if (!call(method, top, 1)) {
+                return 0;
+            }
+            if (L.type(-1) == LuaState.LUA_TNUMBER) {
+                return (char) L.toNumber(-1);
+            }
+            Object ret = L.toJavaObject(-1);
+            if (ret instanceof Character) {
+                return (Character) ret;
+            }
+            if (ret instanceof String && ((String) ret).length() == 1) {
+                return ((String) ret).charAt(0);
+            }
+            throw notReturned(method, "a char");
+        } catch (LuaException e) {
+            throw rethrow(method, e);
+        } finally {
+            end(top);
+        }
+    }
+
+    Object callObject(int method, int top) throws LuaException {
+        try {
+            if (!call(method, top, 1)) {
+                return null;
+            }
+            Object ret = L.toJavaObject(-1);
+            if (ret instanceof Double) {
+                Number n = LuaState.convertLuaNumber((Double) ret, implementation.methods[method].getReturnType());
+                if (n != null) {
+                    ret = n;
+                }
+            }
+            return ret;
+        } catch (LuaException e) {
+            throw rethrow(method, e);
+        } finally {
+            end(top);
+        }
+    }
+
+    /**
+     * Calls the function pushed by begin with the arguments above it.
+     *
+     * @return false if the method has no function
+     */
+    private boolean call(int method, int top, int nres) throws LuaException {
+        LuaException e = error;
+        if (e != null) {
+            error = null;
+            throw e;
+        }
+        if (L.isNil(top + 1)) {
+            return false;
+        }
+        int err = L.pcall(L.getTop() - top - 1, nres, 0);
+        if (err != 0) {
+            throw obj.callError(err);
+        }
+        return true;
+    }
+
+    private void end(int top) {
+        L.setTop(top);
+        session.close();
+    }
+
+    private LuaObject function(int method) throws LuaException {
+        if (functional) {
+            return obj;
+        }
+        if (!resolved[method]) {
+            // cached functions outlive any arena that may be open
+            LuaArena arena = L.getArena();
+            L.setArena(null);
+            LuaObject function;
+            try {
+                function = obj.getField(implementation.methods[method].getName());
+            } finally {
+                L.setArena(arena);
+            }
+            if (function.isNil()) {
+                function.close();
+                function = null;
+            }
+            functions[method] = function;
+            resolved[method] = true;
+        }
+        return functions[method];
+    }
+
+    private LuaException notReturned(int method, String what) {
+        Method m = implementation.methods[method];
+        return new LuaException("Function of " + m.getName() + " did not return " + what +
+                ", but " + L.typeName(L.type(-1)));
+    }
+
+    private RuntimeException rethrow(int method, LuaException e) throws LuaException {
+        if (implementation.declaresLuaException[method]) {
+            throw e;
+        }
+        return new UndeclaredThrowableException(e);
+    }
+
+    /**
+     * Generated class of an interface with the methods it implements
+     */
+    private static final class Implementation {
+        private final Method[] methods;
+        private final boolean[] declaresLuaException;
+        /**
+         * <code>(LuaInterface)Object</code>, null if the interface can not be generated
+         */
+        private final MethodHandle constructor;
+
+        private Implementation(Method[] methods, MethodHandle constructor) {
+            this.methods = methods;
+            this.constructor = constructor;
+            this.declaresLuaException = new boolean[methods.length];
+            for (int i = 0; i < methods.length; i++) {
+                for (Class<?> exception : methods[i].getExceptionTypes()) {
+                    if (exception.isAssignableFrom(LuaException.class)) {
+                        declaresLuaException[i] = true;
+                        break;
+                    }
+                }
+            }
+        }
+
+        static Implementation of(Class<?> type) {
+            Method[] methods = abstractMethods(type);
+            if (methods == null || !Modifier.isPublic(type.getModifiers()) || !visible(type)) {
+                return new Implementation(new Method[0], null);
+            }
+            for (Method method : methods) {
+                int slots = 2;
+                for (Class<?> param : method.getParameterTypes()) {
+                    slots += param == long.class || param == double.class ? 2 : 1;
+                    if (!visible(param)) {
+                        return new Implementation(methods, null);
+                    }
+                }
+                if (slots > 255 || !visible(method.getReturnType())) {
+                    return new Implementation(methods, null);
+                }
+            }
+
+            try {
+                byte[] classFile = InterfaceGenerator.generate(type, methods);
+                MethodHandles.Lookup lookup = LOOKUP.defineHiddenClass(classFile, true);
+                MethodHandle constructor = lookup.findConstructor(lookup.lookupClass(),
+                        MethodType.methodType(void.class, LuaInterface.class));
+                return new Implementation(methods, constructor.asType(CONSTRUCTOR_TYPE));
+            } catch (IllegalAccessException | NoSuchMethodException | LinkageError e) {
+                return new Implementation(methods, null);
+            }
+        }
+
+        /**
+         * Abstract methods of an interface, without the public methods of
+         * Object. Returns null if two of them only differ in the return type.
+         */
+        private static Method[] abstractMethods(Class<?> type) {
+            Map<String, Method> methods = new LinkedHashMap<>();
+            for (Method method : type.getMethods()) {
+                if (!Modifier.isAbstract(method.getModifiers()) || isObjectMethod(method)) {
+                    continue;
+                }
+                String key = method.getName() + MethodType.methodType(void.class, method.getParameterTypes())
+                        .toMethodDescriptorString();
+                Method other = methods.putIfAbsent(key, method);
+                if (other != null && other.getReturnType() != method.getReturnType()) {
+                    return null;
+                }
+            }
+            return methods.values().toArray(new Method[0]);
+        }
+
+        private static boolean isObjectMethod(Method method) {
+            try {
+                Object.class.getMethod(method.getName(), method.getParameterTypes());
+                return true;
+            } catch (NoSuchMethodException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Whether the generated class resolves the type to the same class
+         */
+        private static boolean visible(Class<?> type) {
+            while (type.isArray()) {
+                type = type.getComponentType();
+            }
+            if (type.isPrimitive()) {
+                return true;
+            }
+            try {
+                return Class.forName(type.getName(), false, LuaInterface.class.getClassLoader()) == type;
+            } catch (ClassNotFoundException e) {
+                return false;
+            }
+        }
+    }
+}
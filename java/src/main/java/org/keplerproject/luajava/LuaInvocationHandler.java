@@ -26,18 +26,36 @@ package org.keplerproject.luajava;
 
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Class that implements the InvocationHandler interface.
  * This class is used in the LuaJava's proxy system.
  * When a proxy object is accessed, the method invoked is
  * called from Lua
+ * <p>
+ * The function of each method is looked up once and cached with its
+ * registry reference. If the Lua table gets new functions afterwards,
+ * call {@link #invalidate()} on the handler returned by
+ * <code>Proxy.getInvocationHandler(proxy)</code>.
  *
  * @author Rizzato
  * @author Thiago Ponte
  */
 public class LuaInvocationHandler implements InvocationHandler {
+    private static final byte RETURN_VOID = 0;
+    private static final byte RETURN_OBJECT = 1;
+    private static final byte RETURN_DOUBLE = 2;
+    private static final byte RETURN_FLOAT = 3;
+    private static final byte RETURN_LONG = 4;
+    private static final byte RETURN_INT = 5;
+    private static final byte RETURN_SHORT = 6;
+    private static final byte RETURN_BYTE = 7;
+    private static final byte RETURN_BOOLEAN = 8;
+
     private final LuaObject obj;
+    private final ConcurrentMap<Method, Handle> handles = new ConcurrentHashMap<>();
 
 
     public LuaInvocationHandler(LuaObject obj) {
@@ -47,30 +65,157 @@ public class LuaInvocationHandler implements InvocationHandler {
     /**
      * Function called when a proxy object function is invoked.
      */
+    @SuppressWarnings("try")
     public Object invoke(Object proxy, Method method, Object[] args) throws LuaException {
-        synchronized (obj.L) {
-            String methodName = method.getName();
-            LuaObject func = obj.getField(methodName);
-
-            if (func.isNil()) {
-                return null;
+        LuaState L = obj.L;
+        try (LuaState.Session ignored = L.session()) {
+            Handle handle = handles.get(method);
+            if (handle == null) {
+                handle = lookup(method);
+                if (handle == null) {
+                    return null;
+                }
             }
 
-            Class<?> retType = method.getReturnType();
-            Object ret;
+            int top = L.getTop();
+            handle.func.push();
+            int nargs = 0;
+            if (args != null) {
+                nargs = args.length;
+                for (Object arg : args) {
+                    L.pushObjectValue(arg);
+                }
+            }
 
             // Checks if returned type is void. if it is returns null.
-            if (retType.equals(Void.class) || retType.equals(void.class)) {
-                func.call(args, 0);
-                ret = null;
-            } else {
-                ret = func.call(args, 1)[0];
-                if (ret instanceof Double) {
-                    ret = LuaState.convertLuaNumber((Double) ret, retType);
-                }
+            int err = L.pcall(nargs, handle.returns == RETURN_VOID ? 0 : 1, 0);
+            if (err != 0) {
+                LuaException e = handle.func.callError(err);
+                L.setTop(top);
+                throw e;
+            }
+            try {
+                return handle.returns == RETURN_VOID ? null : result(L, handle.returns, method.getReturnType());
+            } finally {
+                L.setTop(top);
+            }
+        }
+    }
+
+    /**
+     * Drops the cached functions, they are looked up again on the next call.
+     */
+    @SuppressWarnings("try")
+    public void invalidate() {
+        try (LuaState.Session ignored = obj.L.session()) {
+            for (Method method : handles.keySet()) {
+                invalidate(method);
+            }
+        }
+    }
+
+    /**
+     * Drops the cached function of a method, it is looked up again on the next call.
+     *
+     * @param method method of a proxied interface
+     */
+    @SuppressWarnings("try")
+    public void invalidate(Method method) {
+        try (LuaState.Session ignored = obj.L.session()) {
+            Handle handle = handles.remove(method);
+            if (handle != null) {
+                handle.func.close();
+            }
+        }
+    }
+
+    /**
+     * Looks the function of a method up and caches it. Missing functions are
+     * not cached, so they are found once the table gets them.
+     *
+     * @return Handle, or null if the table has no such field
+     */
+    private Handle lookup(Method method) throws LuaException {
+        LuaState L = obj.L;
+        // cached functions outlive any arena that may be open
+        LuaArena arena = L.getArena();
+        L.setArena(null);
+        LuaObject func;
+        try {
+            func = obj.getField(method.getName());
+        } finally {
+            L.setArena(arena);
+        }
+        if (func.isNil()) {
+            func.close();
+            return null;
+        }
+        Handle handle = new Handle(func, returnKind(method.getReturnType()));
+        handles.put(method, handle);
+        return handle;
+    }
+
+    private static Object result(LuaState L, byte returns, Class<?> retType) throws LuaException {
+        if (returns == RETURN_BOOLEAN) {
+            if (L.isBoolean(-1)) {
+                return L.toBoolean(-1);
+            }
+        } else if (returns != RETURN_OBJECT && L.type(-1) == LuaState.LUA_TNUMBER) {
+            double n = L.toNumber(-1);
+            switch (returns) {
+                case RETURN_DOUBLE:
+                    return n;
+                case RETURN_FLOAT:
+                    return (float) n;
+                case RETURN_LONG:
+                    return (long) n;
+                case RETURN_INT:
+                    return (int) n;
+                case RETURN_SHORT:
+                    return (short) n;
+                default:
+                    return (byte) n;
             }
+        }
+
+        Object ret = L.toJavaObject(-1);
+        if (ret instanceof Double) {
+            ret = LuaState.convertLuaNumber((Double) ret, retType);
+        }
+        return ret;
+    }
+
+    private static byte returnKind(Class<?> retType) {
+        if (retType == void.class || retType == Void.class) {
+            return RETURN_VOID;
+        } else if (retType == double.class || retType == Double.class) {
+            return RETURN_DOUBLE;
+        } else if (retType == float.class || retType == Float.class) {
+            return RETURN_FLOAT;
+        } else if (retType == long.class || retType == Long.class) {
+            return RETURN_LONG;
+        } else if (retType == int.class || retType == Integer.class) {
+            return RETURN_INT;
+        } else if (retType == short.class || retType == Short.class) {
+            return RETURN_SHORT;
+        } else if (retType == byte.class || retType == Byte.class) {
+            return RETURN_BYTE;
+        } else if (retType == boolean.class || retType == Boolean.class) {
+            return RETURN_BOOLEAN;
+        }
+        return RETURN_OBJECT;
+    }
+
+    /**
+     * Function of a method with the kind of its return type
+     */
+    private static final class Handle {
+        private final LuaObject func;
+        private final byte returns;
 
-            return ret;
+        private Handle(LuaObject func, byte returns) {
+            this.func = func;
+            this.returns = returns;
         }
     }
 }
@@ -45,16 +45,12 @@ public final class LuaJavaAPI {
      * @param methodName the name of the method
      * @return number of returned objects
      */
+    @SuppressWarnings("try")
     public static int objectIndex(int luaState, Object obj, String methodName)
             throws LuaException {
         LuaState L = LuaStateFactory.getExistingState(luaState);
 
-        synchronized (L) {
-            int top = L.getTop();
-
-            Object[] objs = new Object[top - 1];
-            Method method = null;
-
+        try (LuaState.Session ignored = L.session()) {
             Class<?> clazz;
 
             if (obj instanceof Class) {
@@ -62,6 +58,22 @@ public final class LuaJavaAPI {
             } else {
                 clazz = obj.getClass();
             }
+
+            // generated or hand written bindings skip the reflective search
+            LuaBindings.Binding binding = LuaBindings.find(clazz, methodName);
+            if (binding != null) {
+                try {
+                    return binding.call(L, obj);
+                } catch (RuntimeException e) {
+                    throw new LuaException(e);
+                }
+            }
+
+            int top = L.getTop();
+
+            Object[] objs = new Object[top - 1];
+            Method method = null;
+
             method = findMethod(L, clazz, methodName, objs, top);
 
             // If method is null means there isn't one receiving the given arguments
@@ -71,16 +83,7 @@ public final class LuaJavaAPI {
 
             Object ret;
             try {
-                if (Modifier.isPublic(method.getModifiers())) {
-                    method.setAccessible(true);
-                }
-
-                //if (obj instanceof Class)
-                if (Modifier.isStatic(method.getModifiers())) {
-                    ret = method.invoke(null, objs);
-                } else {
-                    ret = method.invoke(obj, objs);
-                }
+                ret = ClassMembers.of(clazz).invoker(method).invoke(obj, objs);
             } catch (Exception e) {
                 throw new LuaException(e);
             }
@@ -106,10 +109,11 @@ public final class LuaJavaAPI {
      *                 the number used will be (index - 1)
      * @return number of returned objects
      */
+    @SuppressWarnings("try")
     public static int arrayIndex(int luaState, Object obj, int index) throws LuaException {
         LuaState L = LuaStateFactory.getExistingState(luaState);
 
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
 
             if (!obj.getClass().isArray())
                 throw new LuaException("Object indexed is not an array.");
@@ -134,20 +138,17 @@ public final class LuaJavaAPI {
      * @return number of returned objects
      * @throws LuaException
      */
+    @SuppressWarnings("try")
     public static int classIndex(int luaState, Class<?> clazz, String searchName)
             throws LuaException {
-        synchronized (LuaStateFactory.getExistingState(luaState)) {
-            int res;
-
-            res = checkField(luaState, clazz, searchName);
+        try (LuaState.Session ignored = LuaStateFactory.getExistingState(luaState).session()) {
+            ClassMembers.Kind kind = ClassMembers.of(clazz).kind(searchName);
 
-            if (res != 0) {
+            if (kind == ClassMembers.Kind.FIELD && checkField(luaState, clazz, searchName) != 0) {
                 return 1;
             }
 
-            res = checkMethod(luaState, clazz, searchName);
-
-            if (res != 0) {
+            if (kind != ClassMembers.Kind.NONE && checkMethod(luaState, clazz, searchName) != 0) {
                 return 2;
             }
 
@@ -165,11 +166,12 @@ public final class LuaJavaAPI {
      * @return number of returned objects
      * @throws LuaException
      */
+    @SuppressWarnings("try")
     public static int objectNewIndex(int luaState, Object obj, String fieldName)
             throws LuaException {
         LuaState L = LuaStateFactory.getExistingState(luaState);
 
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             Field field = null;
             Class<?> objClass;
 
@@ -179,10 +181,9 @@ public final class LuaJavaAPI {
                 objClass = obj.getClass();
             }
 
-            try {
-                field = objClass.getField(fieldName);
-            } catch (Exception e) {
-                throw new LuaException("Error accessing field.", e);
+            field = ClassMembers.of(objClass).field(fieldName);
+            if (field == null) {
+                throw new LuaException("Error accessing field.", new NoSuchFieldException(fieldName));
             }
 
             Class<?> type = field.getType();
@@ -192,11 +193,8 @@ public final class LuaJavaAPI {
             }
             Object setObj = setObjRet.get();
 
-            if (field.isAccessible())
-                field.setAccessible(true);
-
             try {
-                field.set(obj, setObj);
+                ClassMembers.of(objClass).setter(field).set(obj, setObj);
             } catch (IllegalArgumentException e) {
                 throw new LuaException("Ilegal argument to set field.", e);
             } catch (IllegalAccessException e) {
@@ -218,11 +216,12 @@ public final class LuaJavaAPI {
      * @return number of returned objects
      * @throws LuaException
      */
+    @SuppressWarnings("try")
     public static int arrayNewIndex(int luaState, Object obj, int index)
             throws LuaException {
         LuaState L = LuaStateFactory.getExistingState(luaState);
 
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             if (!obj.getClass().isArray())
                 throw new LuaException("Object indexed is not an array.");
 
@@ -251,11 +250,12 @@ public final class LuaJavaAPI {
      * @return number of returned objects
      * @throws LuaException
      */
+    @SuppressWarnings("try")
     public static int javaNewInstance(int luaState, String className)
             throws LuaException {
         LuaState L = LuaStateFactory.getExistingState(luaState);
 
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             Class<?> clazz;
             try {
                 clazz = Class.forName(className);
@@ -278,10 +278,11 @@ public final class LuaJavaAPI {
      * @return number of returned objects
      * @throws LuaException
      */
+    @SuppressWarnings("try")
     public static int javaNew(int luaState, Class<?> clazz) throws LuaException {
         LuaState L = LuaStateFactory.getExistingState(luaState);
 
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             Object ret = getObjInstance(L, clazz);
 
             L.pushJavaObject(ret);
@@ -300,11 +301,12 @@ public final class LuaJavaAPI {
      * @return number of returned objects
      * @throws LuaException
      */
+    @SuppressWarnings("try")
     public static int javaLoadLib(int luaState, String className, String methodName)
             throws LuaException {
         LuaState L = LuaStateFactory.getExistingState(luaState);
 
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             Class<?> clazz;
             try {
                 clazz = Class.forName(className);
@@ -326,21 +328,20 @@ public final class LuaJavaAPI {
         }
     }
 
+    @SuppressWarnings("try")
     private static Object getObjInstance(LuaState L, Class<?> clazz)
             throws LuaException {
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             int top = L.getTop();
 
             Object[] objs = new Object[top - 1];
 
-            Constructor<?>[] constructors = clazz.getConstructors();
+            Constructor<?>[] constructors = ClassMembers.of(clazz).constructors(top - 1);
             Constructor<?> constructor = null;
 
             // gets method and arguments
             for (int i = 0; i < constructors.length; i++) {
                 Class<?>[] parameters = constructors[i].getParameterTypes();
-                if (parameters.length != top - 1)
-                    continue;
 
                 boolean okConstruc = true;
 
@@ -368,7 +369,7 @@ public final class LuaJavaAPI {
 
             Object ret;
             try {
-                ret = constructor.newInstance(objs);
+                ret = ClassMembers.of(clazz).invoker(constructor).invoke(null, objs);
             } catch (Exception e) {
                 throw new LuaException(e);
             }
@@ -389,11 +390,12 @@ public final class LuaJavaAPI {
      * @param fieldName name of the field to be inpected
      * @return number of returned objects
      */
+    @SuppressWarnings("try")
     public static int checkField(int luaState, Object obj, String fieldName)
             throws LuaException {
         LuaState L = LuaStateFactory.getExistingState(luaState);
 
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             Field field = null;
             Class<?> objClass;
 
@@ -403,19 +405,16 @@ public final class LuaJavaAPI {
                 objClass = obj.getClass();
             }
 
-            try {
-                field = objClass.getField(fieldName);
-            } catch (Exception e) {
-                return 0;
-            }
-
-            if (field == null) {
+            // method calls come here first, answer them without touching getField
+            ClassMembers members = ClassMembers.of(objClass);
+            if (members.kind(fieldName) != ClassMembers.Kind.FIELD) {
                 return 0;
             }
+            field = members.field(fieldName);
 
             Object ret = null;
             try {
-                ret = field.get(obj);
+                ret = members.getter(field).get(obj);
             } catch (Exception e1) {
                 return 0;
             }
@@ -438,10 +437,11 @@ public final class LuaJavaAPI {
      * @param methodName name of the field to be inpected
      * @return number of returned objects
      */
+    @SuppressWarnings("try")
     private static int checkMethod(int luaState, Object obj, String methodName) {
         LuaState L = LuaStateFactory.getExistingState(luaState);
 
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             Class<?> clazz;
 
             if (obj instanceof Class) {
@@ -450,14 +450,7 @@ public final class LuaJavaAPI {
                 clazz = obj.getClass();
             }
 
-            Method[] methods = clazz.getMethods();
-
-            for (int i = 0; i < methods.length; i++) {
-                if (methods[i].getName().equals(methodName))
-                    return 1;
-            }
-
-            return 0;
+            return ClassMembers.of(clazz).hasPublicMethod(methodName) ? 1 : 0;
         }
     }
 
@@ -469,11 +462,12 @@ public final class LuaJavaAPI {
      * @return number of returned objects
      * @throws LuaException
      */
+    @SuppressWarnings("try")
     public static int createProxyObject(int luaState, String implem)
             throws LuaException {
         LuaState L = LuaStateFactory.getExistingState(luaState);
 
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             try {
                 if (!(L.isTable(2)))
                     throw new LuaException(
@@ -565,88 +559,34 @@ public final class LuaJavaAPI {
     }
 
     private static Method findMethod(LuaState L, Class<?> clazz, String methodName, Object[] retObjs, int top) {
-        Class<?> c = clazz;
         Object[] objs = new Object[top - 1];
         int paramsCount = top - 1;
         Method mached = null;
 
-        while (c != null) {
-            for (Method method : c.getDeclaredMethods()) {
-                if (!method.getName().equals(methodName) || method.getParameterCount() != paramsCount) {
-                    continue;
-                }
-                mached = method;
-                Class<?>[] parameters = method.getParameterTypes();
-                for (int i = 0; i < paramsCount; i++) {
-                    Class<?> paramType = parameters[i];
-                    Optional<Object> ret;
-                    try {
-                        ret = compareTypes(L, paramType, i + 2);
-                    } catch (LuaException e) {
-                        ret = Optional.empty();
-                    }
-                    if (ret.isPresent()) {
-                        objs[i] = ret.get();
-                    } else {
-                        mached = null;
-                        break;
-                    }
-                }
-                if (mached != null) {
-                    System.arraycopy(objs, 0, retObjs, 0, objs.length);
-                    return method;
-                }
-
-            }
-            c = c.getSuperclass();
-        }
-
-        return null;
-    }
-
-    private static Method getMethod(LuaState L, Class<?> clazz, String methodName, Object[] retObjs, int top) {
-        Object[] objs = new Object[top - 1];
-
-        Method[] methods = clazz.getMethods();
-        Method method = null;
-
-        // gets method and arguments
-        for (int i = 0; i < methods.length; i++) {
-            if (!methods[i].getName().equals(methodName))
-
-                continue;
-
-            Class<?>[] parameters = methods[i].getParameterTypes();
-            if (parameters.length != top - 1)
-                continue;
-
-            boolean okMethod = true;
-
-            for (int j = 0; j < parameters.length; j++) {
+        for (Method method : ClassMembers.of(clazz).methods(methodName, paramsCount)) {
+            mached = method;
+            Class<?>[] parameters = method.getParameterTypes();
+            for (int i = 0; i < paramsCount; i++) {
+                Class<?> paramType = parameters[i];
                 Optional<Object> ret;
                 try {
-                    ret = compareTypes(L, parameters[j], j + 2);
+                    ret = compareTypes(L, paramType, i + 2);
                 } catch (LuaException e) {
                     ret = Optional.empty();
                 }
                 if (ret.isPresent()) {
-                    objs[j] = ret.get();
+                    objs[i] = ret.get();
                 } else {
-                    okMethod = false;
+                    mached = null;
                     break;
                 }
             }
-
-            if (okMethod) {
-                method = methods[i];
+            if (mached != null) {
                 System.arraycopy(objs, 0, retObjs, 0, objs.length);
-
-                break;
+                return method;
             }
-
         }
 
-        return method;
+        return null;
     }
 }
- 
\ No newline at end of file
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2003-2007 Kepler Project.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.keplerproject.luajava;
+
+/**
+ * A field or global name kept as a Lua string in the registry of one
+ * state, created by {@link LuaState#newKey(String)}. Looking a field up
+ * with a key pushes the interned string instead of transcoding the name:
+ * <pre>
+ * LuaKey update = L.newKey("update");
+ * for (...) {
+ *     L.getGlobal(update);
+ *     L.pcall(0, 0, 0);
+ * }
+ * </pre>
+ * The reference is released once the key is no longer reachable.
+ */
+public final class LuaKey {
+    private final LuaState L;
+    private final String name;
+    final int ref;
+
+    @SuppressWarnings("try")
+    LuaKey(LuaState L, String name) {
+        this.L = L;
+        this.name = name;
+        try (LuaState.Session ignored = L.session()) {
+            L.pushString(name);
+            ref = L.Lref(LuaState.LUA_REGISTRYINDEX);
+        }
+        LuaObject.CLEANER.register(this, new LuaObject.Release(L, ref));
+    }
+
+    /**
+     * Returns the state the key belongs to
+     *
+     * @return LuaState
+     */
+    public LuaState getLuaState() {
+        return L;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
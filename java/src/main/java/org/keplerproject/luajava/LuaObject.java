@@ -27,10 +27,10 @@ package org.keplerproject.luajava;
 import org.eu.smileyik.luajava.type.InnerTypeHelper;
 import org.eu.smileyik.luajava.util.ResourceCleaner;
 
+import java.lang.ref.Cleaner;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Proxy;
 import java.util.StringTokenizer;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This class represents a Lua object of any type. A LuaObject is constructed by a {@link LuaState} object using one of
@@ -57,36 +57,33 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class LuaObject implements AutoCloseable {
     protected static final ResourceCleaner CLEANER = new ResourceCleaner();
-    private static final class CleanTask implements Runnable {
+    /**
+     * Hands the reference back to its state, which unrefs it with the
+     * next batch. Must not refer to the LuaObject.
+     */
+    static final class Release implements Runnable {
         private final LuaState L;
-        private final Integer ref;
-        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private final int ref;
 
-        private CleanTask(LuaState l, Integer ref) {
+        Release(LuaState l, int ref) {
             L = l;
             this.ref = ref;
         }
 
         @Override
         public void run() {
-            if (!closed.compareAndSet(false, true)) {
-                return;
-            }
-            try {
-                synchronized (L) {
-                    if (L.getCPtrPeer() != 0)
-                        L.LunRef(LuaState.LUA_REGISTRYINDEX, ref);
-                }
-            } catch (Exception e) {
-                System.err.println("Unable to release object " + ref);
-            }
+            L.releaseRef(ref);
         }
     }
 
-    protected Integer ref;
+    protected final int ref;
 
     protected final LuaState L;
-    private final CleanTask cleanTask;
+    /**
+     * <code>null</code> when the reference belongs to a {@link LuaArena}
+     * or there is no reference at all
+     */
+    private final Cleaner.Cleanable cleanable;
 
     /**
      * Creates a reference to an object in the given index of the stack
@@ -96,27 +93,57 @@ public class LuaObject implements AutoCloseable {
      * @param index of the object on the lua stack
      * @see LuaObject#create(LuaState, int)
      */
+    @SuppressWarnings("try")
     protected LuaObject(LuaState L, int index) {
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             this.L = L;
 
             // Creates the reference to the object in the registry table
             L.pushValue(index);
             ref = L.Lref(LuaState.LUA_REGISTRYINDEX);
 
-            cleanTask = new CleanTask(L, ref);
-            CLEANER.register(this, cleanTask);
+            LuaArena arena = L.getArena();
+            if (arena != null) {
+                arena.add(ref);
+                cleanable = null;
+            } else {
+                cleanable = CLEANER.register(this, new Release(L, ref));
+            }
         }
     }
 
+    /**
+     * Creates a LuaObject that does not reference the registry, for
+     * immutable values kept in Java memory. Subclasses using it must
+     * override {@link #push()}.
+     *
+     * @param L
+     */
+    protected LuaObject(LuaState L) {
+        this.L = L;
+        this.ref = LuaState.LUA_NOREF;
+        this.cleanable = null;
+    }
+
+    /**
+     * Returns the raw bytes of a string kept in Java memory, <code>null</code>
+     * if the object references the registry or is not a string.
+     *
+     * @return byte[], not to be modified
+     */
+    protected byte[] getSnapshotBytes() {
+        return null;
+    }
+
     /**
      * Creates a reference to an object in the given index of the stack
      *
      * @param L
      * @param index of the object on the lua stack
      */
+    @SuppressWarnings("try")
     protected static LuaObject create(LuaState L, int index) {
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             return InnerTypeHelper.createLuaObject(L, index)
                     .orElseGet(() -> new LuaObject(L, index));
         }
@@ -128,8 +155,9 @@ public class LuaObject implements AutoCloseable {
      * @param L
      * @param globalName
      */
+    @SuppressWarnings("try")
     protected static LuaObject create(LuaState L, String globalName) {
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             L.getGlobal(globalName);
             LuaObject luaObject = create(L, -1);
             L.pop(1);
@@ -143,8 +171,9 @@ public class LuaObject implements AutoCloseable {
      * @param parent The Lua Table or Userdata that contains the Field.
      * @param name   The name that index the field
      */
+    @SuppressWarnings("try")
     protected static LuaObject create(LuaObject parent, String name) throws LuaException {
-        synchronized (parent.getLuaState()) {
+        try (LuaState.Session ignored = parent.getLuaState().session()) {
             LuaState L = parent.getLuaState();
 
             if (!parent.isTable() && !parent.isUserdata()) {
@@ -168,8 +197,9 @@ public class LuaObject implements AutoCloseable {
      * @param name   The name (number) that index the field
      * @throws LuaException When the parent object isn't a Table or Userdata
      */
+    @SuppressWarnings("try")
     protected static LuaObject create(LuaObject parent, Number name) throws LuaException {
-        synchronized (parent.getLuaState()) {
+        try (LuaState.Session ignored = parent.getLuaState().session()) {
             LuaState L = parent.getLuaState();
             if (!parent.isTable() && !parent.isUserdata())
                 throw new LuaException("Object parent should be a table or userdata .");
@@ -191,10 +221,11 @@ public class LuaObject implements AutoCloseable {
      * @param name   The name (LuaObject) that index the field
      * @throws LuaException When the parent object isn't a Table or Userdata
      */
+    @SuppressWarnings("try")
     protected static LuaObject create(LuaObject parent, LuaObject name) throws LuaException {
         if (parent.getLuaState() != name.getLuaState())
             throw new LuaException("LuaStates must be the same!");
-        synchronized (parent.getLuaState()) {
+        try (LuaState.Session ignored = parent.getLuaState().session()) {
             if (!parent.isTable() && !parent.isUserdata())
                 throw new LuaException("Object parent should be a table or userdata .");
 
@@ -222,7 +253,9 @@ public class LuaObject implements AutoCloseable {
 
     @Override
     public void close() {
-        cleanTask.run();
+        if (cleanable != null) {
+            cleanable.clean();
+        }
     }
 
     /**
@@ -232,8 +265,9 @@ public class LuaObject implements AutoCloseable {
         L.rawGetI(LuaState.LUA_REGISTRYINDEX, ref);
     }
 
+    @SuppressWarnings("try")
     public boolean isNil() {
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             push();
             boolean bool = L.isNil(-1);
             L.pop(1);
@@ -241,8 +275,9 @@ public class LuaObject implements AutoCloseable {
         }
     }
 
+    @SuppressWarnings("try")
     public boolean isBoolean() {
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             push();
             boolean bool = L.isBoolean(-1);
             L.pop(1);
@@ -250,8 +285,9 @@ public class LuaObject implements AutoCloseable {
         }
     }
 
+    @SuppressWarnings("try")
     public boolean isNumber() {
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             push();
             boolean bool = L.isNumber(-1);
             L.pop(1);
@@ -259,8 +295,9 @@ public class LuaObject implements AutoCloseable {
         }
     }
 
+    @SuppressWarnings("try")
     public boolean isString() {
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             push();
             boolean bool = L.isString(-1);
             L.pop(1);
@@ -268,8 +305,9 @@ public class LuaObject implements AutoCloseable {
         }
     }
 
+    @SuppressWarnings("try")
     public boolean isFunction() {
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             push();
             boolean bool = L.isFunction(-1);
             L.pop(1);
@@ -277,8 +315,9 @@ public class LuaObject implements AutoCloseable {
         }
     }
 
+    @SuppressWarnings("try")
     public boolean isJavaObject() {
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             push();
             boolean bool = L.isObject(-1);
             L.pop(1);
@@ -286,8 +325,9 @@ public class LuaObject implements AutoCloseable {
         }
     }
 
+    @SuppressWarnings("try")
     public boolean isJavaFunction() {
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             push();
             boolean bool = L.isJavaFunction(-1);
             L.pop(1);
@@ -295,8 +335,9 @@ public class LuaObject implements AutoCloseable {
         }
     }
 
+    @SuppressWarnings("try")
     public boolean isTable() {
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             push();
             boolean bool = L.isTable(-1);
             L.pop(1);
@@ -304,8 +345,9 @@ public class LuaObject implements AutoCloseable {
         }
     }
 
+    @SuppressWarnings("try")
     public boolean isUserdata() {
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             push();
             boolean bool = L.isUserdata(-1);
             L.pop(1);
@@ -313,8 +355,9 @@ public class LuaObject implements AutoCloseable {
         }
     }
 
+    @SuppressWarnings("try")
     public int type() {
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             push();
             int type = L.type(-1);
             L.pop(1);
@@ -322,8 +365,9 @@ public class LuaObject implements AutoCloseable {
         }
     }
 
+    @SuppressWarnings("try")
     public boolean getBoolean() {
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             push();
             boolean bool = L.toBoolean(-1);
             L.pop(1);
@@ -331,8 +375,9 @@ public class LuaObject implements AutoCloseable {
         }
     }
 
+    @SuppressWarnings("try")
     public double getNumber() {
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             push();
             double db = L.toNumber(-1);
             L.pop(1);
@@ -340,8 +385,9 @@ public class LuaObject implements AutoCloseable {
         }
     }
 
+    @SuppressWarnings("try")
     public String getString() {
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             push();
             String str = L.toString(-1);
             L.pop(1);
@@ -349,8 +395,9 @@ public class LuaObject implements AutoCloseable {
         }
     }
 
+    @SuppressWarnings("try")
     public Object getObject() throws LuaException {
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             push();
             Object obj = L.getObjectFromUserdata(-1);
             L.pop(1);
@@ -376,8 +423,9 @@ public class LuaObject implements AutoCloseable {
      * @return Object[] - Returned Objects
      * @throws LuaException
      */
+    @SuppressWarnings("try")
     public Object[] call(Object[] args, int nres) throws LuaException {
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             if (!isFunction() && !isTable() && !isUserdata())
                 throw new LuaException("Invalid object. Not a function, table or userdata .");
 
@@ -396,24 +444,7 @@ public class LuaObject implements AutoCloseable {
             int err = L.pcall(nargs, nres, 0);
 
             if (err != 0) {
-                String str;
-                if (L.isString(-1)) {
-                    str = L.toString(-1);
-                    L.pop(1);
-                } else
-                    str = "";
-
-                if (err == LuaState.LUA_ERRRUN) {
-                    str = "Runtime error. " + str;
-                } else if (err == LuaState.LUA_ERRMEM) {
-                    str = "Memory allocation error. " + str;
-                } else if (err == LuaState.LUA_ERRERR) {
-                    str = "Error while running the error handler function. " + str;
-                } else {
-                    str = "Lua Error code " + err + ". " + str;
-                }
-
-                throw new LuaException(str);
+                throw callError(err);
             }
 
             if (nres == LuaState.LUA_MULTRET)
@@ -432,6 +463,33 @@ public class LuaObject implements AutoCloseable {
         }
     }
 
+    /**
+     * Pops the error message left by a failed pcall and turns it into an exception.
+     *
+     * @param err code returned by pcall
+     * @return LuaException to throw
+     */
+    protected LuaException callError(int err) {
+        String str;
+        if (L.isString(-1)) {
+            str = L.toString(-1);
+            L.pop(1);
+        } else
+            str = "";
+
+        if (err == LuaState.LUA_ERRRUN) {
+            str = "Runtime error. " + str;
+        } else if (err == LuaState.LUA_ERRMEM) {
+            str = "Memory allocation error. " + str;
+        } else if (err == LuaState.LUA_ERRERR) {
+            str = "Error while running the error handler function. " + str;
+        } else {
+            str = "Lua Error code " + err + ". " + str;
+        }
+
+        return new LuaException(str);
+    }
+
     /**
      * Calls the object represented by <code>this</code> using Lua function pcall. Returns 1 object
      *
@@ -444,8 +502,9 @@ public class LuaObject implements AutoCloseable {
         return call(args, 1)[0];
     }
 
+    @SuppressWarnings("try")
     public String toString() {
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             try {
                 if (isNil())
                     return "nil";
@@ -473,13 +532,27 @@ public class LuaObject implements AutoCloseable {
         }
     }
 
+    /**
+     * Implements an interface with a class generated for it, see
+     * {@link org.eu.smileyik.luajava.type.LuaTable#asInterface(Class)}.
+     *
+     * @param type       interface to implement
+     * @param functional if true this object implements every abstract method,
+     *                   otherwise the fields named like the methods do
+     * @return instance of type
+     */
+    protected <T> T implement(Class<T> type, boolean functional) {
+        return LuaInterface.implement(this, type, functional);
+    }
+
     /**
      * Function that creates a java proxy to the object represented by <code>this</code>
      *
      * @param implem Interfaces that are implemented, separated by <code>,</code>
      */
+    @SuppressWarnings("try")
     public Object createProxy(String implem) throws ClassNotFoundException, LuaException {
-        synchronized (L) {
+        try (LuaState.Session ignored = L.session()) {
             if (!isTable())
                 throw new LuaException("Invalid Object. Must be Table.");
 
@@ -24,11 +24,38 @@
 
 package org.keplerproject.luajava;
 
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleBiFunction;
+import java.util.function.ToDoubleFunction;
+
 /**
  * LuaState if the main class of LuaJava for the Java developer.
  * LuaState is a mapping of most of Lua's C API functions.
  * LuaState also provides many other functions that will be used to manipulate
  * objects between Lua and Java.
+ * <p>
+ * By default a state may be shared and every call into Lua holds the lock
+ * of the state. Sequences that must not be interleaved with other threads run
+ * inside a {@link #session()}, where the calls skip locking entirely:
+ * <pre>
+ * try (LuaState.Session session = L.session()) {
+ *     L.getGlobal("f");
+ *     L.pushNumber(1);
+ *     L.pcall(1, 1, 0);
+ * }
+ * </pre>
+ * A state created by {@link LuaStateFactory#newThreadConfinedLuaState()}
+ * belongs to one thread instead: its calls never lock and calls from any
+ * other thread fail with an <code>IllegalStateException</code>.
  *
  * @author Thiago Ponte
  */
@@ -81,6 +108,9 @@ public class LuaState implements AutoCloseable {
     final public static int LUA_GCSTEP = 5;
     final public static int LUA_GCSETPAUSE = 6;
     final public static int LUA_GCSETSTEPMUL = 7;
+    // Reference Functions
+    final public static int LUA_NOREF = -2;
+    final public static int LUA_REFNIL = -1;
     private final static String LUAJAVA_LIB = "luajava-1.1";
 
     /**
@@ -91,16 +121,57 @@ public class LuaState implements AutoCloseable {
     }
 
     private CPtr luaState;
+    /**
+     * Pointer held by <code>luaState</code>, handed to the natives as is
+     */
+    private long peer;
     private final int stateId;
 
+    /**
+     * Thread the state is confined to, <code>null</code> if it may be shared
+     */
+    private final Thread owner;
+
+    /**
+     * Serializes the access of shared states. It is not a monitor so that
+     * virtual threads waiting for a state do not pin their carrier.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Session session = new Session();
+
+    /**
+     * References released by threads that did not hold the state, unreffed
+     * in one batch the next time a session is opened.
+     */
+    private final ReleaseQueue releasedRefs = new ReleaseQueue();
+
+    /**
+     * Innermost open arena, only touched by the thread holding the state
+     */
+    private LuaArena arena;
+
+    private volatile boolean snapshotScalars;
+
     /**
      * Constructor to instance a new LuaState and initialize it with LuaJava's functions
      *
      * @param stateId
      */
     protected LuaState(int stateId) {
+        this(stateId, null);
+    }
+
+    /**
+     * Constructor to instance a new LuaState that may only be used by the given thread
+     *
+     * @param stateId
+     * @param owner   thread the state is confined to, <code>null</code> to share it
+     */
+    protected LuaState(int stateId, Thread owner) {
+        this.owner = owner;
         luaState = _open();
-        luajava_open(luaState, stateId);
+        peer = luaState.getPeer();
+        luajava_open(peer, stateId);
         this.stateId = stateId;
     }
 
@@ -110,13 +181,19 @@ public class LuaState implements AutoCloseable {
      * @param luaState
      */
     protected LuaState(CPtr luaState) {
+        this(luaState, null);
+    }
+
+    private LuaState(CPtr luaState, Thread owner) {
+        this.owner = owner;
         this.luaState = luaState;
+        this.peer = luaState.getPeer();
         this.stateId = LuaStateFactory.insertLuaState(this);
-        luajava_open(luaState, stateId);
+        luajava_open(peer, stateId);
     }
 
     // LuaLibAux
-    private static synchronized native int _LdoFile(CPtr ptr, String fileName);
+    private static native int _LdoFile(long ptr, String fileName);
 
     /**
      * When you call a function in lua, it may return a number, and the
@@ -168,17 +245,190 @@ public class LuaState implements AutoCloseable {
     /**
      * Closes state and removes the object from the LuaStateFactory
      */
-    public synchronized void close() {
-        LuaStateFactory.removeLuaState(stateId);
-        _close(luaState);
-        this.luaState = null;
+    @SuppressWarnings("try")
+    public void close() {
+        try (Session ignored = session()) {
+            LuaStateFactory.removeLuaState(stateId);
+            _close(peer);
+            releasedRefs.clear();
+            this.luaState = null;
+            this.peer = 0;
+        }
     }
 
     /**
      * Returns <code>true</code> if state is closed.
      */
-    public synchronized boolean isClosed() {
-        return luaState == null;
+    @SuppressWarnings("try")
+    public boolean isClosed() {
+        try (Session ignored = session()) {
+            return luaState == null;
+        }
+    }
+
+    /**
+     * Gives the current thread exclusive access to the state until the
+     * returned session is closed. Calls made inside the session do not lock,
+     * so a sequence of operations costs a single lock acquisition.
+     * Sessions are reentrant and must be closed by the thread that opened them,
+     * preferably with a try-with-resources statement.
+     * <p>
+     * On a thread-confined state nothing is locked, the session only checks
+     * that the caller is the owner.
+     *
+     * @return Session
+     * @throws IllegalStateException if the state is confined to another thread
+     */
+    public Session session() {
+        // always counted on shared states, every session close unlocks once
+        if (owner == null) {
+            lock.lock();
+        } else {
+            isLockFree();
+        }
+        if (releasedRefs.isPending() && peer != 0) {
+            releasedRefs.drainTo(this);
+        }
+        return session;
+    }
+
+    /**
+     * Exclusive access to a LuaState, see {@link LuaState#session()}
+     */
+    public final class Session implements AutoCloseable {
+        private Session() {
+        }
+
+        /**
+         * Returns the state this session belongs to
+         *
+         * @return LuaState
+         */
+        public LuaState getLuaState() {
+            return LuaState.this;
+        }
+
+        /**
+         * Ends the session, the state may be used by other threads again
+         * once every nested session was closed.
+         */
+        @Override
+        public void close() {
+            if (owner == null) {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Opens an arena on this state. Until it is closed, the current thread
+     * holds the state and every LuaObject it creates belongs to the arena,
+     * see {@link LuaArena}.
+     *
+     * @return LuaArena, to be closed with a try-with-resources statement
+     * @throws IllegalStateException if the state is confined to another thread
+     */
+    public LuaArena openArena() {
+        return new LuaArena(this);
+    }
+
+    /**
+     * In snapshot mode numbers, strings and booleans turned into LuaObjects
+     * copy their value instead of taking a registry reference. Their
+     * accessors are answered from Java memory without calling into Lua.
+     *
+     * @param snapshotScalars <code>true</code> to enable snapshot mode
+     */
+    public void setSnapshotScalars(boolean snapshotScalars) {
+        this.snapshotScalars = snapshotScalars;
+    }
+
+    /**
+     * Returns <code>true</code> if the state is in snapshot mode,
+     * see {@link #setSnapshotScalars(boolean)}.
+     */
+    public boolean isSnapshotScalars() {
+        return snapshotScalars;
+    }
+
+    /**
+     * Returns <code>true</code> until the state is closed. Unlike
+     * {@link #isClosed()} it does not open a session, the caller must
+     * already hold the state.
+     */
+    boolean isOpen() {
+        return peer != 0;
+    }
+
+    LuaArena getArena() {
+        return arena;
+    }
+
+    void setArena(LuaArena arena) {
+        this.arena = arena;
+    }
+
+    /**
+     * Returns <code>true</code> if the state was created by
+     * {@link LuaStateFactory#newThreadConfinedLuaState()} and may only be
+     * used by its owner thread.
+     */
+    public boolean isThreadConfined() {
+        return owner != null;
+    }
+
+    /**
+     * Returns the thread a confined state is bound to, <code>null</code>
+     * if the state may be shared between threads.
+     */
+    public Thread getOwnerThread() {
+        return owner;
+    }
+
+    /**
+     * Tells whether natives may be called without locking, which is the
+     * case inside a session and for the owner of a confined state.
+     *
+     * @return boolean
+     * @throws IllegalStateException if the state is confined to another thread
+     */
+    private boolean isLockFree() {
+        Thread o = owner;
+        if (o == null) {
+            return lock.isHeldByCurrentThread();
+        }
+        if (o != Thread.currentThread()) {
+            throw new IllegalStateException("LuaState " + stateId +
+                    " is confined to thread " + o.getName());
+        }
+        return true;
+    }
+
+    /**
+     * Releases a registry reference. It is unreffed right away when the
+     * current thread holds the state, otherwise it is queued without
+     * locking and released with the next batch.
+     *
+     * @param ref reference created by {@link #Lref(int)}
+     */
+    void releaseRef(int ref) {
+        Thread o = owner;
+        boolean held = o == null ? lock.isHeldByCurrentThread() : o == Thread.currentThread();
+        if (peer == 0) {
+            return;
+        }
+        if (!held) {
+            releasedRefs.add(ref);
+        } else {
+            _LunRef(peer, LUA_REGISTRYINDEX, ref);
+        }
+    }
+
+    /**
+     * Unrefs a batch of registry references, the state must be held.
+     */
+    void unrefAll(int[] refs, int count) {
+        _LunRefs(peer, LUA_REGISTRYINDEX, refs, count);
     }
 
     /**
@@ -187,669 +437,1804 @@ public class LuaState implements AutoCloseable {
      * @return long
      */
     public long getCPtrPeer() {
-        return (luaState != null) ? luaState.getPeer() : 0;
+        return peer;
     }
 
     /********************* Lua Native Interface *************************/
 
-    private synchronized native CPtr _open();
+    private native CPtr _open();
 
-    private synchronized native void _close(CPtr ptr);
+    private native void _close(long ptr);
 
-    private synchronized native CPtr _newthread(CPtr ptr);
+    private native CPtr _newthread(long ptr);
 
     // Stack manipulation
-    private synchronized native int _getTop(CPtr ptr);
+    private native int _getTop(long ptr);
 
-    private synchronized native void _setTop(CPtr ptr, int idx);
+    private native void _setTop(long ptr, int idx);
 
-    private synchronized native void _pushValue(CPtr ptr, int idx);
+    private native void _pushValue(long ptr, int idx);
 
-    private synchronized native void _remove(CPtr ptr, int idx);
+    private native void _remove(long ptr, int idx);
 
-    private synchronized native void _insert(CPtr ptr, int idx);
+    private native void _insert(long ptr, int idx);
 
-    private synchronized native void _replace(CPtr ptr, int idx);
+    private native void _replace(long ptr, int idx);
 
-    private synchronized native int _checkStack(CPtr ptr, int sz);
+    private native int _checkStack(long ptr, int sz);
 
-    private synchronized native void _xmove(CPtr from, CPtr to, int n);
+    private native void _xmove(long from, long to, int n);
 
     // Access functions
-    private synchronized native int _isNumber(CPtr ptr, int idx);
+    private native int _isNumber(long ptr, int idx);
+
+    private native int _isString(long ptr, int idx);
+
+    private native int _isCFunction(long ptr, int idx);
 
-    private synchronized native int _isString(CPtr ptr, int idx);
+    private native int _isUserdata(long ptr, int idx);
 
-    private synchronized native int _isCFunction(CPtr ptr, int idx);
+    private native int _type(long ptr, int idx);
 
-    private synchronized native int _isUserdata(CPtr ptr, int idx);
+    private native String _typeName(long ptr, int tp);
 
-    private synchronized native int _type(CPtr ptr, int idx);
+    private native int _equal(long ptr, int idx1, int idx2);
 
-    private synchronized native String _typeName(CPtr ptr, int tp);
+    private native int _rawequal(long ptr, int idx1, int idx2);
 
-    private synchronized native int _equal(CPtr ptr, int idx1, int idx2);
+    private native int _lessthan(long ptr, int idx1, int idx2);
 
-    private synchronized native int _rawequal(CPtr ptr, int idx1, int idx2);
+    private native double _toNumber(long ptr, int idx);
 
-    private synchronized native int _lessthan(CPtr ptr, int idx1, int idx2);
+    private native int _toInteger(long ptr, int idx);
 
-    private synchronized native double _toNumber(CPtr ptr, int idx);
+    private native int _toBoolean(long ptr, int idx);
 
-    private synchronized native int _toInteger(CPtr ptr, int idx);
+    private native String _toString(long ptr, int idx);
 
-    private synchronized native int _toBoolean(CPtr ptr, int idx);
+    private native int _objlen(long ptr, int idx);
 
-    private synchronized native String _toString(CPtr ptr, int idx);
+    private native boolean _isArrayTable(long ptr, int idx);
 
-    private synchronized native int _objlen(CPtr ptr, int idx);
+    private native int _toPrimitiveArray(long ptr, int idx, Object array, char type);
 
-    private synchronized native CPtr _toThread(CPtr ptr, int idx);
+    private native CPtr _toThread(long ptr, int idx);
 
     // Push functions
-    private synchronized native void _pushNil(CPtr ptr);
+    private native void _pushNil(long ptr);
 
-    private synchronized native void _pushNumber(CPtr ptr, double number);
+    private native void _pushNumber(long ptr, double number);
 
-    private synchronized native void _pushInteger(CPtr ptr, int integer);
+    private native void _pushInteger(long ptr, int integer);
 
-    private synchronized native void _pushString(CPtr ptr, String str);
+    private native void _pushString(long ptr, String str);
 
-    private synchronized native void _pushString(CPtr ptr, byte[] bytes, int n);
+    private native void _pushString(long ptr, byte[] bytes, int n);
 
-    private synchronized native void _pushBoolean(CPtr ptr, int bool);
+    private native void _pushDirectBuffer(long ptr, ByteBuffer buffer, int offset, int length);
+
+    private native ByteBuffer _toStringView(long ptr, int idx);
+
+    private native void _pushBoolean(long ptr, int bool);
 
     // Get functions
-    private synchronized native void _getTable(CPtr ptr, int idx);
+    private native void _getTable(long ptr, int idx);
+
+    private native void _getField(long ptr, int idx, String k);
+
+    private native void _getFieldKey(long ptr, int idx, int ref);
 
-    private synchronized native void _getField(CPtr ptr, int idx, String k);
+    private native void _setFieldKey(long ptr, int idx, int ref);
 
-    private synchronized native void _rawGet(CPtr ptr, int idx);
+    private native void _rawGet(long ptr, int idx);
 
-    private synchronized native void _rawGetI(CPtr ptr, int idx, int n);
+    private native void _rawGetI(long ptr, int idx, int n);
 
-    private synchronized native void _createTable(CPtr ptr, int narr, int nrec);
+    private native void _createTable(long ptr, int narr, int nrec);
 
-    private synchronized native int _getMetaTable(CPtr ptr, int idx);
+    private native int _getMetaTable(long ptr, int idx);
 
-    private synchronized native void _getFEnv(CPtr ptr, int idx);
+    private native void _getFEnv(long ptr, int idx);
 
     // Set functions
-    private synchronized native void _setTable(CPtr ptr, int idx);
+    private native void _setTable(long ptr, int idx);
 
-    private synchronized native void _setField(CPtr ptr, int idx, String k);
+    private native void _setField(long ptr, int idx, String k);
 
-    private synchronized native void _rawSet(CPtr ptr, int idx);
+    private native void _rawSet(long ptr, int idx);
 
-    private synchronized native void _rawSetI(CPtr ptr, int idx, int n);
+    private native void _rawSetI(long ptr, int idx, int n);
 
-    private synchronized native int _setMetaTable(CPtr ptr, int idx);
+    private native int _setMetaTable(long ptr, int idx);
 
-    private synchronized native int _setFEnv(CPtr ptr, int idx);
+    private native int _setFEnv(long ptr, int idx);
 
-    private synchronized native void _call(CPtr ptr, int nArgs, int nResults);
+    private native void _call(long ptr, int nArgs, int nResults);
 
-    private synchronized native int _pcall(CPtr ptr, int nArgs, int Results, int errFunc);
+    private native int _pcall(long ptr, int nArgs, int Results, int errFunc);
+
+    private native int _callMany(long ptr, double[][] in, double[][] out, int count, int[] failed);
 
     // Coroutine Functions
-    private synchronized native int _yield(CPtr ptr, int nResults);
+    private native int _yield(long ptr, int nResults);
 
-    private synchronized native int _resume(CPtr ptr, int nargs);
+    private native int _resume(long ptr, int nargs);
 
-    private synchronized native int _status(CPtr ptr);
+    private native int _status(long ptr);
 
-    private synchronized native int _gc(CPtr ptr, int what, int data);
+    private native int _gc(long ptr, int what, int data);
 
     // Miscellaneous Functions
-    private synchronized native int _error(CPtr ptr);
+    private native int _error(long ptr);
 
-    private synchronized native int _next(CPtr ptr, int idx);
+    private native int _next(long ptr, int idx);
 
-    private synchronized native void _concat(CPtr ptr, int n);
+    private native void _concat(long ptr, int n);
 
     // Some macros
-    private synchronized native void _pop(CPtr ptr, int n);
+    private native void _pop(long ptr, int n);
+
+    private native void _newTable(long ptr);
 
-    private synchronized native void _newTable(CPtr ptr);
+    private native int _strlen(long ptr, int idx);
 
-    private synchronized native int _strlen(CPtr ptr, int idx);
+    private native int _isFunction(long ptr, int idx);
 
-    private synchronized native int _isFunction(CPtr ptr, int idx);
+    private native int _isTable(long ptr, int idx);
 
-    private synchronized native int _isTable(CPtr ptr, int idx);
+    private native int _isNil(long ptr, int idx);
 
-    private synchronized native int _isNil(CPtr ptr, int idx);
+    private native int _isBoolean(long ptr, int idx);
 
-    private synchronized native int _isBoolean(CPtr ptr, int idx);
+    private native int _isThread(long ptr, int idx);
 
-    private synchronized native int _isThread(CPtr ptr, int idx);
+    private native int _isNone(long ptr, int idx);
 
-    private synchronized native int _isNone(CPtr ptr, int idx);
+    private native int _isNoneOrNil(long ptr, int idx);
 
-    private synchronized native int _isNoneOrNil(CPtr ptr, int idx);
+    private native void _setGlobal(long ptr, String name);
 
-    private synchronized native void _setGlobal(CPtr ptr, String name);
+    private native void _getGlobal(long ptr, String name);
 
-    private synchronized native void _getGlobal(CPtr ptr, String name);
+    private native int _getGcCount(long ptr);
+    //private native int _doBuffer(long ptr, byte[] buff, long sz, String n);
 
-    private synchronized native int _getGcCount(CPtr ptr);
-    //private synchronized native int _doBuffer(CPtr ptr, byte[] buff, long sz, String n);
+    private native int _LdoString(long ptr, String string);
 
-    private synchronized native int _LdoString(CPtr ptr, String string);
+    private native int _LgetMetaField(long ptr, int obj, String e);
 
-    private synchronized native int _LgetMetaField(CPtr ptr, int obj, String e);
+    private native int _LcallMeta(long ptr, int obj, String e);
 
-    private synchronized native int _LcallMeta(CPtr ptr, int obj, String e);
+    private native int _Ltyperror(long ptr, int nArg, String tName);
 
-    private synchronized native int _Ltyperror(CPtr ptr, int nArg, String tName);
+    private native int _LargError(long ptr, int numArg, String extraMsg);
 
-    private synchronized native int _LargError(CPtr ptr, int numArg, String extraMsg);
+    private native String _LcheckString(long ptr, int numArg);
 
-    private synchronized native String _LcheckString(CPtr ptr, int numArg);
+    private native String _LoptString(long ptr, int numArg, String def);
 
-    private synchronized native String _LoptString(CPtr ptr, int numArg, String def);
+    private native double _LcheckNumber(long ptr, int numArg);
 
-    private synchronized native double _LcheckNumber(CPtr ptr, int numArg);
+    private native double _LoptNumber(long ptr, int numArg, double def);
 
-    private synchronized native double _LoptNumber(CPtr ptr, int numArg, double def);
+    private native int _LcheckInteger(long ptr, int numArg);
 
-    private synchronized native int _LcheckInteger(CPtr ptr, int numArg);
+    private native int _LoptInteger(long ptr, int numArg, int def);
 
-    private synchronized native int _LoptInteger(CPtr ptr, int numArg, int def);
+    private native void _LcheckStack(long ptr, int sz, String msg);
 
-    private synchronized native void _LcheckStack(CPtr ptr, int sz, String msg);
+    private native void _LcheckType(long ptr, int nArg, int t);
 
-    private synchronized native void _LcheckType(CPtr ptr, int nArg, int t);
+    private native void _LcheckAny(long ptr, int nArg);
 
-    private synchronized native void _LcheckAny(CPtr ptr, int nArg);
+    private native int _LnewMetatable(long ptr, String tName);
 
-    private synchronized native int _LnewMetatable(CPtr ptr, String tName);
+    private native void _LgetMetatable(long ptr, String tName);
 
-    private synchronized native void _LgetMetatable(CPtr ptr, String tName);
+    private native void _Lwhere(long ptr, int lvl);
 
-    private synchronized native void _Lwhere(CPtr ptr, int lvl);
+    private native int _Lref(long ptr, int t);
 
-    private synchronized native int _Lref(CPtr ptr, int t);
+    private native void _LunRef(long ptr, int t, int ref);
 
-    private synchronized native void _LunRef(CPtr ptr, int t, int ref);
+    private native void _LunRefs(long ptr, int t, int[] refs, int count);
 
     // luaL_getn 方法在 LuaJIT 2.1.1748459687 中不存在
-    // private synchronized native int _LgetN(CPtr ptr, int t);
+    // private native int _LgetN(long ptr, int t);
 
     // luaL_setn 方法在 LuaJIT 2.1.1748459687 中不存在
-    // private synchronized native void _LsetN(CPtr ptr, int t, int n);
+    // private native void _LsetN(long ptr, int t, int n);
 
-    private synchronized native int _LloadFile(CPtr ptr, String fileName);
+    private native int _LloadFile(long ptr, String fileName);
 
-    private synchronized native int _LloadBuffer(CPtr ptr, byte[] buff, long sz, String name);
+    private native int _LloadBuffer(long ptr, byte[] buff, long sz, String name);
 
-    private synchronized native int _LloadString(CPtr ptr, String s);
+    private native int _LloadString(long ptr, String s);
 
-    private synchronized native String _Lgsub(CPtr ptr, String s, String p, String r);
+    private native String _Lgsub(long ptr, String s, String p, String r);
 
-    private synchronized native String _LfindTable(CPtr ptr, int idx, String fname, int szhint);
+    private native String _LfindTable(long ptr, int idx, String fname, int szhint);
 
-    private synchronized native void _openBase(CPtr ptr);
+    private native void _openBase(long ptr);
 
-    private synchronized native void _openTable(CPtr ptr);
+    private native void _openTable(long ptr);
 
-    private synchronized native void _openIo(CPtr ptr);
+    private native void _openIo(long ptr);
 
-    private synchronized native void _openOs(CPtr ptr);
+    private native void _openOs(long ptr);
 
-    private synchronized native void _openString(CPtr ptr);
+    private native void _openString(long ptr);
 
-    private synchronized native void _openMath(CPtr ptr);
+    private native void _openMath(long ptr);
 
-    private synchronized native void _openDebug(CPtr ptr);
+    private native void _openDebug(long ptr);
 
-    private synchronized native void _openPackage(CPtr ptr);
+    private native void _openPackage(long ptr);
 
     // Java Interface -----------------------------------------------------
 
-    private synchronized native void _openLibs(CPtr ptr);
+    private native void _openLibs(long ptr);
 
     // STACK MANIPULATION
 
     public LuaState newThread() {
-        LuaState l = new LuaState(_newthread(luaState));
+        CPtr thread;
+        if (isLockFree()) {
+            thread = _newthread(peer);
+        } else {
+            lock.lock();
+            try {
+                thread = _newthread(peer);
+            } finally {
+                lock.unlock();
+            }
+        }
+        LuaState l = new LuaState(thread, owner);
         LuaStateFactory.insertLuaState(l);
         return l;
     }
 
     public int getTop() {
-        return _getTop(luaState);
+        if (isLockFree()) {
+            return _getTop(peer);
+        }
+        lock.lock();
+        try {
+            return _getTop(peer);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void setTop(int idx) {
-        _setTop(luaState, idx);
+        if (isLockFree()) {
+            _setTop(peer, idx);
+            return;
+        }
+        lock.lock();
+        try {
+            _setTop(peer, idx);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void pushValue(int idx) {
-        _pushValue(luaState, idx);
+        if (isLockFree()) {
+            _pushValue(peer, idx);
+            return;
+        }
+        lock.lock();
+        try {
+            _pushValue(peer, idx);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void remove(int idx) {
-        _remove(luaState, idx);
+        if (isLockFree()) {
+            _remove(peer, idx);
+            return;
+        }
+        lock.lock();
+        try {
+            _remove(peer, idx);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void insert(int idx) {
-        _insert(luaState, idx);
+        if (isLockFree()) {
+            _insert(peer, idx);
+            return;
+        }
+        lock.lock();
+        try {
+            _insert(peer, idx);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void replace(int idx) {
-        _replace(luaState, idx);
+        if (isLockFree()) {
+            _replace(peer, idx);
+            return;
+        }
+        lock.lock();
+        try {
+            _replace(peer, idx);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public int checkStack(int sz) {
-        return _checkStack(luaState, sz);
+        if (isLockFree()) {
+            return _checkStack(peer, sz);
+        }
+        lock.lock();
+        try {
+            return _checkStack(peer, sz);
+        } finally {
+            lock.unlock();
+        }
     }
 
     // ACCESS FUNCTION
 
     public void xmove(LuaState to, int n) {
-        _xmove(luaState, to.luaState, n);
+        if (isLockFree()) {
+            _xmove(peer, to.peer, n);
+            return;
+        }
+        lock.lock();
+        try {
+            _xmove(peer, to.peer, n);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public boolean isNumber(int idx) {
-        return (_isNumber(luaState, idx) != 0);
+        if (isLockFree()) {
+            return (_isNumber(peer, idx) != 0);
+        }
+        lock.lock();
+        try {
+            return (_isNumber(peer, idx) != 0);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public boolean isString(int idx) {
-        return (_isString(luaState, idx) != 0);
+        if (isLockFree()) {
+            return (_isString(peer, idx) != 0);
+        }
+        lock.lock();
+        try {
+            return (_isString(peer, idx) != 0);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public boolean isFunction(int idx) {
-        return (_isFunction(luaState, idx) != 0);
+        if (isLockFree()) {
+            return (_isFunction(peer, idx) != 0);
+        }
+        lock.lock();
+        try {
+            return (_isFunction(peer, idx) != 0);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public boolean isCFunction(int idx) {
-        return (_isCFunction(luaState, idx) != 0);
+        if (isLockFree()) {
+            return (_isCFunction(peer, idx) != 0);
+        }
+        lock.lock();
+        try {
+            return (_isCFunction(peer, idx) != 0);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public boolean isUserdata(int idx) {
-        return (_isUserdata(luaState, idx) != 0);
+        if (isLockFree()) {
+            return (_isUserdata(peer, idx) != 0);
+        }
+        lock.lock();
+        try {
+            return (_isUserdata(peer, idx) != 0);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public boolean isTable(int idx) {
-        return (_isTable(luaState, idx) != 0);
+        if (isLockFree()) {
+            return (_isTable(peer, idx) != 0);
+        }
+        lock.lock();
+        try {
+            return (_isTable(peer, idx) != 0);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public boolean isBoolean(int idx) {
-        return (_isBoolean(luaState, idx) != 0);
+        if (isLockFree()) {
+            return (_isBoolean(peer, idx) != 0);
+        }
+        lock.lock();
+        try {
+            return (_isBoolean(peer, idx) != 0);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public boolean isNil(int idx) {
-        return (_isNil(luaState, idx) != 0);
+        if (isLockFree()) {
+            return (_isNil(peer, idx) != 0);
+        }
+        lock.lock();
+        try {
+            return (_isNil(peer, idx) != 0);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public boolean isThread(int idx) {
-        return (_isThread(luaState, idx) != 0);
+        if (isLockFree()) {
+            return (_isThread(peer, idx) != 0);
+        }
+        lock.lock();
+        try {
+            return (_isThread(peer, idx) != 0);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public boolean isNone(int idx) {
-        return (_isNone(luaState, idx) != 0);
+        if (isLockFree()) {
+            return (_isNone(peer, idx) != 0);
+        }
+        lock.lock();
+        try {
+            return (_isNone(peer, idx) != 0);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public boolean isNoneOrNil(int idx) {
-        return (_isNoneOrNil(luaState, idx) != 0);
+        if (isLockFree()) {
+            return (_isNoneOrNil(peer, idx) != 0);
+        }
+        lock.lock();
+        try {
+            return (_isNoneOrNil(peer, idx) != 0);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public int type(int idx) {
-        return _type(luaState, idx);
+        if (isLockFree()) {
+            return _type(peer, idx);
+        }
+        lock.lock();
+        try {
+            return _type(peer, idx);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public String typeName(int tp) {
-        return _typeName(luaState, tp);
+        if (isLockFree()) {
+            return _typeName(peer, tp);
+        }
+        lock.lock();
+        try {
+            return _typeName(peer, tp);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public int equal(int idx1, int idx2) {
-        return _equal(luaState, idx1, idx2);
+        if (isLockFree()) {
+            return _equal(peer, idx1, idx2);
+        }
+        lock.lock();
+        try {
+            return _equal(peer, idx1, idx2);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public int rawequal(int idx1, int idx2) {
-        return _rawequal(luaState, idx1, idx2);
+        if (isLockFree()) {
+            return _rawequal(peer, idx1, idx2);
+        }
+        lock.lock();
+        try {
+            return _rawequal(peer, idx1, idx2);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public int lessthan(int idx1, int idx2) {
-        return _lessthan(luaState, idx1, idx2);
+        if (isLockFree()) {
+            return _lessthan(peer, idx1, idx2);
+        }
+        lock.lock();
+        try {
+            return _lessthan(peer, idx1, idx2);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public double toNumber(int idx) {
-        return _toNumber(luaState, idx);
+        if (isLockFree()) {
+            return _toNumber(peer, idx);
+        }
+        lock.lock();
+        try {
+            return _toNumber(peer, idx);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public int toInteger(int idx) {
-        return _toInteger(luaState, idx);
+        if (isLockFree()) {
+            return _toInteger(peer, idx);
+        }
+        lock.lock();
+        try {
+            return _toInteger(peer, idx);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public boolean toBoolean(int idx) {
-        return (_toBoolean(luaState, idx) != 0);
+        if (isLockFree()) {
+            return (_toBoolean(peer, idx) != 0);
+        }
+        lock.lock();
+        try {
+            return (_toBoolean(peer, idx) != 0);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public String toString(int idx) {
-        return _toString(luaState, idx);
+        if (isLockFree()) {
+            return _toString(peer, idx);
+        }
+        lock.lock();
+        try {
+            return _toString(peer, idx);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a read-only buffer over the bytes of the string at the given
+     * index, without copying or transcoding them. The view points into Lua
+     * memory: it is only valid while the string stays at that position of the
+     * stack, e.g. while a {@link JavaFunction} reads its arguments. Reading it
+     * later may crash the VM, copy it out if it has to be kept.
+     *
+     * @param idx index of a string
+     * @return ByteBuffer, <code>null</code> if the value is not a string
+     */
+    public ByteBuffer toStringView(int idx) {
+        ByteBuffer view;
+        if (isLockFree()) {
+            view = _toStringView(peer, idx);
+        } else {
+            lock.lock();
+            try {
+                view = _toStringView(peer, idx);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return view == null ? null : view.asReadOnlyBuffer();
+    }
+
+    /**
+     * Copies the bytes of the string at the given index into the buffer,
+     * starting at its position, which is advanced by the number of bytes
+     * copied. At most <code>buffer.remaining()</code> bytes are copied.
+     *
+     * @param idx    index of a string
+     * @param buffer destination
+     * @return the length of the string in bytes, larger than the number of
+     * bytes copied if it did not fit, or -1 if the value is not a string
+     */
+    @SuppressWarnings("try")
+    public int toString(int idx, ByteBuffer buffer) {
+        try (Session ignored = session()) {
+            ByteBuffer view = toStringView(idx);
+            if (view == null) {
+                return -1;
+            }
+            int length = view.remaining();
+            if (length > buffer.remaining()) {
+                view.limit(buffer.remaining());
+            }
+            buffer.put(view);
+            return length;
+        }
     }
 
     public int strLen(int idx) {
-        return _strlen(luaState, idx);
+        if (isLockFree()) {
+            return _strlen(peer, idx);
+        }
+        lock.lock();
+        try {
+            return _strlen(peer, idx);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public int objLen(int idx) {
-        return _objlen(luaState, idx);
+        if (isLockFree()) {
+            return _objlen(peer, idx);
+        }
+        lock.lock();
+        try {
+            return _objlen(peer, idx);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the keys of the table at the given index
+     * are exactly 1 to its length, which includes the empty table.
+     * The table is traversed in a single native call.
+     *
+     * @param idx index of a table
+     * @return boolean
+     */
+    public boolean isArrayTable(int idx) {
+        if (isLockFree()) {
+            return _isArrayTable(peer, idx);
+        }
+        lock.lock();
+        try {
+            return _isArrayTable(peer, idx);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies <code>t[1]</code> to <code>t[array.length]</code> of the table at
+     * the given index into a primitive array, in a single native call. Numbers
+     * are narrowed like Java casts a double. Elements are read with raw access.
+     *
+     * @param idx   index of a table
+     * @param array <code>double[]</code>, <code>float[]</code>, <code>long[]</code>,
+     *              <code>int[]</code>, <code>short[]</code>, <code>byte[]</code>
+     *              or <code>boolean[]</code>
+     * @return 0 if every element was copied, otherwise the 1 based index of the
+     * first element that is not a number (not a boolean for <code>boolean[]</code>),
+     * or -1 if the array could not be pinned
+     * @throws IllegalArgumentException if array is not one of the supported types
+     */
+    public int toPrimitiveArray(int idx, Object array) {
+        char type = primitiveArrayType(array);
+        if (isLockFree()) {
+            return _toPrimitiveArray(peer, idx, array, type);
+        }
+        lock.lock();
+        try {
+            return _toPrimitiveArray(peer, idx, array, type);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static char primitiveArrayType(Object array) {
+        if (array instanceof double[]) {
+            return 'D';
+        } else if (array instanceof float[]) {
+            return 'F';
+        } else if (array instanceof long[]) {
+            return 'J';
+        } else if (array instanceof int[]) {
+            return 'I';
+        } else if (array instanceof short[]) {
+            return 'S';
+        } else if (array instanceof byte[]) {
+            return 'B';
+        } else if (array instanceof boolean[]) {
+            return 'Z';
+        }
+        throw new IllegalArgumentException("Not a supported primitive array: " +
+                (array == null ? null : array.getClass().getName()));
     }
 
     //PUSH FUNCTIONS
 
     public LuaState toThread(int idx) {
-        return new LuaState(_toThread(luaState, idx));
+        CPtr thread;
+        if (isLockFree()) {
+            thread = _toThread(peer, idx);
+        } else {
+            lock.lock();
+            try {
+                thread = _toThread(peer, idx);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return new LuaState(thread, owner);
     }
 
     public void pushNil() {
-        _pushNil(luaState);
+        if (isLockFree()) {
+            _pushNil(peer);
+            return;
+        }
+        lock.lock();
+        try {
+            _pushNil(peer);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void pushNumber(double db) {
-        _pushNumber(luaState, db);
+        if (isLockFree()) {
+            _pushNumber(peer, db);
+            return;
+        }
+        lock.lock();
+        try {
+            _pushNumber(peer, db);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void pushInteger(int integer) {
-        _pushInteger(luaState, integer);
+        if (isLockFree()) {
+            _pushInteger(peer, integer);
+            return;
+        }
+        lock.lock();
+        try {
+            _pushInteger(peer, integer);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void pushString(String str) {
-        if (str == null)
-            _pushNil(luaState);
-        else
-            _pushString(luaState, str);
+        if (str == null) {
+            pushNil();
+            return;
+        }
+        if (isLockFree()) {
+            _pushString(peer, str);
+            return;
+        }
+        lock.lock();
+        try {
+            _pushString(peer, str);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void pushString(byte[] bytes) {
-        if (bytes == null)
-            _pushNil(luaState);
-        else
-            _pushString(luaState, bytes, bytes.length);
+        if (bytes == null) {
+            pushNil();
+            return;
+        }
+        if (isLockFree()) {
+            _pushString(peer, bytes, bytes.length);
+            return;
+        }
+        lock.lock();
+        try {
+            _pushString(peer, bytes, bytes.length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Pushes the remaining bytes of the buffer, from its position to its
+     * limit, as a string. The position is left unchanged. Bytes of a direct
+     * buffer are copied once, straight into the Lua string.
+     *
+     * @param buffer
+     */
+    public void pushString(ByteBuffer buffer) {
+        if (buffer == null) {
+            pushNil();
+            return;
+        }
+        if (!buffer.isDirect()) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            pushString(bytes);
+            return;
+        }
+        int offset = buffer.position();
+        int length = buffer.remaining();
+        if (isLockFree()) {
+            _pushDirectBuffer(peer, buffer, offset, length);
+            return;
+        }
+        lock.lock();
+        try {
+            _pushDirectBuffer(peer, buffer, offset, length);
+        } finally {
+            lock.unlock();
+        }
     }
 
     // GET FUNCTIONS
 
     public void pushBoolean(boolean bool) {
-        _pushBoolean(luaState, bool ? 1 : 0);
+        if (isLockFree()) {
+            _pushBoolean(peer, bool ? 1 : 0);
+            return;
+        }
+        lock.lock();
+        try {
+            _pushBoolean(peer, bool ? 1 : 0);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void getTable(int idx) {
-        _getTable(luaState, idx);
+        if (isLockFree()) {
+            _getTable(peer, idx);
+            return;
+        }
+        lock.lock();
+        try {
+            _getTable(peer, idx);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void getField(int idx, String k) {
-        _getField(luaState, idx, k);
+        if (isLockFree()) {
+            _getField(peer, idx, k);
+            return;
+        }
+        lock.lock();
+        try {
+            _getField(peer, idx, k);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void rawGet(int idx) {
-        _rawGet(luaState, idx);
+        if (isLockFree()) {
+            _rawGet(peer, idx);
+            return;
+        }
+        lock.lock();
+        try {
+            _rawGet(peer, idx);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void rawGetI(int idx, int n) {
-        _rawGetI(luaState, idx, n);
+        if (isLockFree()) {
+            _rawGetI(peer, idx, n);
+            return;
+        }
+        lock.lock();
+        try {
+            _rawGetI(peer, idx, n);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void createTable(int narr, int nrec) {
-        _createTable(luaState, narr, nrec);
+        if (isLockFree()) {
+            _createTable(peer, narr, nrec);
+            return;
+        }
+        lock.lock();
+        try {
+            _createTable(peer, narr, nrec);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void newTable() {
-        _newTable(luaState);
+        if (isLockFree()) {
+            _newTable(peer);
+            return;
+        }
+        lock.lock();
+        try {
+            _newTable(peer);
+        } finally {
+            lock.unlock();
+        }
     }
 
     // if returns 0, there is no metatable
     public int getMetaTable(int idx) {
-        return _getMetaTable(luaState, idx);
+        if (isLockFree()) {
+            return _getMetaTable(peer, idx);
+        }
+        lock.lock();
+        try {
+            return _getMetaTable(peer, idx);
+        } finally {
+            lock.unlock();
+        }
     }
 
     // SET FUNCTIONS
 
     public void getFEnv(int idx) {
-        _getFEnv(luaState, idx);
+        if (isLockFree()) {
+            _getFEnv(peer, idx);
+            return;
+        }
+        lock.lock();
+        try {
+            _getFEnv(peer, idx);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void setTable(int idx) {
-        _setTable(luaState, idx);
+        if (isLockFree()) {
+            _setTable(peer, idx);
+            return;
+        }
+        lock.lock();
+        try {
+            _setTable(peer, idx);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void setField(int idx, String k) {
-        _setField(luaState, idx, k);
+        if (isLockFree()) {
+            _setField(peer, idx, k);
+            return;
+        }
+        lock.lock();
+        try {
+            _setField(peer, idx, k);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Creates a key for names used over and over with
+     * {@link #getField(int, LuaKey)}, {@link #setField(int, LuaKey)},
+     * {@link #getGlobal(LuaKey)} and {@link #setGlobal(LuaKey)}.
+     * The name is transcoded once and kept as a Lua string.
+     *
+     * @param name
+     * @return LuaKey, only valid for this state
+     */
+    public LuaKey newKey(String name) {
+        return new LuaKey(this, name);
+    }
+
+    /**
+     * Same as {@link #getField(int, String)} with a key of this state
+     *
+     * @param idx
+     * @param k
+     */
+    public void getField(int idx, LuaKey k) {
+        int ref = keyRef(k);
+        if (isLockFree()) {
+            _getFieldKey(peer, idx, ref);
+            return;
+        }
+        lock.lock();
+        try {
+            _getFieldKey(peer, idx, ref);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Same as {@link #setField(int, String)} with a key of this state
+     *
+     * @param idx
+     * @param k
+     */
+    public void setField(int idx, LuaKey k) {
+        int ref = keyRef(k);
+        if (isLockFree()) {
+            _setFieldKey(peer, idx, ref);
+            return;
+        }
+        lock.lock();
+        try {
+            _setFieldKey(peer, idx, ref);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Same as {@link #getGlobal(String)} with a key of this state
+     *
+     * @param global
+     */
+    public void getGlobal(LuaKey global) {
+        getField(LUA_GLOBALSINDEX, global);
+    }
+
+    /**
+     * Same as {@link #setGlobal(String)} with a key of this state
+     *
+     * @param name
+     */
+    public void setGlobal(LuaKey name) {
+        setField(LUA_GLOBALSINDEX, name);
+    }
+
+    private int keyRef(LuaKey k) {
+        if (k.getLuaState() != this) {
+            throw new IllegalArgumentException("LuaKey " + k + " belongs to another LuaState");
+        }
+        return k.ref;
     }
 
     public void rawSet(int idx) {
-        _rawSet(luaState, idx);
+        if (isLockFree()) {
+            _rawSet(peer, idx);
+            return;
+        }
+        lock.lock();
+        try {
+            _rawSet(peer, idx);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void rawSetI(int idx, int n) {
-        _rawSetI(luaState, idx, n);
+        if (isLockFree()) {
+            _rawSetI(peer, idx, n);
+            return;
+        }
+        lock.lock();
+        try {
+            _rawSetI(peer, idx, n);
+        } finally {
+            lock.unlock();
+        }
     }
 
     // if returns 0, cannot set the metatable to the given object
     public int setMetaTable(int idx) {
-        return _setMetaTable(luaState, idx);
+        if (isLockFree()) {
+            return _setMetaTable(peer, idx);
+        }
+        lock.lock();
+        try {
+            return _setMetaTable(peer, idx);
+        } finally {
+            lock.unlock();
+        }
     }
 
     // if object is not a function returns 0
     public int setFEnv(int idx) {
-        return _setFEnv(luaState, idx);
+        if (isLockFree()) {
+            return _setFEnv(peer, idx);
+        }
+        lock.lock();
+        try {
+            return _setFEnv(peer, idx);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void call(int nArgs, int nResults) {
-        _call(luaState, nArgs, nResults);
+        if (isLockFree()) {
+            _call(peer, nArgs, nResults);
+            return;
+        }
+        lock.lock();
+        try {
+            _call(peer, nArgs, nResults);
+        } finally {
+            lock.unlock();
+        }
     }
 
     // returns 0 if ok of one of the error codes defined
     public int pcall(int nArgs, int nResults, int errFunc) {
-        return _pcall(luaState, nArgs, nResults, errFunc);
+        if (isLockFree()) {
+            return _pcall(peer, nArgs, nResults, errFunc);
+        }
+        lock.lock();
+        try {
+            return _pcall(peer, nArgs, nResults, errFunc);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Calls the function on top of the stack once per record, in a single
+     * native call. Record <code>r</code> passes <code>in[0][r] .. in[n-1][r]</code>
+     * as arguments and stores its results into <code>out[0][r] .. out[m-1][r]</code>.
+     * A record fails if the call raised an error or a result is not a number.
+     * The function is popped.
+     *
+     * @param in     argument columns, each holding at least <code>count</code> values
+     * @param out    result columns, each holding at least <code>count</code> values
+     * @param count  number of records
+     * @param failed if <code>null</code> the loop stops at the first failed record
+     *               and its error message is pushed. Otherwise the results of failed
+     *               records are set to NaN, the loop goes on and the indexes of the
+     *               failed records are stored into this array, as far as it is long
+     * @return with <code>failed == null</code>, -1 if every record succeeded,
+     * otherwise the index of the failed record. With a <code>failed</code> array,
+     * the number of failed records
+     * @throws IllegalArgumentException if a column is <code>null</code> or shorter
+     *                                  than <code>count</code>, the stack is left as is
+     */
+    public int callMany(double[][] in, double[][] out, int count, int[] failed) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Negative record count " + count);
+        }
+        checkColumns(in, count);
+        checkColumns(out, count);
+        if (isLockFree()) {
+            return _callMany(peer, in, out, count, failed);
+        }
+        lock.lock();
+        try {
+            return _callMany(peer, in, out, count, failed);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void checkColumns(double[][] columns, int count) {
+        if (columns == null) {
+            throw new IllegalArgumentException("Columns must not be null");
+        }
+        for (double[] column : columns) {
+            if (column == null || column.length < count) {
+                throw new IllegalArgumentException("Column shorter than " + count + " records");
+            }
+        }
     }
 
     public int yield(int nResults) {
-        return _yield(luaState, nResults);
+        if (isLockFree()) {
+            return _yield(peer, nResults);
+        }
+        lock.lock();
+        try {
+            return _yield(peer, nResults);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public int resume(int nArgs) {
-        return _resume(luaState, nArgs);
+        if (isLockFree()) {
+            return _resume(peer, nArgs);
+        }
+        lock.lock();
+        try {
+            return _resume(peer, nArgs);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public int status() {
-        return _status(luaState);
+        if (isLockFree()) {
+            return _status(peer);
+        }
+        lock.lock();
+        try {
+            return _status(peer);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public int gc(int what, int data) {
-        return _gc(luaState, what, data);
+        if (isLockFree()) {
+            return _gc(peer, what, data);
+        }
+        lock.lock();
+        try {
+            return _gc(peer, what, data);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public int getGcCount() {
-        return _getGcCount(luaState);
+        if (isLockFree()) {
+            return _getGcCount(peer);
+        }
+        lock.lock();
+        try {
+            return _getGcCount(peer);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public int next(int idx) {
-        return _next(luaState, idx);
+        if (isLockFree()) {
+            return _next(peer, idx);
+        }
+        lock.lock();
+        try {
+            return _next(peer, idx);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public int error() {
-        return _error(luaState);
+        if (isLockFree()) {
+            return _error(peer);
+        }
+        lock.lock();
+        try {
+            return _error(peer);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void concat(int n) {
-        _concat(luaState, n);
+        if (isLockFree()) {
+            _concat(peer, n);
+            return;
+        }
+        lock.lock();
+        try {
+            _concat(peer, n);
+        } finally {
+            lock.unlock();
+        }
     }
 
     // FUNCTION FROM lauxlib
     // returns 0 if ok
     public int LdoFile(String fileName) {
-        return _LdoFile(luaState, fileName);
+        if (isLockFree()) {
+            return _LdoFile(peer, fileName);
+        }
+        lock.lock();
+        try {
+            return _LdoFile(peer, fileName);
+        } finally {
+            lock.unlock();
+        }
     }
 
     // returns 0 if ok
     public int LdoString(String str) {
-        return _LdoString(luaState, str);
+        if (isLockFree()) {
+            return _LdoString(peer, str);
+        }
+        lock.lock();
+        try {
+            return _LdoString(peer, str);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public int LgetMetaField(int obj, String e) {
-        return _LgetMetaField(luaState, obj, e);
+        if (isLockFree()) {
+            return _LgetMetaField(peer, obj, e);
+        }
+        lock.lock();
+        try {
+            return _LgetMetaField(peer, obj, e);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public int LcallMeta(int obj, String e) {
-        return _LcallMeta(luaState, obj, e);
+        if (isLockFree()) {
+            return _LcallMeta(peer, obj, e);
+        }
+        lock.lock();
+        try {
+            return _LcallMeta(peer, obj, e);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public int Ltyperror(int nArg, String tName) {
-        return _Ltyperror(luaState, nArg, tName);
+        if (isLockFree()) {
+            return _Ltyperror(peer, nArg, tName);
+        }
+        lock.lock();
+        try {
+            return _Ltyperror(peer, nArg, tName);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public int LargError(int numArg, String extraMsg) {
-        return _LargError(luaState, numArg, extraMsg);
+        if (isLockFree()) {
+            return _LargError(peer, numArg, extraMsg);
+        }
+        lock.lock();
+        try {
+            return _LargError(peer, numArg, extraMsg);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public String LcheckString(int numArg) {
-        return _LcheckString(luaState, numArg);
+        if (isLockFree()) {
+            return _LcheckString(peer, numArg);
+        }
+        lock.lock();
+        try {
+            return _LcheckString(peer, numArg);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public String LoptString(int numArg, String def) {
-        return _LoptString(luaState, numArg, def);
+        if (isLockFree()) {
+            return _LoptString(peer, numArg, def);
+        }
+        lock.lock();
+        try {
+            return _LoptString(peer, numArg, def);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public double LcheckNumber(int numArg) {
-        return _LcheckNumber(luaState, numArg);
+        if (isLockFree()) {
+            return _LcheckNumber(peer, numArg);
+        }
+        lock.lock();
+        try {
+            return _LcheckNumber(peer, numArg);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public double LoptNumber(int numArg, double def) {
-        return _LoptNumber(luaState, numArg, def);
+        if (isLockFree()) {
+            return _LoptNumber(peer, numArg, def);
+        }
+        lock.lock();
+        try {
+            return _LoptNumber(peer, numArg, def);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public int LcheckInteger(int numArg) {
-        return _LcheckInteger(luaState, numArg);
+        if (isLockFree()) {
+            return _LcheckInteger(peer, numArg);
+        }
+        lock.lock();
+        try {
+            return _LcheckInteger(peer, numArg);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public int LoptInteger(int numArg, int def) {
-        return _LoptInteger(luaState, numArg, def);
+        if (isLockFree()) {
+            return _LoptInteger(peer, numArg, def);
+        }
+        lock.lock();
+        try {
+            return _LoptInteger(peer, numArg, def);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void LcheckStack(int sz, String msg) {
-        _LcheckStack(luaState, sz, msg);
+        if (isLockFree()) {
+            _LcheckStack(peer, sz, msg);
+            return;
+        }
+        lock.lock();
+        try {
+            _LcheckStack(peer, sz, msg);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void LcheckType(int nArg, int t) {
-        _LcheckType(luaState, nArg, t);
+        if (isLockFree()) {
+            _LcheckType(peer, nArg, t);
+            return;
+        }
+        lock.lock();
+        try {
+            _LcheckType(peer, nArg, t);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void LcheckAny(int nArg) {
-        _LcheckAny(luaState, nArg);
+        if (isLockFree()) {
+            _LcheckAny(peer, nArg);
+            return;
+        }
+        lock.lock();
+        try {
+            _LcheckAny(peer, nArg);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public int LnewMetatable(String tName) {
-        return _LnewMetatable(luaState, tName);
+        if (isLockFree()) {
+            return _LnewMetatable(peer, tName);
+        }
+        lock.lock();
+        try {
+            return _LnewMetatable(peer, tName);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void LgetMetatable(String tName) {
-        _LgetMetatable(luaState, tName);
+        if (isLockFree()) {
+            _LgetMetatable(peer, tName);
+            return;
+        }
+        lock.lock();
+        try {
+            _LgetMetatable(peer, tName);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void Lwhere(int lvl) {
-        _Lwhere(luaState, lvl);
+        if (isLockFree()) {
+            _Lwhere(peer, lvl);
+            return;
+        }
+        lock.lock();
+        try {
+            _Lwhere(peer, lvl);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public int Lref(int t) {
-        return _Lref(luaState, t);
+        if (isLockFree()) {
+            return _Lref(peer, t);
+        }
+        lock.lock();
+        try {
+            return _Lref(peer, t);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void LunRef(int t, int ref) {
-        _LunRef(luaState, t, ref);
+        if (isLockFree()) {
+            _LunRef(peer, t, ref);
+            return;
+        }
+        lock.lock();
+        try {
+            _LunRef(peer, t, ref);
+        } finally {
+            lock.unlock();
+        }
     }
 
     // luaL_getn 方法在 LuaJIT 2.1.1748459687 中不存在
     // public int LgetN(int t) {
-    //     return _LgetN(luaState, t);
+    //     return _LgetN(peer, t);
     // }
 
     // luaL_setn 方法在 LuaJIT 2.1.1748459687 中不存在
     // public void LsetN(int t, int n) {
-    //     _LsetN(luaState, t, n);
+    //     _LsetN(peer, t, n);
     // }
 
     public int LloadFile(String fileName) {
-        return _LloadFile(luaState, fileName);
+        if (isLockFree()) {
+            return _LloadFile(peer, fileName);
+        }
+        lock.lock();
+        try {
+            return _LloadFile(peer, fileName);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public int LloadString(String s) {
-        return _LloadString(luaState, s);
+        if (isLockFree()) {
+            return _LloadString(peer, s);
+        }
+        lock.lock();
+        try {
+            return _LloadString(peer, s);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public int LloadBuffer(byte[] buff, String name) {
-        return _LloadBuffer(luaState, buff, buff.length, name);
+        if (isLockFree()) {
+            return _LloadBuffer(peer, buff, buff.length, name);
+        }
+        lock.lock();
+        try {
+            return _LloadBuffer(peer, buff, buff.length, name);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public String Lgsub(String s, String p, String r) {
-        return _Lgsub(luaState, s, p, r);
+        if (isLockFree()) {
+            return _Lgsub(peer, s, p, r);
+        }
+        lock.lock();
+        try {
+            return _Lgsub(peer, s, p, r);
+        } finally {
+            lock.unlock();
+        }
     }
 
     //IMPLEMENTED C MACROS
 
     public String LfindTable(int idx, String fname, int szhint) {
-        return _LfindTable(luaState, idx, fname, szhint);
+        if (isLockFree()) {
+            return _LfindTable(peer, idx, fname, szhint);
+        }
+        lock.lock();
+        try {
+            return _LfindTable(peer, idx, fname, szhint);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void pop(int n) {
         //setTop(- (n) - 1);
-        _pop(luaState, n);
+        if (isLockFree()) {
+            _pop(peer, n);
+            return;
+        }
+        lock.lock();
+        try {
+            _pop(peer, n);
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public synchronized void getGlobal(String global) {
+    public void getGlobal(String global) {
 //    pushString(global);
 //    getTable(LUA_GLOBALSINDEX.intValue());
-        _getGlobal(luaState, global);
+        if (isLockFree()) {
+            _getGlobal(peer, global);
+            return;
+        }
+        lock.lock();
+        try {
+            _getGlobal(peer, global);
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public synchronized void setGlobal(String name) {
+    public void setGlobal(String name) {
         //pushString(name);
         //insert(-2);
         //setTable(LUA_GLOBALSINDEX.intValue());
-        _setGlobal(luaState, name);
+        if (isLockFree()) {
+            _setGlobal(peer, name);
+            return;
+        }
+        lock.lock();
+        try {
+            _setGlobal(peer, name);
+        } finally {
+            lock.unlock();
+        }
     }
 
     // Functions to open lua libraries
     public void openBase() {
-        _openBase(luaState);
+        if (isLockFree()) {
+            _openBase(peer);
+            return;
+        }
+        lock.lock();
+        try {
+            _openBase(peer);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void openTable() {
-        _openTable(luaState);
+        if (isLockFree()) {
+            _openTable(peer);
+            return;
+        }
+        lock.lock();
+        try {
+            _openTable(peer);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void openIo() {
-        _openIo(luaState);
+        if (isLockFree()) {
+            _openIo(peer);
+            return;
+        }
+        lock.lock();
+        try {
+            _openIo(peer);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void openOs() {
-        _openOs(luaState);
+        if (isLockFree()) {
+            _openOs(peer);
+            return;
+        }
+        lock.lock();
+        try {
+            _openOs(peer);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void openString() {
-        _openString(luaState);
+        if (isLockFree()) {
+            _openString(peer);
+            return;
+        }
+        lock.lock();
+        try {
+            _openString(peer);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void openMath() {
-        _openMath(luaState);
+        if (isLockFree()) {
+            _openMath(peer);
+            return;
+        }
+        lock.lock();
+        try {
+            _openMath(peer);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void openDebug() {
-        _openDebug(luaState);
+        if (isLockFree()) {
+            _openDebug(peer);
+            return;
+        }
+        lock.lock();
+        try {
+            _openDebug(peer);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void openPackage() {
-        _openPackage(luaState);
+        if (isLockFree()) {
+            _openPackage(peer);
+            return;
+        }
+        lock.lock();
+        try {
+            _openPackage(peer);
+        } finally {
+            lock.unlock();
+        }
     }
 
 
     /********************** Luajava API Library **********************/
 
     public void openLibs() {
-        _openLibs(luaState);
+        if (isLockFree()) {
+            _openLibs(peer);
+            return;
+        }
+        lock.lock();
+        try {
+            _openLibs(peer);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -858,7 +2243,7 @@ public class LuaState implements AutoCloseable {
      * @param cptr
      * @param stateId
      */
-    private synchronized native void luajava_open(CPtr cptr, int stateId);
+    private native void luajava_open(long ptr, int stateId);
 
     /**
      * Gets a Object from a userdata
@@ -867,7 +2252,7 @@ public class LuaState implements AutoCloseable {
      * @param idx index of the lua stack
      * @return Object
      */
-    private synchronized native Object _getObjectFromUserdata(CPtr L, int idx) throws LuaException;
+    private native Object _getObjectFromUserdata(long L, int idx) throws LuaException;
 
     /**
      * Returns whether a userdata contains a Java Object
@@ -876,7 +2261,7 @@ public class LuaState implements AutoCloseable {
      * @param idx index of the lua stack
      * @return boolean
      */
-    private synchronized native boolean _isObject(CPtr L, int idx);
+    private native boolean _isObject(long L, int idx);
 
     /**
      * Pushes a Java Object into the state stack
@@ -884,7 +2269,7 @@ public class LuaState implements AutoCloseable {
      * @param L
      * @param obj
      */
-    private synchronized native void _pushJavaObject(CPtr L, Object obj);
+    private native void _pushJavaObject(long L, Object obj);
 
     /**
      * Pushes a Java Array into the state stack
@@ -892,7 +2277,12 @@ public class LuaState implements AutoCloseable {
      * @param L
      * @param obj
      */
-    private synchronized native void _pushJavaArray(CPtr L, Object obj);
+    private native void _pushJavaArray(long L, Object obj);
+
+    private native void _pushPrimitiveArray(long ptr, Object array, char type);
+
+    private native void _pushTable(long ptr, byte[] tags, double[] numbers, Object[] objects,
+                                   int count, boolean pairs);
 
     /**
      * Pushes a JavaFunction into the state stack
@@ -900,7 +2290,95 @@ public class LuaState implements AutoCloseable {
      * @param L
      * @param func
      */
-    private synchronized native void _pushJavaFunction(CPtr L, JavaFunction func) throws LuaException;
+    private native void _pushJavaFunction(long L, JavaFunction func) throws LuaException;
+
+    /**
+     * Registers a global Lua function computing <code>f(x)</code> on numbers, e.g.
+     * <code>L.registerDoubleUnary("cbrt", Math::cbrt)</code>. The argument is read
+     * straight off the stack, without building a LuaObject.
+     *
+     * @param name name of the global
+     * @param f    function to call
+     * @throws LuaException if the function could not be pushed
+     */
+    public void registerDoubleUnary(String name, DoubleUnaryOperator f) throws LuaException {
+        register(name, new FunctionAdapters.DoubleUnary(this, f));
+    }
+
+    /**
+     * Registers a global Lua function computing <code>f(x, y)</code> on numbers,
+     * e.g. <code>L.registerDoubleBinary("hypot", Math::hypot)</code>.
+     *
+     * @see #registerDoubleUnary(String, DoubleUnaryOperator)
+     */
+    public void registerDoubleBinary(String name, DoubleBinaryOperator f) throws LuaException {
+        register(name, new FunctionAdapters.DoubleBinary(this, f));
+    }
+
+    /**
+     * Registers a global Lua function returning a number. The argument is
+     * converted like {@link #toJavaObject(int)} does.
+     *
+     * @see #registerDoubleUnary(String, DoubleUnaryOperator)
+     */
+    public void registerToDouble(String name, ToDoubleFunction<Object> f) throws LuaException {
+        register(name, new FunctionAdapters.ToDouble(this, f));
+    }
+
+    /**
+     * Registers a global Lua function of two arguments returning a number.
+     *
+     * @see #registerToDouble(String, ToDoubleFunction)
+     */
+    public void registerToDoubleBi(String name, ToDoubleBiFunction<Object, Object> f) throws LuaException {
+        register(name, new FunctionAdapters.ToDoubleBi(this, f));
+    }
+
+    /**
+     * Registers a global Lua function. The argument is converted like
+     * {@link #toJavaObject(int)} does, the result is pushed like
+     * {@link #pushObjectValue(Object)} does.
+     *
+     * @see #registerDoubleUnary(String, DoubleUnaryOperator)
+     */
+    public void registerFunction(String name, Function<Object, ?> f) throws LuaException {
+        register(name, new FunctionAdapters.Unary(this, f));
+    }
+
+    /**
+     * Registers a global Lua function of two arguments.
+     *
+     * @see #registerFunction(String, Function)
+     */
+    public void registerBiFunction(String name, BiFunction<Object, Object, ?> f) throws LuaException {
+        register(name, new FunctionAdapters.Binary(this, f));
+    }
+
+    /**
+     * Registers a global Lua function without arguments.
+     *
+     * @see #registerFunction(String, Function)
+     */
+    public void registerSupplier(String name, Supplier<?> f) throws LuaException {
+        register(name, new FunctionAdapters.Supply(this, f));
+    }
+
+    /**
+     * Registers a global Lua function without results.
+     *
+     * @see #registerFunction(String, Function)
+     */
+    public void registerConsumer(String name, Consumer<Object> f) throws LuaException {
+        register(name, new FunctionAdapters.Consume(this, f));
+    }
+
+    @SuppressWarnings("try")
+    private void register(String name, JavaFunction f) throws LuaException {
+        try (Session ignored = session()) {
+            pushJavaFunction(f);
+            setGlobal(name);
+        }
+    }
 
     /**
      * Returns whether a userdata contains a Java Function
@@ -909,7 +2387,7 @@ public class LuaState implements AutoCloseable {
      * @param idx index of the lua stack
      * @return boolean
      */
-    private synchronized native boolean _isJavaFunction(CPtr L, int idx);
+    private native boolean _isJavaFunction(long L, int idx);
 
     /**
      * Gets a Object from Lua
@@ -919,7 +2397,15 @@ public class LuaState implements AutoCloseable {
      * @throws LuaException if the lua object does not represent a java object.
      */
     public Object getObjectFromUserdata(int idx) throws LuaException {
-        return _getObjectFromUserdata(luaState, idx);
+        if (isLockFree()) {
+            return _getObjectFromUserdata(peer, idx);
+        }
+        lock.lock();
+        try {
+            return _getObjectFromUserdata(peer, idx);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -929,7 +2415,15 @@ public class LuaState implements AutoCloseable {
      * @return boolean
      */
     public boolean isObject(int idx) {
-        return _isObject(luaState, idx);
+        if (isLockFree()) {
+            return _isObject(peer, idx);
+        }
+        lock.lock();
+        try {
+            return _isObject(peer, idx);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -940,14 +2434,156 @@ public class LuaState implements AutoCloseable {
      * @param obj Object to be pushed into lua
      */
     public void pushJavaObject(Object obj) {
-        _pushJavaObject(luaState, obj);
+        if (isLockFree()) {
+            _pushJavaObject(peer, obj);
+            return;
+        }
+        lock.lock();
+        try {
+            _pushJavaObject(peer, obj);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void pushJavaArray(Object obj) throws LuaException {
         if (!obj.getClass().isArray())
             throw new LuaException("Object is not an array.");
 
-        _pushJavaArray(luaState, obj);
+        if (isLockFree()) {
+            _pushJavaArray(peer, obj);
+            return;
+        }
+        lock.lock();
+        try {
+            _pushJavaArray(peer, obj);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Pushes a new table with the elements of the array at the keys 1 to n.
+     * Unlike {@link #pushJavaArray(Object)} the result is a real Lua table,
+     * built in a single native call.
+     *
+     * @param array
+     */
+    public void pushTable(double[] array) {
+        pushPrimitiveArray(array);
+    }
+
+    /**
+     * Pushes a new table with the elements of the array at the keys 1 to n,
+     * built in a single native call.
+     *
+     * @param array
+     */
+    public void pushTable(float[] array) {
+        pushPrimitiveArray(array);
+    }
+
+    /**
+     * Pushes a new table with the elements of the array at the keys 1 to n,
+     * built in a single native call. Values beyond 2^53 lose precision.
+     *
+     * @param array
+     */
+    public void pushTable(long[] array) {
+        pushPrimitiveArray(array);
+    }
+
+    /**
+     * Pushes a new table with the elements of the array at the keys 1 to n,
+     * built in a single native call.
+     *
+     * @param array
+     */
+    public void pushTable(int[] array) {
+        pushPrimitiveArray(array);
+    }
+
+    /**
+     * Pushes a new table with the elements of the array at the keys 1 to n,
+     * built in a single native call.
+     *
+     * @param array
+     */
+    public void pushTable(short[] array) {
+        pushPrimitiveArray(array);
+    }
+
+    /**
+     * Pushes a new table with the elements of the array at the keys 1 to n,
+     * built in a single native call.
+     *
+     * @param array
+     */
+    public void pushTable(boolean[] array) {
+        pushPrimitiveArray(array);
+    }
+
+    private void pushPrimitiveArray(Object array) {
+        char type = primitiveArrayType(array);
+        if (isLockFree()) {
+            _pushPrimitiveArray(peer, array, type);
+            return;
+        }
+        lock.lock();
+        try {
+            _pushPrimitiveArray(peer, array, type);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Pushes a new table with the elements of the list at the keys 1 to n.
+     * Elements are converted like {@link #pushObjectValue(Object)} does,
+     * <code>null</code> elements leave holes. The table is built in a
+     * single native call.
+     *
+     * @param list
+     * @throws IllegalArgumentException if an element is a LuaObject of another state
+     */
+    public void pushTable(List<?> list) {
+        TableEncoding encoding = new TableEncoding(this, list.size());
+        for (Object value : list) {
+            encoding.add(value);
+        }
+        pushTable(encoding, false);
+    }
+
+    /**
+     * Pushes a new table with the entries of the map. Keys and values are
+     * converted like {@link #pushObjectValue(Object)} does. The table is
+     * built in a single native call. Entries whose key only turns out to
+     * be nil in Lua, e.g. a LuaObject referencing nil, are skipped.
+     *
+     * @param map
+     * @throws IllegalArgumentException if a key is <code>null</code> or NaN, or a key
+     *                                  or value is a LuaObject of another state
+     */
+    public void pushTable(Map<?, ?> map) {
+        TableEncoding encoding = new TableEncoding(this, map.size() * 2);
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            encoding.addKey(entry.getKey());
+            encoding.add(entry.getValue());
+        }
+        pushTable(encoding, true);
+    }
+
+    private void pushTable(TableEncoding encoding, boolean pairs) {
+        if (isLockFree()) {
+            _pushTable(peer, encoding.tags, encoding.numbers, encoding.objects, encoding.count, pairs);
+            return;
+        }
+        lock.lock();
+        try {
+            _pushTable(peer, encoding.tags, encoding.numbers, encoding.objects, encoding.count, pairs);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -956,7 +2592,16 @@ public class LuaState implements AutoCloseable {
      * @param func
      */
     public void pushJavaFunction(JavaFunction func) throws LuaException {
-        _pushJavaFunction(luaState, func);
+        if (isLockFree()) {
+            _pushJavaFunction(peer, func);
+            return;
+        }
+        lock.lock();
+        try {
+            _pushJavaFunction(peer, func);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -966,7 +2611,15 @@ public class LuaState implements AutoCloseable {
      * @return boolean
      */
     public boolean isJavaFunction(int idx) {
-        return _isJavaFunction(luaState, idx);
+        if (isLockFree()) {
+            return _isJavaFunction(peer, idx);
+        }
+        lock.lock();
+        try {
+            return _isJavaFunction(peer, idx);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -1005,29 +2658,32 @@ public class LuaState implements AutoCloseable {
      * @param idx Index in the Lua Stack
      * @return Java object equivalent to the Lua one
      */
-    public synchronized Object toJavaObject(int idx) throws LuaException {
-        Object obj = null;
-        int type = type(idx);
-        switch (type) {
-            case LUA_TBOOLEAN:
-                obj = toBoolean(idx);
-                break;
-            case LUA_TSTRING:
-                obj = toString(idx);
-                break;
-            case LUA_TFUNCTION:
-            case LUA_TTABLE:
-                obj = getLuaObject(idx);
-                break;
-            case LUA_TNUMBER:
-                obj = toNumber(idx);
-                break;
-            case LUA_TUSERDATA:
-                obj = isObject(idx) ? getObjectFromUserdata(idx) : getLuaObject(idx);
-                break;
-        }
+    @SuppressWarnings("try")
+    public Object toJavaObject(int idx) throws LuaException {
+        try (Session ignored = session()) {
+            Object obj = null;
+            int type = type(idx);
+            switch (type) {
+                case LUA_TBOOLEAN:
+                    obj = toBoolean(idx);
+                    break;
+                case LUA_TSTRING:
+                    obj = toString(idx);
+                    break;
+                case LUA_TFUNCTION:
+                case LUA_TTABLE:
+                    obj = getLuaObject(idx);
+                    break;
+                case LUA_TNUMBER:
+                    obj = toNumber(idx);
+                    break;
+                case LUA_TUSERDATA:
+                    obj = isObject(idx) ? getObjectFromUserdata(idx) : getLuaObject(idx);
+                    break;
+            }
 
-        return obj;
+            return obj;
+        }
     }
 
     /**
@@ -1050,7 +2706,7 @@ public class LuaState implements AutoCloseable {
      */
     public LuaObject getLuaObject(LuaObject parent, String name)
             throws LuaException {
-        if (parent.L.getCPtrPeer() != luaState.getPeer())
+        if (parent.L.getCPtrPeer() != peer)
             throw new LuaException("Object must have the same LuaState as the parent!");
 
         return LuaObject.create(parent, name);
@@ -1066,7 +2722,7 @@ public class LuaState implements AutoCloseable {
      */
     public LuaObject getLuaObject(LuaObject parent, Number name)
             throws LuaException {
-        if (parent.L.getCPtrPeer() != luaState.getPeer())
+        if (parent.L.getCPtrPeer() != peer)
             throw new LuaException("Object must have the same LuaState as the parent!");
 
         return LuaObject.create(parent, name);
@@ -1082,7 +2738,7 @@ public class LuaState implements AutoCloseable {
      */
     public LuaObject getLuaObject(LuaObject parent, LuaObject name)
             throws LuaException {
-        if (parent.getLuaState().getCPtrPeer() != luaState.getPeer() ||
+        if (parent.getLuaState().getCPtrPeer() != peer ||
                 parent.getLuaState().getCPtrPeer() != name.getLuaState().getCPtrPeer())
             throw new LuaException("Object must have the same LuaState as the parent!");
 
@@ -24,23 +24,53 @@
 
 package org.keplerproject.luajava;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * This class is responsible for instantiating new LuaStates.
- * When a new LuaState is instantiated it is put into a List
+ * When a new LuaState is instantiated it is put into a table
  * and an index is returned. This index is registred in Lua
  * and it is used to find the right LuaState when lua calls
  * a Java Function.
+ * <p>
+ * Lookups by index never take a lock: the table is an
+ * {@link AtomicReferenceArray} that is republished as a whole
+ * when it has to grow. Only registration and removal are
+ * serialized, and both run in constant time.
  *
  * @author Thiago Ponte
  */
 public final class LuaStateFactory {
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Guards every structural change of the registry.
+     */
+    private static final Object LOCK = new Object();
+
+    /**
+     * Table with all luaState's instances, indexed by state id
+     */
+    private static volatile AtomicReferenceArray<LuaState> states =
+            new AtomicReferenceArray<>(INITIAL_CAPACITY);
+
+    /**
+     * Maps the C pointer of a registered state to its index
+     */
+    private static final Map<Long, Integer> peers = new ConcurrentHashMap<>();
+
+    /**
+     * Stack of released indexes, reused before the table grows
+     */
+    private static int[] freeIndexes = new int[INITIAL_CAPACITY];
+    private static int freeCount = 0;
+
     /**
-     * Array with all luaState's instances
+     * First index that was never handed out
      */
-    private static final List<LuaState> states = new ArrayList<>();
+    private static int nextIndex = 0;
 
     /**
      * Non-public constructor.
@@ -53,13 +83,30 @@ public final class LuaStateFactory {
      *
      * @return LuaState
      */
-    public synchronized static LuaState newLuaState() {
-        int i = getNextStateIndex();
-        LuaState L = new LuaState(i);
+    public static LuaState newLuaState() {
+        return newLuaState(null);
+    }
 
-        states.add(i, L);
+    /**
+     * Creates a new LuaState confined to the current thread. Its natives run
+     * without taking the monitor of the state, and any use from another
+     * thread throws an <code>IllegalStateException</code>.
+     *
+     * @return LuaState
+     */
+    public static LuaState newThreadConfinedLuaState() {
+        return newLuaState(Thread.currentThread());
+    }
+
+    private static LuaState newLuaState(Thread owner) {
+        synchronized (LOCK) {
+            int i = getNextStateIndex();
+            LuaState L = new LuaState(i, owner);
 
-        return L;
+            publish(i, L);
+
+            return L;
+        }
     }
 
     /**
@@ -68,53 +115,106 @@ public final class LuaStateFactory {
      * @param index
      * @return LuaState
      */
-    public synchronized static LuaState getExistingState(int index) {
-        return (LuaState) states.get(index);
+    public static LuaState getExistingState(int index) {
+        AtomicReferenceArray<LuaState> table = states;
+        if (index < 0 || index >= table.length()) {
+            return null;
+        }
+        return table.get(index);
     }
 
     /**
-     * Receives a existing LuaState and checks if it exists in the states list.
-     * If it doesn't exist adds it to the list.
+     * Receives a existing LuaState and checks if it exists in the states table.
+     * If it doesn't exist adds it to the table.
      *
      * @param L
      * @return int
      */
-    public synchronized static int insertLuaState(LuaState L) {
-        int i;
-        for (i = 0; i < states.size(); i++) {
-            LuaState state = (LuaState) states.get(i);
-
-            if (state != null) {
-                if (state.getCPtrPeer() == L.getCPtrPeer())
-                    return i;
-            }
+    public static int insertLuaState(LuaState L) {
+        Integer known = peers.get(L.getCPtrPeer());
+        if (known != null) {
+            return known;
         }
 
-        i = getNextStateIndex();
+        synchronized (LOCK) {
+            known = peers.get(L.getCPtrPeer());
+            if (known != null) {
+                return known;
+            }
+
+            int i = getNextStateIndex();
 
-        states.set(i, L);
+            publish(i, L);
 
-        return i;
+            return i;
+        }
     }
 
     /**
-     * removes the luaState from the states list
+     * removes the luaState from the states table
      *
      * @param idx
      */
-    public synchronized static void removeLuaState(int idx) {
-        states.set(idx, null);
+    public static void removeLuaState(int idx) {
+        synchronized (LOCK) {
+            AtomicReferenceArray<LuaState> table = states;
+            if (idx < 0 || idx >= table.length()) {
+                return;
+            }
+
+            LuaState L = table.getAndSet(idx, null);
+            if (L == null) {
+                return;
+            }
+
+            peers.remove(L.getCPtrPeer(), idx);
+
+            if (freeCount == freeIndexes.length) {
+                int[] grown = new int[freeIndexes.length << 1];
+                System.arraycopy(freeIndexes, 0, grown, 0, freeCount);
+                freeIndexes = grown;
+            }
+            freeIndexes[freeCount++] = idx;
+        }
     }
 
     /**
-     * Get next available index
+     * Get next available index. Must be called holding {@link #LOCK}.
      *
      * @return int
      */
-    private synchronized static int getNextStateIndex() {
-        int i;
-        for (i = 0; i < states.size() && states.get(i) != null; i++) ;
+    private static int getNextStateIndex() {
+        if (freeCount > 0) {
+            return freeIndexes[--freeCount];
+        }
+        return nextIndex++;
+    }
+
+    /**
+     * Stores the state in the table, growing it when needed.
+     * Must be called holding {@link #LOCK}.
+     *
+     * @param idx index of the state
+     * @param L   state to be stored
+     */
+    private static void publish(int idx, LuaState L) {
+        AtomicReferenceArray<LuaState> table = states;
+        if (idx >= table.length()) {
+            int length = table.length();
+            while (length <= idx) {
+                length <<= 1;
+            }
+
+            AtomicReferenceArray<LuaState> grown = new AtomicReferenceArray<>(length);
+            for (int i = 0; i < table.length(); i++) {
+                grown.set(i, table.get(i));
+            }
+            grown.set(idx, L);
+            states = grown;
+        } else {
+            table.set(idx, L);
+        }
 
-        return i;
+        peers.put(L.getCPtrPeer(), idx);
     }
 }
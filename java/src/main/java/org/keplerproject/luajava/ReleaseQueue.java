@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2003-2007 Kepler Project.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.keplerproject.luajava;
+
+import java.util.Arrays;
+
+/**
+ * Registry references released by threads that do not hold the state.
+ * Any thread may add to the queue, it is drained by the thread holding
+ * the state, which unrefs the whole batch in a single native call.
+ */
+final class ReleaseQueue {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int[] refs = new int[INITIAL_CAPACITY];
+    private int size;
+    /**
+     * Buffer swapped in on drain, only touched by the thread holding the state
+     */
+    private int[] spare = new int[INITIAL_CAPACITY];
+    private volatile boolean pending;
+
+    void add(int ref) {
+        synchronized (this) {
+            if (size == refs.length) {
+                refs = Arrays.copyOf(refs, size << 1);
+            }
+            refs[size++] = ref;
+            pending = true;
+        }
+    }
+
+    boolean isPending() {
+        return pending;
+    }
+
+    /**
+     * Unrefs every queued reference. Must be called by the thread holding the state.
+     *
+     * @param L state the references belong to
+     */
+    void drainTo(LuaState L) {
+        int[] batch;
+        int count;
+        synchronized (this) {
+            batch = refs;
+            count = size;
+            refs = spare;
+            size = 0;
+            pending = false;
+        }
+        if (count > 0) {
+            L.unrefAll(batch, count);
+        }
+        spare = batch;
+    }
+
+    void clear() {
+        synchronized (this) {
+            size = 0;
+            pending = false;
+        }
+    }
+}
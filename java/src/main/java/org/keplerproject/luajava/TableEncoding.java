@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2003-2007 Kepler Project.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.keplerproject.luajava;
+
+/**
+ * Values of a table flattened into parallel arrays, so the native side can
+ * build the whole table in one call. Each value is converted the same way
+ * {@link LuaState#pushObjectValue(Object)} converts it. The tags must match
+ * the <code>TABLE_ENCODING_*</code> constants of luajava.c.
+ */
+final class TableEncoding {
+    static final byte NIL = 0;
+    static final byte BOOLEAN = 1;
+    static final byte NUMBER = 2;
+    static final byte STRING = 3;
+    static final byte BYTES = 4;
+    static final byte REF = 5;
+    static final byte FUNCTION = 6;
+    static final byte ARRAY = 7;
+    static final byte OBJECT = 8;
+
+    private final LuaState L;
+
+    final byte[] tags;
+    final double[] numbers;
+    final Object[] objects;
+    int count;
+
+    TableEncoding(LuaState L, int capacity) {
+        this.L = L;
+        tags = new byte[capacity];
+        numbers = new double[capacity];
+        objects = new Object[capacity];
+    }
+
+    /**
+     * Adds a key, which may neither be nil nor NaN.
+     *
+     * @throws IllegalArgumentException if the key is not a valid table key
+     */
+    void addKey(Object key) {
+        if (key == null) {
+            throw new IllegalArgumentException("Table key must not be null");
+        }
+        int i = count;
+        add(key);
+        if (tags[i] == NUMBER && Double.isNaN(numbers[i])) {
+            throw new IllegalArgumentException("Table key must not be NaN");
+        }
+        if (tags[i] == NIL) {
+            throw new IllegalArgumentException("Table key must not be nil");
+        }
+    }
+
+    void add(Object value) {
+        int i = count++;
+        if (value == null) {
+            tags[i] = NIL;
+        } else if (value instanceof Boolean) {
+            tags[i] = BOOLEAN;
+            numbers[i] = (Boolean) value ? 1 : 0;
+        } else if (value instanceof Number) {
+            tags[i] = NUMBER;
+            numbers[i] = ((Number) value).doubleValue();
+        } else if (value instanceof String) {
+            tags[i] = STRING;
+            objects[i] = value;
+        } else if (value instanceof JavaFunction) {
+            tags[i] = FUNCTION;
+            objects[i] = value;
+        } else if (value instanceof LuaObject) {
+            addLuaObject(i, (LuaObject) value);
+        } else if (value instanceof byte[]) {
+            tags[i] = BYTES;
+            objects[i] = value;
+        } else if (value.getClass().isArray()) {
+            tags[i] = ARRAY;
+            objects[i] = value;
+        } else {
+            tags[i] = OBJECT;
+            objects[i] = value;
+        }
+    }
+
+    private void addLuaObject(int i, LuaObject value) {
+        if (value.ref != LuaState.LUA_NOREF) {
+            if (value.getLuaState() != L) {
+                throw new IllegalArgumentException("LuaObject " + value.ref + " belongs to another LuaState");
+            }
+            tags[i] = REF;
+            numbers[i] = value.ref;
+            return;
+        }
+        // snapshot of a scalar
+        switch (value.type()) {
+            case LuaState.LUA_TBOOLEAN:
+                tags[i] = BOOLEAN;
+                numbers[i] = value.getBoolean() ? 1 : 0;
+                break;
+            case LuaState.LUA_TNUMBER:
+                tags[i] = NUMBER;
+                numbers[i] = value.getNumber();
+                break;
+            case LuaState.LUA_TSTRING:
+                // raw bytes, like pushing the snapshot itself
+                byte[] bytes = value.getSnapshotBytes();
+                tags[i] = bytes != null ? BYTES : STRING;
+                objects[i] = bytes != null ? bytes : value.getString();
+                break;
+            default:
+                tags[i] = NIL;
+                break;
+        }
+    }
+}
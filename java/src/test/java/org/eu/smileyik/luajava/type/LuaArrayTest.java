@@ -35,6 +35,33 @@ class LuaArrayTest {
         L.close();
     }
 
+    @Test
+    public void classifyTest() throws Throwable {
+        String lua = "big = {}; for i = 1, 100000 do big[i] = i end\n" +
+                "holes = {1, 2, nil, 4}\n" +
+                "sparse = {[1] = 1, [3] = 3}\n" +
+                "mixed = {1, 2, x = 3}\n" +
+                "reversed = {}; for i = 5, 1, -1 do reversed[i] = i end";
+        LuaState L = LuaStateFactory.newLuaState();
+        L.openLibs();
+        int exp = L.LdoString(lua);
+        if (exp != 0) {
+            throw new LuaException(L.toString(-1));
+        }
+        assert L.getLuaObject("reversed") instanceof LuaArray;
+        assert !(L.getLuaObject("sparse") instanceof LuaArray);
+        assert !(L.getLuaObject("mixed") instanceof LuaArray);
+        assert !(L.getLuaObject("holes") instanceof LuaArray);
+
+        for (int round = 0; round < 3; round++) {
+            long begin = System.nanoTime();
+            LuaObject big = L.getLuaObject("big");
+            System.out.printf("wrapped 100k table in %.3f ms%n", (System.nanoTime() - begin) / 1e6);
+            assert big instanceof LuaArray;
+        }
+        L.close();
+    }
+
     @Test
     public void forEachTest() throws Throwable {
         String lua = "array = {1, 'a', 2, 'b', 3, function() print('c') end}\n" +
@@ -139,6 +166,48 @@ class LuaArrayTest {
         L.close();
     }
 
+    @Test
+    public void toPrimitiveArrayTest() throws Throwable {
+        String lua = "big = {}; for i = 1, 1000000 do big[i] = i * 0.5 end\n" +
+                "edge = {1e300, -1e300, 0/0, 2.9, -2.9, 300}\n" +
+                "mixed = {1, 2, '3'}";
+        LuaState L = LuaStateFactory.newLuaState();
+        L.openLibs();
+        int exp = L.LdoString(lua);
+        if (exp != 0) {
+            throw new LuaException(L.toString(-1));
+        }
+        LuaArray edge = (LuaArray) L.getLuaObject("edge");
+        assert Arrays.equals(edge.toIntArray(),
+                new int[]{Integer.MAX_VALUE, Integer.MIN_VALUE, 0, 2, -2, 300});
+        assert Arrays.equals(edge.toLongArray(),
+                new long[]{Long.MAX_VALUE, Long.MIN_VALUE, 0, 2, -2, 300});
+        assert edge.toByteArray()[5] == (byte) 300;
+
+        try {
+            ((LuaArray) L.getLuaObject("mixed")).toDoubleArray();
+            assert false;
+        } catch (LuaException e) {
+            assert e.getMessage().contains("Element 3");
+        }
+        try {
+            ((LuaArray) L.getLuaObject("mixed")).toBooleanArray();
+            assert false;
+        } catch (LuaException e) {
+            assert e.getMessage().contains("Element 1");
+        }
+
+        LuaArray big = (LuaArray) L.getLuaObject("big");
+        for (int round = 0; round < 3; round++) {
+            long begin = System.nanoTime();
+            double[] doubles = big.toDoubleArray();
+            System.out.printf("1M doubles in %.2f ms%n", (System.nanoTime() - begin) / 1e6);
+            assert doubles.length == 1_000_000 && doubles[999_999] == 500_000;
+        }
+        assert L.getTop() == 0;
+        L.close();
+    }
+
     @Test
     public void toArrayTest() throws Throwable {
         String lua = "array = {1, 'a', 2, 'b', 3, function() print('c') end}\n" +
@@ -0,0 +1,255 @@
+package org.eu.smileyik.luajava.type;
+
+import org.junit.jupiter.api.Test;
+import org.keplerproject.luajava.*;
+
+class LuaFunctionTest {
+
+    static {
+        LoadLibrary.load();
+    }
+
+    @Test
+    public void typedCallTest() throws Throwable {
+        String lua = "function add(a, b) return a + b end\n" +
+                "function sum(...) local s = 0; for _, v in ipairs({...}) do s = s + v end; return s end\n" +
+                "function info(n, b, s) return n * 2, not b, s .. '!', nil end\n" +
+                "function str() return 'x' end\n" +
+                "function fail() error('boom') end\n" +
+                "count = 0; function inc(n) count = count + n end";
+        LuaState L = LuaStateFactory.newLuaState();
+        L.openLibs();
+        int exp = L.LdoString(lua);
+        if (exp != 0) {
+            throw new LuaException(L.toString(-1));
+        }
+
+        LuaFunction add = (LuaFunction) L.getLuaObject("add");
+        assert add.callDouble(1.5, 2) == 3.5;
+        assert add.callLong(40, 2) == 42;
+        LuaFunction sum = (LuaFunction) L.getLuaObject("sum");
+        assert sum.callDouble() == 0;
+        assert sum.callDouble(1, 2, 3, 4) == 10;
+        assert sum.callLong(1, 2, 3, 4, 5) == 15;
+        LuaFunction inc = (LuaFunction) L.getLuaObject("inc");
+        inc.callVoid(2);
+        inc.callVoid(3);
+        assert L.getLuaObject("count").getNumber() == 5;
+
+        LuaFunction.CallFrame frame = ((LuaFunction) L.getLuaObject("info")).newFrame();
+        assert frame.arg(21).arg(false).arg("a").call(LuaState.LUA_MULTRET) == 4;
+        assert frame.getLong(0) == 42;
+        assert frame.getBoolean(1);
+        assert "a!".equals(frame.getObject(2));
+        assert frame.getObject(3) == null && !frame.getBoolean(3);
+        assert frame.arg(1).arg(true).arg("b").callLong() == 2;
+        assert frame.resultCount() == 1;
+
+        try {
+            ((LuaFunction) L.getLuaObject("str")).callDouble();
+            assert false;
+        } catch (LuaException e) {
+            System.out.println(e.getMessage());
+        }
+        try {
+            ((LuaFunction) L.getLuaObject("fail")).callVoid();
+            assert false;
+        } catch (LuaException e) {
+            assert e.getMessage().contains("boom");
+        }
+
+        // an argument failing to push leaves nothing on the stack
+        java.util.concurrent.CountDownLatch created = new java.util.concurrent.CountDownLatch(1);
+        java.util.concurrent.CountDownLatch done = new java.util.concurrent.CountDownLatch(1);
+        LuaObject[] foreign = new LuaObject[1];
+        Thread owner = new Thread(() -> {
+            LuaState confined = LuaStateFactory.newThreadConfinedLuaState();
+            confined.LdoString("t = {}");
+            foreign[0] = confined.getLuaObject("t");
+            created.countDown();
+            try {
+                done.await();
+            } catch (InterruptedException ignored) {
+            }
+            confined.close();
+        });
+        owner.start();
+        created.await();
+        try {
+            frame.arg(1).arg(foreign[0]).arg("c").callVoid();
+            assert false;
+        } catch (IllegalStateException e) {
+            assert L.getTop() == 0;
+        } finally {
+            done.countDown();
+            owner.join();
+        }
+        assert L.getTop() == 0;
+        L.close();
+    }
+
+    @Test
+    public void typedCallBenchmark() throws Throwable {
+        LuaState L = LuaStateFactory.newLuaState();
+        int exp = L.LdoString("function f(x) return x * 2 + 1 end");
+        if (exp != 0) {
+            throw new LuaException(L.toString(-1));
+        }
+        LuaFunction f = (LuaFunction) L.getLuaObject("f");
+        LuaFunction.CallFrame frame = f.newFrame();
+        int n = 1_000_000;
+        for (int round = 0; round < 3; round++) {
+            long begin = System.nanoTime();
+            double total = 0;
+            for (int i = 0; i < n; i++) {
+                total += f.callDouble(i);
+            }
+            long typed = System.nanoTime() - begin;
+
+            begin = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                total -= frame.arg(i).callDouble();
+            }
+            long framed = System.nanoTime() - begin;
+
+            begin = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                total += ((Number) f.call(new Object[]{i})).doubleValue();
+            }
+            long boxed = System.nanoTime() - begin;
+
+            assert total == (double) n * n;
+            System.out.printf("callDouble: %.1f ns/call, CallFrame: %.1f ns/call, call(Object[]): %.1f ns/call%n",
+                    (double) typed / n, (double) framed / n, (double) boxed / n);
+        }
+        L.close();
+    }
+
+    @Test
+    public void callManyTest() throws Throwable {
+        String lua = "function score(x) return x * 2 end\n" +
+                "function divmod(a, b) if b == 0 then error('zero') end; return math.floor(a / b), a % b end";
+        LuaState L = LuaStateFactory.newLuaState();
+        L.openLibs();
+        int exp = L.LdoString(lua);
+        if (exp != 0) {
+            throw new LuaException(L.toString(-1));
+        }
+        LuaFunction score = (LuaFunction) L.getLuaObject("score");
+        double[] in = new double[1000];
+        double[] out = new double[1000];
+        for (int i = 0; i < in.length; i++) {
+            in[i] = i;
+        }
+        score.callMany(in, out);
+        for (int i = 0; i < out.length; i++) {
+            assert out[i] == i * 2;
+        }
+
+        LuaFunction divmod = (LuaFunction) L.getLuaObject("divmod");
+        double[] q = new double[3];
+        double[] m = new double[3];
+        double[][] args = {{7, 9, 5}, {2, 0, 5}};
+        try {
+            divmod.callMany(args, new double[][]{q, m});
+            assert false;
+        } catch (LuaException e) {
+            assert e.getMessage().startsWith("Record 1 failed") : e.getMessage();
+        }
+        assert q[0] == 3 && m[0] == 1;
+
+        int[] failed = new int[3];
+        assert divmod.callMany(args, new double[][]{q, m}, failed) == 1;
+        assert failed[0] == 1;
+        assert Double.isNaN(q[1]) && Double.isNaN(m[1]);
+        assert q[2] == 1 && m[2] == 0;
+
+        // the state checks the columns itself before going native
+        for (double[][] bad : new double[][][]{{new double[2]}, {null}}) {
+            L.getGlobal("score");
+            try {
+                L.callMany(bad, new double[][]{out}, 3, null);
+                assert false;
+            } catch (IllegalArgumentException e) {
+                assert L.getTop() == 1;
+            }
+            L.pop(1);
+        }
+        assert L.getTop() == 0;
+        L.close();
+    }
+
+    @Test
+    public void callManyBenchmark() throws Throwable {
+        LuaState L = LuaStateFactory.newLuaState();
+        int exp = L.LdoString("function f(x) return x * 2 + 1 end");
+        if (exp != 0) {
+            throw new LuaException(L.toString(-1));
+        }
+        LuaFunction f = (LuaFunction) L.getLuaObject("f");
+        int n = 1_000_000;
+        double[] in = new double[n];
+        double[] out = new double[n];
+        for (int i = 0; i < n; i++) {
+            in[i] = i;
+        }
+        for (int round = 0; round < 3; round++) {
+            long begin = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                out[i] = f.callDouble(in[i]);
+            }
+            long single = System.nanoTime() - begin;
+
+            begin = System.nanoTime();
+            f.callMany(in, out);
+            long many = System.nanoTime() - begin;
+
+            assert out[n - 1] == 2.0 * (n - 1) + 1;
+            System.out.printf("callDouble: %.1f ns/record, callMany: %.1f ns/record%n",
+                    (double) single / n, (double) many / n);
+        }
+        L.close();
+    }
+
+    @Test
+    public void asInterfaceBenchmark() throws Throwable {
+        String lua = "function cmp(a, b) return a - b end\n" +
+                "comparator = {compare = cmp}";
+        LuaState L = LuaStateFactory.newLuaState();
+        int exp = L.LdoString(lua);
+        if (exp != 0) {
+            throw new LuaException(L.toString(-1));
+        }
+        @SuppressWarnings("unchecked")
+        java.util.Comparator<Integer> generated = ((LuaFunction) L.getLuaObject("cmp"))
+                .asInterface(java.util.Comparator.class);
+        @SuppressWarnings("unchecked")
+        java.util.Comparator<Integer> proxy = (java.util.Comparator<Integer>) L.getLuaObject("comparator")
+                .createProxy("java.util.Comparator");
+        java.util.function.DoubleBinaryOperator add = ((LuaFunction) L.getLuaObject("cmp"))
+                .asInterface(java.util.function.DoubleBinaryOperator.class);
+        assert add.applyAsDouble(5, 3) == 2;
+
+        java.util.Random random = new java.util.Random(42);
+        Integer[] values = new Integer[200_000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextInt();
+        }
+        for (int round = 0; round < 3; round++) {
+            Integer[] a = values.clone();
+            long begin = System.nanoTime();
+            java.util.Arrays.sort(a, generated);
+            long sortGenerated = System.nanoTime() - begin;
+
+            Integer[] b = values.clone();
+            begin = System.nanoTime();
+            java.util.Arrays.sort(b, proxy);
+            long sortProxy = System.nanoTime() - begin;
+
+            assert java.util.Arrays.equals(a, b);
+            System.out.printf("sort with asInterface: %.1f ms, createProxy: %.1f ms%n",
+                    sortGenerated / 1e6, sortProxy / 1e6);
+        }
+        L.close();
+    }
+}
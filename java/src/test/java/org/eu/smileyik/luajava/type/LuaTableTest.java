@@ -34,6 +34,43 @@ class LuaTableTest {
         L.close();
     }
 
+    @Test
+    public void snapshotScalarsTest() throws Throwable {
+        String lua = "map = {a = 1.5, b = 'str', c = true, d = 'a\\0b\\255'}";
+        LuaState L = LuaStateFactory.newLuaState();
+        L.openLibs();
+        int exp = L.LdoString(lua);
+        if (exp != 0) {
+            throw new LuaException(L.toString(-1));
+        }
+        L.setSnapshotScalars(true);
+        LuaObject map = L.getLuaObject("map");
+        LuaNumber a = (LuaNumber) map.getField("a");
+        LuaString b = (LuaString) map.getField("b");
+        LuaBoolean c = (LuaBoolean) map.getField("c");
+        LuaString d = (LuaString) map.getField("d");
+        L.LdoString("binary = map.d; map = nil; collectgarbage()");
+
+        assert a.getDouble() == 1.5 && "str".equals(b.get()) && c.get();
+        a.push();
+        b.push();
+        c.push();
+        assert L.toNumber(-3) == 1.5 && "str".equals(L.toString(-2)) && L.toBoolean(-1);
+        L.pop(3);
+        // binary strings keep their bytes
+        d.push();
+        L.getGlobal("binary");
+        assert L.rawequal(-1, -2) != 0 && L.strLen(-1) == 4;
+        L.pop(2);
+        L.pushTable(java.util.Collections.singletonList(d));
+        L.rawGetI(-1, 1);
+        L.getGlobal("binary");
+        assert L.rawequal(-1, -2) != 0;
+        L.pop(3);
+        assert L.getTop() == 0;
+        L.close();
+    }
+
     @Test
     public void asMapTest() throws Throwable {
         String lua = "map = {a = 1, b = 2, c = '3', d = function() print(4) end, e = {f = 5, g = 6}}\n" +
@@ -59,4 +96,72 @@ class LuaTableTest {
         L.close();
     }
 
-}
\ No newline at end of file
+    public interface Shape {
+        double area(double scale);
+
+        String name();
+
+        boolean round() throws LuaException;
+
+        int sides();
+    }
+
+    @Test
+    public void asInterfaceTest() throws Throwable {
+        String lua = "circle = {area = function(s) return 3 * s * s end, name = function() return 'circle' end,\n" +
+                "round = function() return true end}\n" +
+                "broken = {round = function() error('broken') end, area = function() error('no area') end}";
+        LuaState L = LuaStateFactory.newLuaState();
+        L.openLibs();
+        int exp = L.LdoString(lua);
+        if (exp != 0) {
+            throw new LuaException(L.toString(-1));
+        }
+        Shape circle = ((LuaTable) L.getLuaObject("circle")).asInterface(Shape.class);
+        assert circle.area(2) == 12;
+        assert "circle".equals(circle.name());
+        assert circle.round();
+        // missing functions return the default value
+        assert circle.sides() == 0;
+
+        Shape broken = ((LuaTable) L.getLuaObject("broken")).asInterface(Shape.class);
+        try {
+            broken.round();
+            assert false;
+        } catch (LuaException e) {
+            assert e.getMessage().contains("broken");
+        }
+        try {
+            broken.area(1);
+            assert false;
+        } catch (java.lang.reflect.UndeclaredThrowableException e) {
+            assert e.getCause().getMessage().contains("no area") : e.getCause().getMessage();
+        }
+        assert L.getTop() == 0;
+        L.close();
+    }
+
+    @Test
+    public void asInterfaceSharedTest() throws Throwable {
+        LuaState L = LuaStateFactory.newLuaState();
+        int exp = L.LdoString("square = {area = function(s) return s * s end}");
+        if (exp != 0) {
+            throw new LuaException(L.toString(-1));
+        }
+        // the first call of each implementation looks its function up inside the call's session
+        Shape outside = ((LuaTable) L.getLuaObject("square")).asInterface(Shape.class);
+        assert outside.area(3) == 9;
+        Shape inside = ((LuaTable) L.getLuaObject("square")).asInterface(Shape.class);
+        try (LuaState.Session ignored = L.session()) {
+            assert inside.area(4) == 16;
+        }
+        Shape other = ((LuaTable) L.getLuaObject("square")).asInterface(Shape.class);
+        double[] area = new double[1];
+        Thread thread = new Thread(() -> area[0] = other.area(5));
+        thread.start();
+        thread.join();
+        assert area[0] == 25;
+        assert L.getTop() == 0;
+        L.close();
+    }
+}
@@ -0,0 +1,146 @@
+package org.eu.smileyik.luajava.util;
+
+import org.junit.jupiter.api.Test;
+import org.keplerproject.luajava.LoadLibrary;
+import org.keplerproject.luajava.LuaException;
+import org.keplerproject.luajava.LuaState;
+import org.keplerproject.luajava.LuaStateFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+class LuaStatePoolTest {
+
+    static {
+        LoadLibrary.load();
+    }
+
+    @Test
+    public void test() throws Exception {
+        LuaStatePool pool = LuaStatePool.builder()
+                .minIdle(2)
+                .maxTotal(3)
+                .warmUp(L -> {
+                    L.openLibs();
+                    if (L.LdoString("function add(a, b) return a + b end") != 0) {
+                        throw new LuaException(L.toString(-1));
+                    }
+                })
+                .collectGarbage(true)
+                .build();
+        assert pool.getMetrics().getIdle() == 2;
+
+        LuaState a = pool.borrow();
+        a.pushNumber(1);
+        pool.release(a);
+        // most recently used first, with a clean stack
+        LuaState b = pool.borrow();
+        assert a == b && b.getTop() == 0;
+
+        LuaState c = pool.borrow();
+        LuaState d = pool.borrow();
+        d.getGlobal("add");
+        assert d.isFunction(-1);
+        try {
+            pool.borrow(10, TimeUnit.MILLISECONDS);
+            assert false;
+        } catch (TimeoutException ignored) {
+        }
+        LuaState other = LuaStateFactory.newLuaState();
+        try {
+            pool.release(other);
+            assert false;
+        } catch (IllegalArgumentException ignored) {
+        }
+        other.close();
+
+        // a closed state is replaced by a new one
+        c.close();
+        pool.release(c);
+        pool.release(b);
+        pool.release(d);
+
+        LuaStatePool.Metrics metrics = pool.getMetrics();
+        System.out.println(metrics);
+        assert metrics.getCreated() == 3 && metrics.getDestroyed() == 1;
+        assert metrics.getIdle() == 2 && metrics.getActive() == 0;
+
+        long begin = System.nanoTime();
+        int n = 100_000;
+        for (int i = 0; i < n; i++) {
+            pool.release(pool.borrow());
+        }
+        System.out.printf("borrow + release: %.1f ns%n", (System.nanoTime() - begin) / (double) n);
+        pool.close();
+    }
+
+    @Test
+    public void evictTest() throws Exception {
+        LuaStatePool pool = LuaStatePool.builder()
+                .minIdle(1)
+                .maxTotal(4)
+                .idleTimeout(50, TimeUnit.MILLISECONDS)
+                .build();
+        LuaState[] states = new LuaState[4];
+        for (int i = 0; i < states.length; i++) {
+            states[i] = pool.borrow();
+        }
+        for (LuaState L : states) {
+            pool.release(L);
+        }
+        assert pool.getMetrics().getIdle() == 4;
+        Thread.sleep(300);
+        assert pool.getMetrics().getIdle() == 1;
+        assert pool.getMetrics().getTotal() == 1;
+        pool.close();
+    }
+
+    @Test
+    public void failedWarmUpTest() throws Exception {
+        List<LuaState> warmed = new ArrayList<>();
+        try {
+            LuaStatePool.builder()
+                    .minIdle(3)
+                    .maxTotal(3)
+                    .warmUp(L -> {
+                        warmed.add(L);
+                        if (warmed.size() == 3) {
+                            throw new LuaException("bootstrap failed");
+                        }
+                    })
+                    .build();
+            assert false;
+        } catch (LuaException e) {
+            assert "bootstrap failed".equals(e.getMessage());
+        }
+        assert warmed.size() == 3;
+        for (LuaState L : warmed) {
+            assert L.isClosed();
+        }
+    }
+
+    @Test
+    public void throwingValidatorTest() throws Exception {
+        AtomicBoolean fail = new AtomicBoolean(true);
+        LuaStatePool pool = LuaStatePool.builder()
+                .minIdle(1)
+                .maxTotal(1)
+                .validator(L -> {
+                    if (fail.getAndSet(false)) {
+                        throw new IllegalStateException("validator failed");
+                    }
+                    return true;
+                })
+                .build();
+        // the rejected idle state is closed and its slot reused
+        LuaState L = pool.borrow(100, TimeUnit.MILLISECONDS);
+        LuaStatePool.Metrics metrics = pool.getMetrics();
+        assert metrics.getCreated() == 2 && metrics.getDestroyed() == 1;
+        assert metrics.getTotal() == 1;
+        pool.release(L);
+        pool.close();
+    }
+}
@@ -0,0 +1,103 @@
+package org.keplerproject.luajava;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Map;
+
+class ClassMembersTest {
+
+    @Test
+    public void methodsTest() {
+        ClassMembers members = ClassMembers.of(B.class);
+        assert members == ClassMembers.of(B.class);
+
+        Method[] run = members.methods("run", 1);
+        System.out.println(Arrays.toString(run));
+        // B.run(int) overrides A.run(int), A.run(String) is only inherited
+        assert run.length == 2;
+        assert run[0].getDeclaringClass() == B.class;
+        assert run[1].getDeclaringClass() == A.class;
+        assert members.methods("run", 1) == run;
+
+        assert members.methods("run", 0).length == 0;
+        assert members.methods("run", 5).length == 0;
+        assert members.methods("missing", 1).length == 0;
+        assert members.methods("hashCode", 0).length == 1;
+    }
+
+    @Test
+    public void publicMethodTest() {
+        ClassMembers members = ClassMembers.of(B.class);
+        assert members.hasPublicMethod("run");
+        assert members.hasPublicMethod("toString");
+        assert !members.hasPublicMethod("hidden");
+    }
+
+    @Test
+    public void constructorsTest() {
+        ClassMembers members = ClassMembers.of(StringBuilder.class);
+        assert members.constructors(0).length == 1;
+        assert members.constructors(1).length > 1;
+        assert members.constructors(2).length == 0;
+    }
+
+    @Test
+    public void kindTest() {
+        ClassMembers members = ClassMembers.of(B.class);
+        assert members.kind("count") == ClassMembers.Kind.FIELD;
+        assert members.kind("run") == ClassMembers.Kind.METHOD;
+        assert members.kind("hidden") == ClassMembers.Kind.NONE;
+        assert members.kind("missing") == ClassMembers.Kind.NONE;
+
+        assert members.field("count") != null;
+        assert members.field("count") == members.field("count");
+        assert members.field("run") == null;
+    }
+
+    @Test
+    public void probeTest() throws Exception {
+        ClassMembers members = ClassMembers.of(A.class);
+        for (int i = 0; i < 1000; i++) {
+            assert members.kind("probe" + i) == ClassMembers.Kind.NONE;
+            assert members.field("probe" + i) == null;
+            assert members.methods("probe" + i, 0).length == 0;
+        }
+        members.kind("count");
+        members.kind("run");
+        members.methods("run", 1);
+        // only names of real members are kept
+        assert cacheSize(members, "fields") == 1;
+        assert cacheSize(members, "kinds") == 2;
+        assert cacheSize(members, "methods") == 1;
+    }
+
+    private static int cacheSize(ClassMembers members, String name) throws Exception {
+        java.lang.reflect.Field field = ClassMembers.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return ((Map<?, ?>) field.get(members)).size();
+    }
+
+    public static class A {
+        public int count;
+
+        public int run(int i) {
+            return i;
+        }
+
+        public String run(String s) {
+            return s;
+        }
+
+        private void hidden() {
+        }
+    }
+
+    public static class B extends A {
+        @Override
+        public int run(int i) {
+            return i + 1;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package org.keplerproject.luajava;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+class InvokerTest {
+
+    private static final int ITERATIONS = 2_000_000;
+
+    private static final String lua = "function run(point, n)\n" +
+            "  local sum = 0\n" +
+            "  for i = 1, n do sum = sum + point:getX() + point.y end\n" +
+            "  return sum\n" +
+            "end";
+
+    @Test
+    public void invokeTest() throws Exception {
+        ClassMembers members = ClassMembers.of(Point.class);
+        Point point = new Point(3, 4);
+
+        Method getX = Point.class.getMethod("getX");
+        assert members.invoker(getX) == members.invoker(getX);
+        assert (Integer) members.invoker(getX).invoke(point, new Object[0]) == 3;
+
+        Method of = Point.class.getMethod("of", int.class, int.class);
+        Point p = (Point) members.invoker(of).invoke(Point.class, new Object[]{1, 2});
+        assert p.getX() == 1 && p.y == 2;
+
+        Point q = (Point) members.invoker(Point.class.getConstructor(int.class, int.class))
+                .invoke(null, new Object[]{5, 6});
+        assert q.getX() == 5 && q.y == 6;
+
+        Field y = Point.class.getField("y");
+        assert (Integer) members.getter(y).get(point) == 4;
+        members.setter(y).set(point, 7);
+        assert point.y == 7;
+        assert (Integer) members.getter(Point.class.getField("ORIGIN")).get(Point.class) == 0;
+
+        try {
+            members.invoker(Point.class.getMethod("fail")).invoke(point, new Object[0]);
+            assert false;
+        } catch (InvocationTargetException e) {
+            assert e.getCause() instanceof IllegalStateException;
+        }
+        try {
+            members.setter(y).set(point, "str");
+            assert false;
+        } catch (IllegalArgumentException ignored) {
+        }
+        try {
+            members.setter(Point.class.getField("ORIGIN")).set(null, 1);
+            assert false;
+        } catch (IllegalAccessException ignored) {
+        }
+
+        // public method of a non-public class
+        Hidden hidden = new Hidden();
+        Method name = Hidden.class.getMethod("name");
+        assert "hidden".equals(ClassMembers.of(Hidden.class).invoker(name).invoke(hidden, new Object[0]));
+    }
+
+    @Test
+    public void getterBenchmark() throws Exception {
+        Point point = new Point(1, 2);
+        Method getX = Point.class.getMethod("getX");
+        Invoker invoker = ClassMembers.of(Point.class).invoker(getX);
+        Object[] args = new Object[0];
+
+        for (int round = 0; round < 3; round++) {
+            long sum = 0;
+            long begin = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                // what objectIndex used to do on every call
+                getX.setAccessible(true);
+                sum += (Integer) getX.invoke(point, args);
+            }
+            long reflection = System.nanoTime() - begin;
+
+            begin = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                sum += (Integer) invoker.invoke(point, args);
+            }
+            long handles = System.nanoTime() - begin;
+
+            assert sum == 2L * ITERATIONS;
+            System.out.printf("reflection: %.1f ns/call, invoker: %.1f ns/call%n",
+                    (double) reflection / ITERATIONS, (double) handles / ITERATIONS);
+        }
+    }
+
+    @Test
+    public void luaGetterBenchmark() throws Exception {
+        LoadLibrary.load();
+        LuaState L = LuaStateFactory.newLuaState();
+        L.openLibs();
+        if (L.LdoString(lua) != 0) {
+            throw new LuaException(L.toString(-1));
+        }
+
+        LuaObject run = L.getLuaObject("run");
+        int n = 200_000;
+        for (int round = 0; round < 3; round++) {
+            long begin = System.nanoTime();
+            Object ret = run.call(new Object[]{new Point(1, 2), n});
+            long elapsed = System.nanoTime() - begin;
+            assert ((Number) ret).intValue() == 3 * n;
+            System.out.printf("lua getters: %.1f ns/access%n", elapsed / (2.0 * n));
+        }
+        L.close();
+    }
+
+    @Test
+    public void finalFieldTest() throws Exception {
+        Point point = new Point(1, 2);
+        Field id = Point.class.getField("id");
+        assert (Integer) ClassMembers.of(Point.class).getter(id).get(point) == 7;
+        try {
+            ClassMembers.of(Point.class).setter(id).set(point, 9);
+            assert false;
+        } catch (IllegalAccessException ignored) {
+        }
+        assert point.id == 7;
+
+        LoadLibrary.load();
+        LuaState L = LuaStateFactory.newLuaState();
+        if (L.LdoString("function assign(p) p.y = 5; p.id = 9 end") != 0) {
+            throw new LuaException(L.toString(-1));
+        }
+        L.getGlobal("assign");
+        L.pushJavaObject(point);
+        assert L.pcall(1, 0, 0) != 0;
+        assert L.toString(-1).contains("Field not accessible") : L.toString(-1);
+        L.pop(1);
+        assert point.y == 5 && point.id == 7;
+        L.close();
+    }
+
+    public static class Point {
+        public static final int ORIGIN = 0;
+
+        private final int x;
+        public int y;
+        public final int id = 7;
+
+        public Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        public static Point of(int x, int y) {
+            return new Point(x, y);
+        }
+
+        public int getX() {
+            return x;
+        }
+
+        public void fail() {
+            throw new IllegalStateException("fail");
+        }
+    }
+
+    private static class Hidden {
+        public String name() {
+            return "hidden";
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package org.keplerproject.luajava;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class LuaStateFactoryTest {
+
+    static {
+        LoadLibrary.load();
+    }
+
+    private static final int CALLS_PER_STATE = 200_000;
+
+    private static final String lua = "local Math = luajava.bindClass('java.lang.Math')\n" +
+            "function run(n)\n" +
+            "  local sum = 0\n" +
+            "  for i = 1, n do sum = sum + Math:abs(-1) end\n" +
+            "  return sum\n" +
+            "end";
+
+    @Test
+    public void registryTest() {
+        // the registry is shared by the whole JVM, only rely on the indexes handed out
+        List<LuaState> opened = new ArrayList<>();
+        int[] indexes = new int[40];
+        for (int i = 0; i < indexes.length; i++) {
+            LuaState L = LuaStateFactory.newLuaState();
+            opened.add(L);
+            indexes[i] = LuaStateFactory.insertLuaState(L);
+        }
+        for (int i = 0; i < opened.size(); i++) {
+            LuaState L = opened.get(i);
+            assert LuaStateFactory.getExistingState(indexes[i]) == L;
+            assert LuaStateFactory.insertLuaState(L) == indexes[i];
+        }
+
+        int closed = 7;
+        opened.get(closed).close();
+        assert LuaStateFactory.getExistingState(indexes[closed]) == null;
+
+        LuaState reused = LuaStateFactory.newLuaState();
+        assert LuaStateFactory.insertLuaState(reused) == indexes[closed];
+        assert LuaStateFactory.getExistingState(indexes[closed]) == reused;
+        opened.set(closed, reused);
+
+        for (LuaState L : opened) {
+            L.close();
+        }
+    }
+
+    @Test
+    public void threadConfinedTest() throws Exception {
+        LuaState L = LuaStateFactory.newThreadConfinedLuaState();
+        assert L.isThreadConfined() && L.getOwnerThread() == Thread.currentThread();
+        L.openLibs();
+        if (L.LdoString(lua) != 0) {
+            throw new LuaException(L.toString(-1));
+        }
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread foreign = new Thread(() -> {
+            try {
+                L.getTop();
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        foreign.start();
+        foreign.join();
+        assert failure.get() instanceof IllegalStateException;
+
+        // released from another thread, unref'd later by the owner
+        LuaObject run = L.getLuaObject("run");
+        Thread closer = new Thread(run::close);
+        closer.start();
+        closer.join();
+        assert L.getLuaObject("run").call(new Object[]{10}) != null;
+
+        LuaState shared = LuaStateFactory.newLuaState();
+        shared.openLibs();
+        shared.LdoString(lua);
+        for (int round = 0; round < 3; round++) {
+            System.out.printf("shared: %,.0f callbacks/s, confined: %,.0f callbacks/s%n",
+                    callbacks(shared), callbacks(L));
+        }
+        shared.close();
+        L.close();
+    }
+
+    @Test
+    public void sessionTest() throws Exception {
+        LuaState L = LuaStateFactory.newLuaState();
+        L.openLibs();
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicReference<Integer> seenTop = new AtomicReference<>();
+        Thread other;
+        try (LuaState.Session session = L.session()) {
+            assert session.getLuaState() == L;
+            try (LuaState.Session nested = L.session()) {
+                L.pushNumber(1);
+                L.pushNumber(2);
+            }
+            other = new Thread(() -> {
+                started.countDown();
+                seenTop.set(L.getTop());
+            });
+            other.start();
+            started.await();
+            Thread.sleep(100);
+            // the other thread waits until the session is closed
+            assert seenTop.get() == null;
+            L.pop(2);
+        }
+        other.join();
+        assert seenTop.get() == 0;
+
+        if (L.LdoString(lua) != 0) {
+            throw new LuaException(L.toString(-1));
+        }
+        for (int round = 0; round < 3; round++) {
+            double outside = callbacks(L);
+            double inside;
+            try (LuaState.Session ignored = L.session()) {
+                inside = callbacks(L);
+            }
+            System.out.printf("outside session: %,.0f callbacks/s, inside: %,.0f callbacks/s%n",
+                    outside, inside);
+        }
+        L.close();
+    }
+
+    @Test
+    public void nestedSessionTest() throws Exception {
+        LuaState L = LuaStateFactory.newLuaState();
+        if (L.LdoString("x = 42; function f(a) return a + 1 end") != 0) {
+            throw new LuaException(L.toString(-1));
+        }
+        AtomicReference<Integer> seenTop = new AtomicReference<>();
+        Thread other = new Thread(() -> seenTop.set(L.getTop()));
+        try (LuaState.Session ignored = L.session()) {
+            L.pushNumber(1);
+            // each of these opens and closes nested sessions
+            assert !L.isClosed();
+            assert L.getLuaObject("x").getNumber() == 42;
+            assert ((Number) L.getLuaObject("f").call(new Object[]{1})).intValue() == 2;
+            other.start();
+            Thread.sleep(100);
+            // the outer session still holds the state
+            assert seenTop.get() == null;
+            assert L.getTop() == 1;
+            L.pop(1);
+        }
+        other.join();
+        assert seenTop.get() == 0;
+        L.close();
+    }
+
+    private static double callbacks(LuaState L) throws LuaException {
+        LuaObject run = L.getLuaObject("run");
+        long begin = System.nanoTime();
+        run.call(new Object[]{CALLS_PER_STATE});
+        long elapsed = System.nanoTime() - begin;
+        return 2.0 * CALLS_PER_STATE / (elapsed / 1e9);
+    }
+
+    @Test
+    public void callbackScalingTest() throws Exception {
+        int max = Math.max(2, Runtime.getRuntime().availableProcessors());
+        for (int threads = 1; threads <= max; threads <<= 1) {
+            double opsPerSecond = runCallbacks(threads);
+            System.out.printf("%2d states: %,.0f callbacks/s (%,.0f per state)%n",
+                    threads, opsPerSecond, opsPerSecond / threads);
+        }
+    }
+
+    private double runCallbacks(int threads) throws Exception {
+        List<LuaState> states = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            LuaState L = LuaStateFactory.newLuaState();
+            L.openLibs();
+            if (L.LdoString(lua) != 0) {
+                throw new LuaException(L.toString(-1));
+            }
+            states.add(L);
+        }
+
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (LuaState L : states) {
+            Thread thread = new Thread(() -> {
+                try {
+                    LuaObject run = L.getLuaObject("run");
+                    start.await();
+                    Object ret = run.call(new Object[]{CALLS_PER_STATE});
+                    assert ((Number) ret).intValue() == CALLS_PER_STATE;
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            });
+            thread.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+
+        for (LuaState L : states) {
+            L.close();
+        }
+        if (failure.get() != null) {
+            throw new RuntimeException(failure.get());
+        }
+
+        // every Math:abs call crosses into LuaJavaAPI twice (classIndex + objectIndex)
+        return 2.0 * CALLS_PER_STATE * threads / (elapsed / 1e9);
+    }
+}
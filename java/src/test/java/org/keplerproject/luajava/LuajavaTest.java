@@ -41,4 +41,422 @@ public class LuajavaTest {
         Thread.sleep(2000); // 等待清理完成
         L.close();
     }
+
+    @Test
+    public void luaObjectReleaseTest() throws InterruptedException {
+        LuaState L = LuaStateFactory.newLuaState();
+        L.pushNumber(1);
+        int max = 0;
+        long begin = System.nanoTime();
+        for (int i = 0; i < 1_000_000; i++) {
+            max = Math.max(max, L.getLuaObject(-1).ref);
+        }
+        System.out.printf("1M LuaObjects in %.1f ms%n", (System.nanoTime() - begin) / 1e6);
+
+        System.gc();
+        Thread.sleep(1000);
+        // queued references are unreffed when the state is locked again, so fresh refs are reused
+        LuaObject object = L.getLuaObject(-1);
+        assert object.ref <= max;
+        object.close();
+        L.close();
+    }
+
+    @Test
+    public void arenaTest() throws LuaException {
+        LuaState L = LuaStateFactory.newLuaState();
+        L.openLibs();
+        L.LdoString("t = {1, 2, 3}");
+        int first;
+        try (LuaArena arena = L.openArena()) {
+            first = L.getLuaObject("t").ref;
+            try (LuaArena inner = L.openArena()) {
+                for (int i = 0; i < 1000; i++) {
+                    assert L.getLuaObject(L.getLuaObject("t"), 2).getNumber() == 2;
+                }
+                assert inner.size() == 2000;
+            }
+            assert arena.size() == 1;
+        }
+        // the slots are free again
+        try (LuaArena arena = L.openArena()) {
+            assert L.getLuaObject("t").ref <= first + 2000;
+            assert L.getTop() == 0;
+        }
+        L.close();
+    }
+
+    @Test
+    public void pushTableTest() throws LuaException {
+        String lua = "function sum(t) local s = 0 for i = 1, #t do s = s + t[i] end return s end\n" +
+                "function check(list, map)\n" +
+                "  assert(#list == 5 and list[1] == 1 and list[2] == 'two' and list[3] == true)\n" +
+                "  assert(list[4] == nil and list[5]:size() == 0)\n" +
+                "  assert(map.a == 1 and map[2] == 'b' and map[true] == false)\n" +
+                "  return true\n" +
+                "end";
+        LuaState L = LuaStateFactory.newLuaState();
+        L.openLibs();
+        if (L.LdoString(lua) != 0) {
+            throw new LuaException(L.toString(-1));
+        }
+
+        double[] doubles = new double[1_000_000];
+        for (int i = 0; i < doubles.length; i++) {
+            doubles[i] = i;
+        }
+        for (int round = 0; round < 3; round++) {
+            long begin = System.nanoTime();
+            L.getGlobal("sum");
+            L.pushTable(doubles);
+            L.pcall(1, 1, 0);
+            System.out.printf("pushed and summed 1M doubles in %.2f ms%n", (System.nanoTime() - begin) / 1e6);
+            assert L.toNumber(-1) == 499999500000.0;
+            L.pop(1);
+        }
+
+        L.getGlobal("sum");
+        L.pushTable(new int[]{1, 2, 3});
+        L.pcall(1, 1, 0);
+        assert L.toNumber(-1) == 6;
+        L.pop(1);
+
+        java.util.Map<Object, Object> map = new java.util.HashMap<>();
+        map.put("a", 1);
+        map.put(2, "b");
+        map.put(true, false);
+        L.getGlobal("check");
+        L.pushTable(java.util.Arrays.asList(1, "two", true, null, new java.util.ArrayList<>()));
+        L.pushTable(map);
+        assert L.pcall(2, 1, 0) == 0 : L.toString(-1);
+        assert L.toBoolean(-1);
+        L.pop(1);
+
+        try {
+            L.pushTable(java.util.Collections.singletonMap(null, 1));
+            assert false;
+        } catch (IllegalArgumentException ignored) {
+        }
+        LuaState other = LuaStateFactory.newLuaState();
+        other.LdoString("t = {}");
+        try {
+            L.pushTable(java.util.Collections.singletonList(other.getLuaObject("t")));
+            assert false;
+        } catch (IllegalArgumentException ignored) {
+        }
+        other.close();
+        // a key only turning out nil in Lua is skipped
+        map.put(L.getLuaObject("missing"), 1);
+        L.pushTable(map);
+        assert L.getTop() == 1;
+        L.getField(-1, "a");
+        assert L.toNumber(-1) == 1;
+        L.pop(2);
+        assert L.getTop() == 0;
+        L.close();
+    }
+
+    @Test
+    public void byteBufferStringTest() {
+        LuaState L = LuaStateFactory.newLuaState();
+        L.openLibs();
+        byte[] utf8 = "a\u0000b\uD83D\uDE00".getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        java.nio.ByteBuffer direct = java.nio.ByteBuffer.allocateDirect(utf8.length + 2);
+        direct.put((byte) 'x').put(utf8).put((byte) 'y').flip().position(1).limit(utf8.length + 1);
+
+        L.pushString(direct);
+        assert direct.position() == 1;
+        assert L.strLen(-1) == utf8.length;
+        java.nio.ByteBuffer view = L.toStringView(-1);
+        assert view.isReadOnly() && view.remaining() == utf8.length;
+        byte[] read = new byte[utf8.length];
+        view.get(read);
+        assert java.util.Arrays.equals(read, utf8);
+
+        java.nio.ByteBuffer small = java.nio.ByteBuffer.allocate(3);
+        assert L.toString(-1, small) == utf8.length;
+        assert small.position() == 3 && small.get(1) == 0;
+        L.pop(1);
+
+        L.pushNumber(1);
+        assert L.toStringView(-1) == null && L.toString(-1, small) == -1;
+        L.pop(1);
+
+        java.nio.ByteBuffer payload = java.nio.ByteBuffer.allocateDirect(8 << 20);
+        for (int round = 0; round < 3; round++) {
+            long begin = System.nanoTime();
+            L.pushString(payload);
+            int n = L.toStringView(-1).remaining();
+            L.pop(1);
+            System.out.printf("8 MB round trip in %.2f ms%n", (System.nanoTime() - begin) / 1e6);
+            assert n == 8 << 20;
+        }
+        L.close();
+    }
+
+    @Test
+    public void luaKeyTest() throws LuaException {
+        LuaState L = LuaStateFactory.newLuaState();
+        L.openLibs();
+        if (L.LdoString("t = {name = 'lua'}; function len(s) return s:length() end") != 0) {
+            throw new LuaException(L.toString(-1));
+        }
+        LuaKey t = L.newKey("t");
+        LuaKey name = L.newKey("name");
+        L.getGlobal(t);
+        L.getField(-1, name);
+        assert "lua".equals(L.toString(-1));
+        L.pop(1);
+        L.pushString("java");
+        L.setField(-2, name);
+        L.getField(-1, "name");
+        assert "java".equals(L.toString(-1));
+        L.pop(2);
+
+        LuaState other = LuaStateFactory.newLuaState();
+        try {
+            other.getGlobal(t);
+            assert false;
+        } catch (IllegalArgumentException ignored) {
+        }
+        other.close();
+
+        // member names resolved through the per-state name cache
+        L.getGlobal("len");
+        L.pushJavaObject("abc");
+        assert L.pcall(1, 1, 0) == 0 : L.toString(-1);
+        assert L.toNumber(-1) == 3;
+        L.pop(1);
+        assert L.getTop() == 0;
+        L.close();
+    }
+
+    @Test
+    public void sharedMetatableTest() throws LuaException {
+        String lua = "function check(a, b, list, array)\n" +
+                "  assert(getmetatable(a) == getmetatable(b))\n" +
+                "  assert(getmetatable(a) == getmetatable(list))\n" +
+                "  assert(getmetatable(a) ~= getmetatable(array))\n" +
+                "  local size, empty = a.size, b.isEmpty\n" +
+                "  assert(size(a) == 0 and empty(b) == true)\n" +
+                "  return true\n" +
+                "end";
+        LuaState L = LuaStateFactory.newLuaState();
+        L.openLibs();
+        if (L.LdoString(lua) != 0) {
+            throw new LuaException(L.toString(-1));
+        }
+        LuaObject check = L.getLuaObject("check");
+        Object ret = check.call(new Object[]{
+                new java.util.ArrayList<>(), new java.util.ArrayList<>(), new java.util.LinkedList<>(), new int[1]
+        });
+        assert Boolean.TRUE.equals(ret);
+
+        // every push creates a proxy userdata and sets its metatable
+        Object value = new Object();
+        int n = 1_000_000;
+        for (int round = 0; round < 3; round++) {
+            long begin = System.nanoTime();
+            try (LuaState.Session ignored = L.session()) {
+                for (int i = 0; i < n; i++) {
+                    L.pushJavaObject(value);
+                    L.pop(1);
+                }
+            }
+            System.out.printf("pushJavaObject: %.1f ns/push%n", (double) (System.nanoTime() - begin) / n);
+        }
+        assert L.getTop() == 0;
+        L.close();
+    }
+
+    @Test
+    public void proxyTest() throws Exception {
+        String lua = "cmp = {compare = function(a, b) return a - b end}\n" +
+                "counter = {n = 0, run = function() counter.n = counter.n + 1 end}";
+        LuaState L = LuaStateFactory.newLuaState();
+        int exp = L.LdoString(lua);
+        if (exp != 0) {
+            throw new LuaException(L.toString(-1));
+        }
+        @SuppressWarnings("unchecked")
+        java.util.Comparator<Object> cmp = (java.util.Comparator<Object>)
+                L.getLuaObject("cmp").createProxy("java.util.Comparator");
+        Integer[] values = {5, 3, 9, 1};
+        java.util.Arrays.sort(values, cmp);
+        assert java.util.Arrays.equals(values, new Integer[]{1, 3, 5, 9});
+
+        Runnable run = (Runnable) L.getLuaObject("counter").createProxy("java.lang.Runnable");
+        int n = 1_000_000;
+        for (int round = 0; round < 3; round++) {
+            long begin = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                run.run();
+            }
+            System.out.printf("proxy Runnable: %.1f ns/call%n", (double) (System.nanoTime() - begin) / n);
+        }
+        assert L.getLuaObject("counter").getField("n").getNumber() == 3 * n;
+
+        // the cached function stays until the handler is invalidated
+        L.LdoString("counter.run = function() counter.n = -1 end");
+        run.run();
+        assert L.getLuaObject("counter").getField("n").getNumber() == 3 * n + 1;
+        ((LuaInvocationHandler) java.lang.reflect.Proxy.getInvocationHandler(run)).invalidate();
+        run.run();
+        assert L.getLuaObject("counter").getField("n").getNumber() == -1;
+        assert L.getTop() == 0;
+        L.close();
+    }
+
+    public static class Counter {
+        public int count;
+
+        public int add(int n) {
+            return count += n;
+        }
+    }
+
+    @Test
+    public void bindingTest() throws Exception {
+        LuaState L = LuaStateFactory.newLuaState();
+        L.openLibs();
+        Counter counter = new Counter();
+        L.pushJavaObject(counter);
+        L.setGlobal("counter");
+        String lua = "for i = 1, 1000000 do counter:add(1) end";
+
+        for (int round = 0; round < 2; round++) {
+            long begin = System.nanoTime();
+            if (L.LdoString(lua) != 0) {
+                throw new LuaException(L.toString(-1));
+            }
+            System.out.printf("reflection: %.1f ns/call%n", (System.nanoTime() - begin) / 1e6);
+        }
+
+        LuaBindings.register(Counter.class, "add", (state, self) -> {
+            LuaBindings.checkArgs(state, "add", 1);
+            state.pushNumber(((Counter) self).add((int) LuaBindings.toNumber(state, 2)));
+            return 1;
+        });
+        try {
+            for (int round = 0; round < 2; round++) {
+                long begin = System.nanoTime();
+                if (L.LdoString(lua) != 0) {
+                    throw new LuaException(L.toString(-1));
+                }
+                System.out.printf("binding: %.1f ns/call%n", (System.nanoTime() - begin) / 1e6);
+            }
+            assert counter.count == 4_000_000;
+            assert L.LdoString("counter:add('x')") != 0;
+            System.out.println(L.toString(-1));
+            L.pop(1);
+        } finally {
+            LuaBindings.unregister(Counter.class);
+        }
+        L.close();
+    }
+
+    @Test
+    public void registerTest() throws Exception {
+        LuaState L = LuaStateFactory.newLuaState();
+        L.openLibs();
+        L.registerDoubleBinary("hypot", Math::hypot);
+        L.registerDoubleUnary("cbrt", Math::cbrt);
+        L.registerToDouble("len", s -> String.valueOf(s).length());
+        L.registerBiFunction("concat", (a, b) -> a + "" + b);
+        L.registerSupplier("greet", () -> "hello");
+        StringBuilder out = new StringBuilder();
+        L.registerConsumer("emit", out::append);
+        String lua = "assert(hypot(3, 4) == 5)\n" +
+                "assert(cbrt(27) == 3)\n" +
+                "assert(len('abc') == 3)\n" +
+                "assert(concat('a', 1) == 'a1.0')\n" +
+                "assert(greet() == 'hello')\n" +
+                "emit('x')\n" +
+                "assert(not pcall(hypot, 'a', 1))";
+        if (L.LdoString(lua) != 0) {
+            throw new LuaException(L.toString(-1));
+        }
+        assert "x".equals(out.toString());
+
+        int n = 1_000_000;
+        for (int round = 0; round < 3; round++) {
+            long begin = System.nanoTime();
+            if (L.LdoString("local h = hypot; local s = 0; for i = 1, " + n + " do s = s + h(i, i) end") != 0) {
+                throw new LuaException(L.toString(-1));
+            }
+            System.out.printf("registerDoubleBinary: %.1f ns/call%n",
+                    (double) (System.nanoTime() - begin) / n);
+        }
+        L.close();
+    }
+
+    @Test
+    public void javaFunctionArgsTest() throws Exception {
+        LuaState L = LuaStateFactory.newLuaState();
+        L.openLibs();
+        java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocateDirect(16);
+        new JavaFunction(L) {
+            @Override
+            public int execute() throws LuaException {
+                assert argCount() == 5;
+                assert argType(1) == LuaState.LUA_TNUMBER;
+                assert argType(6) == LuaState.LUA_TNONE;
+                assert argLong(1) == 42 && argInt(1) == 42 && argDouble(1) == 42.5;
+                assert argBoolean(2) && !argBoolean(5);
+                assert "abc".equals(argString(3)) && "42.5".equals(argString(1));
+                assert argString(5) == null;
+                buffer.clear();
+                assert argBytes(3, buffer) == 3;
+                buffer.flip();
+                return retBytes(buffer);
+            }
+        }.register("check");
+        new JavaFunction(L) {
+            @Override
+            public int execute() throws LuaException {
+                return retDouble(argDouble(1) * 2);
+            }
+        }.register("twice");
+        if (L.LdoString("assert(check(42.5, true, 'abc', {}, nil) == 'abc')\n" +
+                "assert(twice(21) == 42)\n" +
+                "assert(not pcall(twice, 'x'))") != 0) {
+            throw new LuaException(L.toString(-1));
+        }
+
+        int n = 1_000_000;
+        for (int round = 0; round < 3; round++) {
+            long begin = System.nanoTime();
+            if (L.LdoString("local f = twice; for i = 1, " + n + " do f(i) end") != 0) {
+                throw new LuaException(L.toString(-1));
+            }
+            System.out.printf("argDouble + retDouble: %.1f ns/call%n", (double) (System.nanoTime() - begin) / n);
+        }
+        L.close();
+    }
+
+    @Test
+    public void nativeCallBenchmark() {
+        LuaState L = LuaStateFactory.newLuaState();
+        int n = 5_000_000;
+        for (int round = 0; round < 3; round++) {
+            long begin = System.nanoTime();
+            int top = 0;
+            for (int i = 0; i < n; i++) {
+                top += L.getTop();
+            }
+            long getTop = System.nanoTime() - begin;
+
+            begin = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                L.pushNumber(i);
+                L.pop(1);
+            }
+            long pushPop = System.nanoTime() - begin;
+
+            assert top == 0;
+            System.out.printf("getTop: %.1f ns/call, pushNumber + pop: %.1f ns/pair%n",
+                    (double) getTop / n, (double) pushPop / n);
+        }
+        L.close();
+    }
 }
@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2003-2007 Kepler Project.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.keplerproject.luajava.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Generates a <code>LuaBindings.Provider</code> for every class marked with
+ * <code>@LuaExport</code>, or holding marked methods. Each bound method
+ * reads its arguments with the typed helpers of <code>LuaBindings</code>
+ * and calls the method directly. Methods that can not be bound this way
+ * are reported as notes and left to reflection:
+ * <ul>
+ * <li>overloaded methods, as the binding is chosen by name only</li>
+ * <li>varargs, array, boxed and char parameters, which reflection converts from tables and strings</li>
+ * </ul>
+ * The providers are listed in
+ * <code>META-INF/services/org.keplerproject.luajava.LuaBindings$Provider</code>.
+ */
+@SupportedAnnotationTypes(LuaExportProcessor.LUA_EXPORT)
+public class LuaExportProcessor extends AbstractProcessor {
+    static final String LUA_EXPORT = "org.keplerproject.luajava.LuaExport";
+    static final String PROVIDER = "org.keplerproject.luajava.LuaBindings$Provider";
+    static final String SUFFIX = "LuaBindings";
+
+    private final Set<String> providers = new LinkedHashSet<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (roundEnv.processingOver()) {
+            writeServices();
+            return false;
+        }
+
+        // class -> methods to bind, all public methods of marked classes
+        Map<TypeElement, Set<ExecutableElement>> classes = new LinkedHashMap<>();
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() == ElementKind.CLASS) {
+                    TypeElement type = (TypeElement) element;
+                    Set<ExecutableElement> methods = classes.computeIfAbsent(type, k -> new LinkedHashSet<>());
+                    for (ExecutableElement method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+                        if (method.getModifiers().contains(Modifier.PUBLIC)) {
+                            methods.add(method);
+                        }
+                    }
+                } else if (element.getKind() == ElementKind.METHOD) {
+                    classes.computeIfAbsent((TypeElement) element.getEnclosingElement(), k -> new LinkedHashSet<>())
+                            .add((ExecutableElement) element);
+                } else {
+                    error(element, "@LuaExport is only allowed on classes and methods");
+                }
+            }
+        }
+
+        for (Map.Entry<TypeElement, Set<ExecutableElement>> entry : classes.entrySet()) {
+            try {
+                generate(entry.getKey(), entry.getValue());
+            } catch (IOException e) {
+                error(entry.getKey(), "Can not write the Lua bindings: " + e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    private void generate(TypeElement type, Set<ExecutableElement> exported) throws IOException {
+        if (!isAccessible(type)) {
+            error(type, "@LuaExport classes must be public");
+            return;
+        }
+        for (ExecutableElement method : exported) {
+            if (!method.getModifiers().contains(Modifier.PUBLIC)) {
+                error(method, "@LuaExport methods must be public");
+                return;
+            }
+        }
+
+        // public methods of the class by name, to find overloads
+        Map<String, Integer> overloads = new LinkedHashMap<>();
+        for (ExecutableElement method : ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(type))) {
+            if (method.getModifiers().contains(Modifier.PUBLIC)) {
+                overloads.merge(method.getSimpleName().toString(), 1, Integer::sum);
+            }
+        }
+
+        List<ExecutableElement> bound = new ArrayList<>();
+        for (ExecutableElement method : exported) {
+            String name = method.getSimpleName().toString();
+            String reason = null;
+            if (overloads.getOrDefault(name, 0) > 1) {
+                reason = "it is overloaded";
+            } else if (method.isVarArgs()) {
+                reason = "it takes varargs";
+            } else {
+                for (VariableElement param : method.getParameters()) {
+                    if (!isSupported(param.asType())) {
+                        reason = "of the parameter type " + param.asType();
+                        break;
+                    }
+                }
+            }
+            if (reason == null) {
+                bound.add(method);
+            } else {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                        name + " is called through reflection because " + reason, method);
+            }
+        }
+
+        String packageName = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        String simpleName = providerName(type);
+        String qualifiedName = packageName.isEmpty() ? simpleName : packageName + "." + simpleName;
+        String target = type.getQualifiedName().toString();
+
+        StringBuilder src = new StringBuilder();
+        if (!packageName.isEmpty()) {
+            src.append("package ").append(packageName).append(";\n\n");
+        }
+        src.append("import org.keplerproject.luajava.LuaBindings;\n");
+        src.append("import org.keplerproject.luajava.LuaException;\n");
+        src.append("import org.keplerproject.luajava.LuaState;\n\n");
+        src.append("/**\n");
+        src.append(" * Lua bindings of {@link ").append(target).append("}, generated by LuaExportProcessor.\n");
+        src.append(" */\n");
+        src.append("@SuppressWarnings({\"unchecked\", \"rawtypes\"})\n");
+        src.append("public final class ").append(simpleName).append(" implements LuaBindings.Provider {\n\n");
+        src.append("    @Override\n");
+        src.append("    public void register() {\n");
+        for (ExecutableElement method : bound) {
+            String name = method.getSimpleName().toString();
+            src.append("        LuaBindings.register(").append(target).append(".class, \"").append(name)
+                    .append("\", ").append(simpleName).append("::bind_").append(name).append(");\n");
+        }
+        src.append("    }\n");
+        for (ExecutableElement method : bound) {
+            writeBinding(src, target, method);
+        }
+        src.append("}\n");
+
+        try (Writer writer = processingEnv.getFiler().createSourceFile(qualifiedName, type).openWriter()) {
+            writer.write(src.toString());
+        }
+        providers.add(packageName.isEmpty() ? simpleName : packageName + "." + simpleName);
+    }
+
+    private void writeBinding(StringBuilder src, String target, ExecutableElement method) {
+        String name = method.getSimpleName().toString();
+        List<? extends VariableElement> params = method.getParameters();
+        boolean isStatic = method.getModifiers().contains(Modifier.STATIC);
+        TypeMirror ret = method.getReturnType();
+
+        src.append("\n    private static int bind_").append(name)
+                .append("(LuaState L, Object self) throws LuaException {\n");
+        src.append("        LuaBindings.checkArgs(L, \"").append(name).append("\", ").append(params.size()).append(");\n");
+
+        StringBuilder call = new StringBuilder();
+        call.append(isStatic ? target : "((" + target + ") self)").append('.').append(name).append('(');
+        for (int i = 0; i < params.size(); i++) {
+            if (i > 0) {
+                call.append(", ");
+            }
+            call.append(readArgument(params.get(i).asType(), i + 2));
+        }
+        call.append(')');
+
+        boolean wrap = !method.getThrownTypes().isEmpty();
+        String indent = wrap ? "            " : "        ";
+        if (wrap) {
+            src.append("        try {\n");
+        }
+        switch (ret.getKind()) {
+            case VOID:
+                src.append(indent).append(call).append(";\n");
+                src.append(indent).append("return 0;\n");
+                break;
+            case BOOLEAN:
+                src.append(indent).append("L.pushBoolean(").append(call).append(");\n");
+                src.append(indent).append("return 1;\n");
+                break;
+            case DOUBLE:
+            case FLOAT:
+            case LONG:
+            case INT:
+            case SHORT:
+            case BYTE:
+                src.append(indent).append("L.pushNumber(").append(call).append(");\n");
+                src.append(indent).append("return 1;\n");
+                break;
+            default:
+                // null results push nothing, as with the reflective call
+                src.append(indent).append("Object ret = ").append(call).append(";\n");
+                src.append(indent).append("if (ret == null) {\n");
+                src.append(indent).append("    return 0;\n");
+                src.append(indent).append("}\n");
+                src.append(indent).append("L.pushObjectValue(ret);\n");
+                src.append(indent).append("return 1;\n");
+                break;
+        }
+        if (wrap) {
+            src.append("        } catch (Throwable e) {\n");
+            src.append("            throw LuaBindings.wrap(e);\n");
+            src.append("        }\n");
+        }
+        src.append("    }\n");
+    }
+
+    private String readArgument(TypeMirror type, int idx) {
+        switch (type.getKind()) {
+            case BOOLEAN:
+                return "LuaBindings.toBoolean(L, " + idx + ")";
+            case DOUBLE:
+                return "LuaBindings.toNumber(L, " + idx + ")";
+            case FLOAT:
+            case LONG:
+            case INT:
+            case SHORT:
+            case BYTE:
+                return "(" + type.getKind().name().toLowerCase() + ") LuaBindings.toNumber(L, " + idx + ")";
+            default:
+                String erased = processingEnv.getTypeUtils().erasure(type).toString();
+                if (erased.equals("java.lang.String")) {
+                    return "LuaBindings.toString(L, " + idx + ")";
+                }
+                return "LuaBindings.toObject(L, " + idx + ", " + erased + ".class)";
+        }
+    }
+
+    private boolean isSupported(TypeMirror type) {
+        TypeKind kind = type.getKind();
+        if (kind.isPrimitive()) {
+            return kind != TypeKind.CHAR;
+        }
+        if (kind == TypeKind.TYPEVAR) {
+            return true;
+        }
+        if (kind != TypeKind.DECLARED) {
+            return false;
+        }
+        // boxed parameters accept nil and numbers, leave them to reflection
+        try {
+            processingEnv.getTypeUtils().unboxedType(type);
+            return false;
+        } catch (IllegalArgumentException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Whether the class and every class enclosing it are public
+     */
+    private static boolean isAccessible(TypeElement type) {
+        Element element = type;
+        while (element instanceof TypeElement) {
+            if (!element.getModifiers().contains(Modifier.PUBLIC)) {
+                return false;
+            }
+            element = element.getEnclosingElement();
+        }
+        return element instanceof PackageElement;
+    }
+
+    /**
+     * <code>Outer_InnerLuaBindings</code> for nested classes
+     */
+    private static String providerName(TypeElement type) {
+        StringBuilder name = new StringBuilder(type.getSimpleName());
+        Element enclosing = type.getEnclosingElement();
+        while (enclosing instanceof TypeElement) {
+            name.insert(0, enclosing.getSimpleName() + "_");
+            enclosing = enclosing.getEnclosingElement();
+        }
+        return name.append(SUFFIX).toString();
+    }
+
+    private void writeServices() {
+        if (providers.isEmpty()) {
+            return;
+        }
+        try {
+            FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "",
+                    "META-INF/services/" + PROVIDER);
+            try (Writer writer = file.openWriter()) {
+                for (String provider : providers) {
+                    writer.write(provider);
+                    writer.write('\n');
+                }
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Can not write the Lua bindings service file: " + e.getMessage());
+        }
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
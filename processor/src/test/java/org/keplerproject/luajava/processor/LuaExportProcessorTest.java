@@ -0,0 +1,66 @@
+package org.keplerproject.luajava.processor;
+
+import org.junit.jupiter.api.Test;
+import org.keplerproject.luajava.LuaBindings;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+class LuaExportProcessorTest {
+
+    @Test
+    public void generateTest() throws Exception {
+        String source = "package demo;\n" +
+                "import org.keplerproject.luajava.LuaExport;\n" +
+                "@LuaExport\n" +
+                "public class Point {\n" +
+                "    public double x, y;\n" +
+                "    public double length() { return Math.sqrt(x * x + y * y); }\n" +
+                "    public Point scale(double f, int n) { return this; }\n" +
+                "    public static Point origin() { return new Point(); }\n" +
+                "    public void close() throws java.io.IOException { }\n" +
+                "    public void rethrow() throws Throwable { }\n" +
+                "    public String name(String prefix, java.util.List<String> tags) { return prefix; }\n" +
+                "    public void over(int a) { }\n" +
+                "    public void over(String a) { }\n" +
+                "    public static class Inner {\n" +
+                "        @LuaExport public boolean check(long v, float f) { return true; }\n" +
+                "    }\n" +
+                "}\n";
+        Path dir = Files.createTempDirectory("luaexport");
+        Path src = dir.resolve("demo/Point.java");
+        Files.createDirectories(src.getParent());
+        Files.write(src, source.getBytes(StandardCharsets.UTF_8));
+        Path out = Files.createDirectories(dir.resolve("out"));
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        int exit = compiler.run(null, null, errors,
+                "-classpath", System.getProperty("java.class.path"),
+                "-processor", LuaExportProcessor.class.getName(),
+                "-d", out.toString(), "-s", out.toString(), src.toString());
+        assert exit == 0 : errors;
+
+        String generated = new String(Files.readAllBytes(out.resolve("demo/PointLuaBindings.java")),
+                StandardCharsets.UTF_8);
+        assert generated.contains("\"length\"");
+        assert generated.contains("\"origin\"");
+        assert generated.contains("\"rethrow\"");
+        // overloaded methods are left to reflection
+        assert !generated.contains("\"over\"");
+        assert Files.exists(out.resolve("demo/Point_InnerLuaBindings.java"));
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{out.toUri().toURL()},
+                LuaExportProcessorTest.class.getClassLoader())) {
+            assert LuaBindings.loadProviders(loader) == 2;
+            LuaBindings.unregister(loader.loadClass("demo.Point"));
+            LuaBindings.unregister(loader.loadClass("demo.Point$Inner"));
+        }
+    }
+}